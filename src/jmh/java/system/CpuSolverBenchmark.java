@@ -0,0 +1,105 @@
+package system;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks every pass of {@link CpuSolver} on its own, plus a full step, at several grid sizes.
+ * The fields are filled with random data once per trial, so every pass works on non-trivial values.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Thread)
+public class CpuSolverBenchmark {
+    private static final float DELTA_TIME = 0.016f;
+    private static final int[] FUSED_BOUNDS = {1, 2, 0};
+
+    @Param({"64", "200", "512", "1024"})
+    public int n;
+
+    @Param({"1"})
+    public int parallelism;
+
+    @Param({"GAUSS_SEIDEL", "RED_BLACK", "JACOBI", "TILED_JACOBI"})
+    public CpuSolver.Relaxation relaxation;
+
+    private CpuSolver solver;
+    private float[] field;
+    private float[] fieldPrev;
+    private float[][] fields;
+    private float[][] prevFields;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        solver = new CpuSolver(n, parallelism);
+        solver.setRelaxation(relaxation);
+        solver.setDeltaTime(DELTA_TIME);
+
+        Random random = new Random(42);
+        fill(random, solver.getDensities());
+        fill(random, solver.getVelocitiesX());
+        fill(random, solver.getVelocitiesY());
+
+        field = new float[solver.size];
+        fieldPrev = new float[solver.size];
+        fill(random, fieldPrev);
+
+        fields = new float[3][solver.size];
+        prevFields = new float[3][solver.size];
+        for (float[] prevField : prevFields)
+            fill(random, prevField);
+    }
+
+    @Benchmark
+    public float[] addSource() {
+        solver.addSource(field, fieldPrev);
+        return field;
+    }
+
+    @Benchmark
+    public float[] diffuse() {
+        solver.diffuse(field, fieldPrev, 0.01f, 0);
+        return field;
+    }
+
+    @Benchmark
+    public float[] advect() {
+        solver.advect(field, fieldPrev, solver.getVelocitiesX(), solver.getVelocitiesY(), 0);
+        return field;
+    }
+
+    /**
+     * Two velocity components and a density in one pass, to compare with three {@link #advect()} calls.
+     */
+    @Benchmark
+    public float[][] advectFused() {
+        solver.advect(fields, prevFields, FUSED_BOUNDS, solver.getVelocitiesX(), solver.getVelocitiesY());
+        return fields;
+    }
+
+    @Benchmark
+    public float[] project() {
+        solver.project();
+        return solver.getVelocitiesX();
+    }
+
+    @Benchmark
+    public float[] setBound() {
+        solver.setBound(1, field);
+        return field;
+    }
+
+    @Benchmark
+    public float[] step() {
+        solver.step(DELTA_TIME);
+        return solver.getDensities();
+    }
+
+    private static void fill(Random random, float[] arr) {
+        for (int i = 0; i < arr.length; i++) {
+            arr[i] = random.nextFloat() * 2 - 1;
+        }
+    }
+}
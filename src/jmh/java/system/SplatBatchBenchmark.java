@@ -0,0 +1,41 @@
+package system;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks the CPU side of a frame of user input in {@link Engine}: filling a {@link SplatBatch} and packing it into
+ * the upload buffer. The cost depends on the number of splats only, not on the grid size.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Thread)
+public class SplatBatchBenchmark {
+    @Param({"0", "1", "16", "256"})
+    public int splatCount;
+
+    private SplatBatch splats;
+    private FloatBuffer uploadBuffer;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        splats = new SplatBatch(256);
+        uploadBuffer = ByteBuffer.allocateDirect(256 * SplatBatch.FLOATS_PER_SPLAT * Float.BYTES)
+                .order(ByteOrder.nativeOrder()).asFloatBuffer();
+    }
+
+    @Benchmark
+    public FloatBuffer addAndPack() {
+        for (int i = 0; i < splatCount; i++)
+            splats.add(i, i, 2, 1, i, -i);
+
+        uploadBuffer.clear();
+        splats.pack(uploadBuffer);
+        splats.clear();
+        return uploadBuffer;
+    }
+}
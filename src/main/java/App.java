@@ -1,16 +1,18 @@
-import org.lwjgl.BufferUtils;
 import org.lwjgl.Version;
 import org.lwjgl.glfw.GLFWErrorCallback;
 import org.lwjgl.glfw.GLFWVidMode;
 import org.lwjgl.opengl.GL;
 import org.lwjgl.system.MemoryStack;
-import org.lwjgl.system.MemoryUtil;
 import system.*;
 
-import java.nio.FloatBuffer;
+import java.io.IOException;
+import java.nio.DoubleBuffer;
 import java.nio.IntBuffer;
+import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.EnumMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
 
 import static org.lwjgl.glfw.Callbacks.glfwFreeCallbacks;
@@ -22,15 +24,52 @@ import static org.lwjgl.system.MemoryUtil.NULL;
 public class App {
     private static final int RENDER_MODE_DENSITY = 0;
     private static final int RENDER_MODE_VELOCITY = 1;
+    private static final Path CHECKPOINT_PATH = Path.of("fluid.checkpoint");
 
     private long window;
     private ShaderProgram screenProgram;
-    private FloatBuffer userInputBuffer;
     private List<VAO> vaos;
     private int width, height;
-    private float deltaTime;
     private Engine engine;
     private int renderMode;
+    // Set by F8, the last step of the next frame that steps runs with both pipelines.
+    private boolean comparePipelinesRequested;
+    private Engine.Pipeline pipeline = Engine.Pipeline.REFERENCE;
+    private int jacobiIterationsPerDispatch = 1;
+    private Engine.Relaxation diffusionRelaxation = Engine.Relaxation.IN_PLACE_JACOBI;
+    private Engine.Relaxation pressureRelaxation = Engine.Relaxation.IN_PLACE_JACOBI;
+    private float overRelaxation = 1;
+    private Map<Engine.Field, Texture.Precision> precisions = Map.of();
+    /**
+     * Steps to run next to a full precision engine before printing the density difference and exiting, or 0 to run
+     * interactively.
+     */
+    private int comparePrecisionSteps;
+    /**
+     * Seconds between two lines of GPU pass times, or 0 to only print them on request.
+     */
+    private float gpuTimingInterval;
+    private GpuTimer gpuTimer;
+    private float simulationRate = 60;
+    private int maxSubsteps = 4;
+    private FixedStepScheduler.Mode simulationMode = FixedStepScheduler.Mode.REAL_TIME;
+
+    /**
+     * Published by the GLFW callbacks and drained before every step.
+     */
+    private final InputEventQueue inputEvents = new InputEventQueue(256);
+    private final InputEventQueue.Listener inputListener = new InputEventQueue.Listener() {
+        @Override
+        public void drag(int x, int y, int movementX, int movementY) {
+            engine.userInput(x, y, movementX, movementY);
+        }
+
+        @Override
+        public void clear() {
+            engine.clear();
+            System.out.println("Cleared simulation data");
+        }
+    };
 
     public void run(int width, int height, String title) {
         this.width = width;
@@ -47,12 +86,64 @@ public class App {
         Engine.init();
 
         float scale = 0.25f;
-        engine = new Engine((int) (width * scale), (int) (height * scale));
-
-        loop();
+        engine = createEngine((int) (width * scale), (int) (height * scale), precisions);
+        gpuTimer = new GpuTimer();
+        engine.setTimer(gpuTimer);
+        System.out.println("Pipeline: " + pipeline + ", Jacobi iterations per dispatch: " +
+                jacobiIterationsPerDispatch + ", diffusion: " + diffusionRelaxation + ", pressure: " +
+                pressureRelaxation + ", over-relaxation: " + overRelaxation);
+        System.out.println("Precision: density " + engine.getPrecision(Engine.Field.DENSITY) + ", velocity " +
+                engine.getPrecision(Engine.Field.VELOCITY) + ", divergence " +
+                engine.getPrecision(Engine.Field.DIVERGENCE) + ", pressure " +
+                engine.getPrecision(Engine.Field.PRESSURE));
+        System.out.println("Simulation: " + simulationRate + " steps per second, " + simulationMode +
+                ", at most " + maxSubsteps + " steps per frame");
+
+        if (comparePrecisionSteps > 0)
+            comparePrecision(comparePrecisionSteps);
+        else
+            loop();
         free();
     }
 
+    private Engine createEngine(int nX, int nY, Map<Engine.Field, Texture.Precision> precisions) {
+        Engine engine = new Engine(nX, nY, precisions);
+        // The textures start with undefined content.
+        engine.clear();
+        engine.setPipeline(pipeline);
+        engine.setJacobiIterationsPerDispatch(jacobiIterationsPerDispatch);
+        engine.setDiffusionRelaxation(diffusionRelaxation);
+        engine.setPressureRelaxation(pressureRelaxation);
+        engine.setOverRelaxation(overRelaxation);
+        return engine;
+    }
+
+    /**
+     * Steps the engine and a full precision one with the same settings and splats, and prints the largest difference
+     * between their densities. Both run every Jacobi iteration, as the early exits depend on when the residuals reach
+     * the CPU. With all fields at full precision this checks that the results are reproducible, which needs one of the
+     * reproducible relaxations.
+     */
+    private void comparePrecision(int steps) {
+        Engine reference = createEngine(engine.nX, engine.nY, Map.of());
+        engine.setResidualCheckInterval(0);
+        reference.setResidualCheckInterval(0);
+
+        float deltaTime = 1 / simulationRate;
+        for (int step = 0; step < steps; step++) {
+            // A splat dragged back and forth through the middle of the grid.
+            int x = engine.nX / 4 + step % (engine.nX / 2);
+            int movementY = step / 10 % 2 == 0 ? 1 : -1;
+            engine.userInput(x, engine.nY / 2, 1, movementY);
+            reference.userInput(x, engine.nY / 2, 1, movementY);
+            engine.step(deltaTime);
+            reference.step(deltaTime);
+        }
+
+        System.out.println("Largest density difference to full precision after " + steps + " steps: " +
+                engine.compareDensity(reference));
+    }
+
     private void initGLFW(String title) {
         // Setup an error callback. The default implementation
         // will print the error message in System.err.
@@ -84,32 +175,58 @@ public class App {
                 renderMode = RENDER_MODE_VELOCITY;
                 System.out.println("Render mode: VELOCITY");
             } else if (key == GLFW_KEY_F3 && action == GLFW_PRESS) {
-                engine.clear();
-                System.out.println("Cleared simulation data");
+                inputEvents.clear();
+            } else if (key == GLFW_KEY_F4 && action == GLFW_PRESS) {
+                System.out.println("Diffusion: " + engine.getDiffusionStats() +
+                        ". Pressure: " + engine.getPressureStats());
+            } else if (key == GLFW_KEY_F5 && action == GLFW_PRESS) {
+                try {
+                    engine.saveCheckpoint(CHECKPOINT_PATH, false);
+                    System.out.println("Saved checkpoint of step " + engine.getStepCount() + " to " + CHECKPOINT_PATH);
+                } catch (IOException e) {
+                    System.err.println("Could not save checkpoint: " + e.getMessage());
+                }
+            } else if (key == GLFW_KEY_F6 && action == GLFW_PRESS) {
+                Engine.Pipeline next = engine.getPipeline() == Engine.Pipeline.FUSED ?
+                        Engine.Pipeline.REFERENCE : Engine.Pipeline.FUSED;
+                engine.setPipeline(next);
+                System.out.println("Pipeline: " + next);
+            } else if (key == GLFW_KEY_F7 && action == GLFW_PRESS) {
+                System.out.println(gpuTimer.summary());
+            } else if (key == GLFW_KEY_F8 && action == GLFW_PRESS) {
+                comparePipelinesRequested = true;
+            } else if (key == GLFW_KEY_F9 && action == GLFW_PRESS) {
+                try {
+                    engine.loadCheckpoint(CHECKPOINT_PATH);
+                    System.out.println("Loaded checkpoint of step " + engine.getStepCount() +
+                            " from " + CHECKPOINT_PATH);
+                } catch (IOException | IllegalArgumentException e) {
+                    System.err.println("Could not load checkpoint: " + e.getMessage());
+                }
             }
         });
 
-        // Setup a mouse callback.
+        // Setup mouse callbacks. They only publish input events, which are applied before the next step.
+        glfwSetMouseButtonCallback(window, (window, button, action, mods) -> {
+            if (button != GLFW_MOUSE_BUTTON_LEFT) return;
+
+            if (action == GLFW_PRESS) {
+                try (MemoryStack stack = stackPush()) {
+                    DoubleBuffer xpos = stack.mallocDouble(1);
+                    DoubleBuffer ypos = stack.mallocDouble(1);
+                    glfwGetCursorPos(window, xpos, ypos);
+                    inputEvents.press(toGridX(xpos.get(0)), toGridY(ypos.get(0)));
+                }
+            } else if (action == GLFW_RELEASE) {
+                inputEvents.release();
+            }
+        });
         glfwSetCursorPosCallback(window, (window, xpos, ypos) -> {
             if (glfwGetMouseButton(window, GLFW_MOUSE_BUTTON_LEFT) == GLFW_RELEASE) {
                 return;
             }
 
-            userInputBuffer.clear();
-            for (int i = 0; i < userInputBuffer.capacity(); i++) {
-                userInputBuffer.put(0);
-            }
-
-            // This check can prevent the bug of not updating user input texture.
-            if(!engine.hasCleared()) engine.clear();
-
-            // Mouse dragging logic:
-            ypos = height - ypos; // Invert Y coordinate
-
-            xpos *= ((double) engine.nX / width);
-            ypos *= ((double) engine.nY / height);
-
-            engine.userInput((int) xpos, (int) ypos);
+            inputEvents.drag(toGridX(xpos), toGridY(ypos));
         });
 
         // Get the thread stack and push a new frame
@@ -134,16 +251,14 @@ public class App {
 
         // Make the OpenGL context current
         glfwMakeContextCurrent(window);
-        // Enable v-sync
-        glfwSwapInterval(1);
+        // Enable v-sync, unless the simulation should run as fast as possible
+        glfwSwapInterval(simulationMode == FixedStepScheduler.Mode.UNCAPPED ? 0 : 1);
 
         // Make the window visible
         glfwShowWindow(window);
     }
 
     private void initTextures() {
-        // For the user input texture
-        userInputBuffer = BufferUtils.createFloatBuffer(width * height * 3);
         Texture.initPrograms();
     }
 
@@ -188,8 +303,10 @@ public class App {
             public void draw() {
                 if (renderMode == RENDER_MODE_DENSITY) {
                     engine.getDensityTexture().bindToUnit(0);
+                    engine.getPreviousDensityTexture().bindToUnit(1);
                 } else if (renderMode == RENDER_MODE_VELOCITY) {
                     engine.getVelocityTexture().bindToUnit(0);
+                    engine.getPreviousVelocityTexture().bindToUnit(1);
                 }
                 super.draw();
             }
@@ -214,22 +331,54 @@ public class App {
     }
 
     private void loop() {
+        FixedStepScheduler scheduler = new FixedStepScheduler(simulationRate, maxSubsteps, simulationMode);
+        float deltaTime = scheduler.getStepTime();
+        long lastGpuTimingPrint = System.nanoTime();
+
         // Run the rendering loop until the user has attempted to close
         // the window or has pressed the ESCAPE key.
         while (!glfwWindowShouldClose(window)) {
-            long loopStartTime = System.currentTimeMillis();
+            long loopStartTime = System.nanoTime();
+            FrameEvent frameEvent = new FrameEvent(engine.nX, engine.nY, deltaTime);
+            frameEvent.begin();
 
             glClear(GL_COLOR_BUFFER_BIT | GL_DEPTH_BUFFER_BIT); // clear the framebuffer
 
-            // Perform the fluid simulation step
-            engine.step(deltaTime);
+            // Perform the fluid simulation steps that are due. Input waits for a step, and every step drains it, as
+            // its sources are consumed by the step. The state before the last step is only copied when the frame is
+            // drawn between the two.
+            int steps = scheduler.beginFrame(loopStartTime);
+            for (int i = 0; i < steps; i++) {
+                inputEvents.drain(inputListener);
+                if (i == steps - 1 && scheduler.interpolates()) engine.savePreviousState();
+                if (i == steps - 1 && comparePipelinesRequested) {
+                    comparePipelinesRequested = false;
+                    float[] differences = engine.comparePipelines(deltaTime);
+                    System.out.println("Largest difference between the reference and the fused pipeline: density " +
+                            differences[0] + ", velocity " + differences[1]);
+                } else {
+                    engine.step(deltaTime);
+                }
+            }
 
-            // Render the models for rasterization
+            // Render the models for rasterization, between the last two steps
+            PhaseEvent renderEvent = new PhaseEvent(PhaseEvent.Phase.RENDER, engine.nX, engine.nY, deltaTime);
+            renderEvent.begin();
+            gpuTimer.mark(GpuTimer.Pass.RENDER);
             screenProgram.use();
+            screenProgram.setUniform("alpha", scheduler.getAlpha());
             for (VAO vao : vaos) {
                 vao.bind();
                 vao.draw();
             }
+            gpuTimer.endFrame();
+            renderEvent.end(0);
+
+            if (gpuTimingInterval > 0 && loopStartTime - lastGpuTimingPrint >= gpuTimingInterval * 1e9) {
+                System.out.println(gpuTimer.summary() + ", " + scheduler.getStepCount() + " steps, " +
+                        scheduler.getDroppedStepCount() + " dropped");
+                lastGpuTimingPrint = loopStartTime;
+            }
 
             glfwSwapBuffers(window); // swap the color buffers
 
@@ -237,16 +386,25 @@ public class App {
             // invoked during this call.
             glfwPollEvents();
 
-            deltaTime = (float) (System.currentTimeMillis() - loopStartTime) / 1000.0f;
+            frameEvent.commit();
         }
     }
 
+    private int toGridX(double xpos) {
+        return (int) (xpos * engine.nX / width);
+    }
+
+    private int toGridY(double ypos) {
+        // Invert Y coordinate
+        return (int) ((height - ypos) * engine.nY / height);
+    }
+
     private void free() {
+        gpuTimer.cleanup();
         Texture.cleanupAll();
         ShaderProgram.cleanupAll();
         BufferObject.cleanupAll();
         VAO.cleanupAll();
-        MemoryUtil.memFree(userInputBuffer);
 
         glfwFreeCallbacks(window);
         System.out.println("GLFW Callbacks freed!");
@@ -263,14 +421,54 @@ public class App {
 
     public static void main(String[] args) {
         String appType = null;
-
-        for (int i = 0; i < args.length; i++) {
-            if ("--app".equals(args[i]) && i + 1 < args.length) {
+        Engine.Pipeline pipeline = Engine.Pipeline.REFERENCE;
+        int jacobiIterationsPerDispatch = 1;
+        Engine.Relaxation diffusionRelaxation = Engine.Relaxation.IN_PLACE_JACOBI;
+        Engine.Relaxation pressureRelaxation = Engine.Relaxation.IN_PLACE_JACOBI;
+        float overRelaxation = 1;
+        int comparePrecisionSteps = 0;
+        Texture.Precision precision = Texture.Precision.FULL;
+        Map<Engine.Field, Texture.Precision> fieldPrecisions = new EnumMap<>(Engine.Field.class);
+        float gpuTimingInterval = 0;
+        float simulationRate = 60;
+        int maxSubsteps = 4;
+        FixedStepScheduler.Mode simulationMode = FixedStepScheduler.Mode.REAL_TIME;
+
+        for (int i = 0; i + 1 < args.length; i++) {
+            if ("--app".equals(args[i]))
                 appType = args[i + 1].toLowerCase();
-                break;
-            }
+            else if ("--pipeline".equals(args[i]))
+                pipeline = Engine.Pipeline.valueOf(args[i + 1].toUpperCase());
+            else if ("--jacobi-iterations-per-dispatch".equals(args[i]))
+                jacobiIterationsPerDispatch = Integer.parseInt(args[i + 1]);
+            else if ("--diffusion-relaxation".equals(args[i]))
+                diffusionRelaxation = Engine.Relaxation.valueOf(args[i + 1].toUpperCase());
+            else if ("--pressure-relaxation".equals(args[i]))
+                pressureRelaxation = Engine.Relaxation.valueOf(args[i + 1].toUpperCase());
+            else if ("--over-relaxation".equals(args[i]))
+                overRelaxation = Float.parseFloat(args[i + 1]);
+            else if ("--compare-precision".equals(args[i]))
+                comparePrecisionSteps = Integer.parseInt(args[i + 1]);
+            else if ("--precision".equals(args[i]))
+                precision = Texture.Precision.valueOf(args[i + 1].toUpperCase());
+            else if (args[i].startsWith("--") && args[i].endsWith("-precision")) {
+                // --density-precision, --velocity-precision, --divergence-precision or --pressure-precision
+                String field = args[i].substring(2, args[i].length() - "-precision".length());
+                fieldPrecisions.put(Engine.Field.valueOf(field.toUpperCase()),
+                        Texture.Precision.valueOf(args[i + 1].toUpperCase()));
+            } else if ("--gpu-timing".equals(args[i]))
+                gpuTimingInterval = Float.parseFloat(args[i + 1]);
+            else if ("--sim-rate".equals(args[i]))
+                simulationRate = Float.parseFloat(args[i + 1]);
+            else if ("--max-substeps".equals(args[i]))
+                maxSubsteps = Integer.parseInt(args[i + 1]);
+            else if ("--sim-mode".equals(args[i]))
+                simulationMode = FixedStepScheduler.Mode.valueOf(args[i + 1].toUpperCase());
         }
 
+        for (Engine.Field field : Engine.Field.values())
+            fieldPrecisions.putIfAbsent(field, precision);
+
         if (appType == null) {
             System.out.println("\"--app\" argument not set. Use GPU app by default.");
             appType = "gpu";
@@ -279,11 +477,27 @@ public class App {
         switch (appType) {
             case "cpu" -> {
                 System.out.println("Starting Swing App...");
-                AppSwing.main(null);
+                AppSwing.main(args);
+            }
+            case "batch" -> {
+                System.out.println("Starting headless batch run...");
+                BatchRunner.main(args);
             }
             case "gpu" -> {
                 System.out.println("Starting OpenGL App...");
-                new App().run(800, 600, "Fluid Simulation");
+                App app = new App();
+                app.pipeline = pipeline;
+                app.jacobiIterationsPerDispatch = jacobiIterationsPerDispatch;
+                app.diffusionRelaxation = diffusionRelaxation;
+                app.pressureRelaxation = pressureRelaxation;
+                app.overRelaxation = overRelaxation;
+                app.precisions = fieldPrecisions;
+                app.comparePrecisionSteps = comparePrecisionSteps;
+                app.gpuTimingInterval = gpuTimingInterval;
+                app.simulationRate = simulationRate;
+                app.maxSubsteps = maxSubsteps;
+                app.simulationMode = simulationMode;
+                app.run(800, 600, "Fluid Simulation");
             }
             default -> {
                 System.out.println("Unavailable app argument " + appType + ". Exiting with code 1.");
@@ -1,4 +1,16 @@
 import org.joml.Math;
+import system.Colormap;
+import system.ConjugateGradientSolver;
+import system.CpuSolver;
+import system.FieldFrame;
+import system.FieldRenderer;
+import system.FixedStepScheduler;
+import system.FrameEvent;
+import system.FrameExporter;
+import system.InputEventQueue;
+import system.PhaseEvent;
+import system.TiledJacobi;
+import system.TripleFrameBuffer;
 
 import javax.swing.*;
 import java.awt.*;
@@ -6,346 +18,407 @@ import java.awt.event.KeyAdapter;
 import java.awt.event.KeyEvent;
 import java.awt.event.MouseAdapter;
 import java.awt.event.MouseEvent;
+import java.awt.event.WindowAdapter;
+import java.awt.event.WindowEvent;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
 
 public class AppSwing extends JFrame {
-    private static final int RENDER_MODE_DENSITY = 0;
-    private static final int RENDER_MODE_VELOCITY = 1;
-
-    private final int n = 200;
-    private final int iterationCount = 20;
-    private final float[][] divergence = new float[n + 2][n + 2];
-    private final float[][] pressure = new float[n + 2][n + 2];
+    private static final Path CHECKPOINT_PATH = Path.of("fluid.checkpoint");
+    private static final long TITLE_INTERVAL_NANOS = 500_000_000L;
+
+    private final int nX;
+    private final int nY;
+    private final CpuSolver solver;
+    private final FrameExporter exporter;
+    private final FixedStepScheduler scheduler;
     private final FluidPanel fluidPanel;
+    /**
+     * Hands the fields after each frame's steps from the simulation thread to the panel.
+     */
+    private final TripleFrameBuffer frames;
+
+    private final InputEventQueue inputEvents = new InputEventQueue(256);
 
-    private float[][] prevDensities = new float[n + 2][n + 2];
-    private float[][] densities = new float[n + 2][n + 2];
-    private float[][] prevVelocitiesX = new float[n + 2][n + 2];
-    private float[][] prevVelocitiesY = new float[n + 2][n + 2];
-    private float[][] velocitiesX = new float[n + 2][n + 2];
-    private float[][] velocitiesY = new float[n + 2][n + 2];
-    private float deltaTime;
-    private boolean isLeftMouseButtonDown;
-    private Point lastMousePos;
+    /**
+     * Turns the drained input events into solver sources. Runs on the simulation thread.
+     */
+    private final InputEventQueue.Listener inputListener = new InputEventQueue.Listener() {
+        @Override
+        public void drag(int x, int y, int movementX, int movementY) {
+            // Add density and velocity sources around the mouse position
+            int halfSize = 5;
+            for (int i = -halfSize; i <= halfSize; i++) {
+                for (int j = -halfSize; j <= halfSize; j++) {
+                    int sourceX = Math.clamp(1, nX, x + i);
+                    int sourceY = Math.clamp(1, nY, y + j);
+                    solver.setDensitySource(sourceX, sourceY, 10f);
+                    solver.setVelocitySource(sourceX, sourceY, movementX, movementY);
+                }
+            }
+        }
 
-    public AppSwing() {
-        setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
+        @Override
+        public void clear() {
+            solver.clear();
+            System.out.println("Cleared sources");
+        }
+    };
+
+    // Checkpoints are taken and restored by the simulation thread, between two steps.
+    private volatile boolean saveRequested;
+    private volatile boolean loadRequested;
+
+    private final Thread simulationThread;
+    private volatile boolean running = true;
+    private final AtomicBoolean stopped = new AtomicBoolean();
+
+    /**
+     * @param exporter  Receives the fields after every step, or {@code null} to export nothing.
+     * @param scheduler Decides when the simulation thread steps. The panel is repainted after the steps of each frame,
+     *                  so the frame rate follows the step rate and nothing needs to be interpolated.
+     * @param renderer  Colors the fields for the panel, which draws them scaled to its size.
+     * @param scale     The panel's size in pixels per cell, independent of the grid size.
+     */
+    public AppSwing(CpuSolver solver, FrameExporter exporter, FixedStepScheduler scheduler, FieldRenderer renderer,
+                    float scale) {
+        this.solver = solver;
+        this.nX = solver.nX;
+        this.nY = solver.nY;
+        this.exporter = exporter;
+        this.scheduler = scheduler;
+        this.frames = new TripleFrameBuffer(nX, nY);
+
+        // Closing the window exits through stop(), so the exporter can finish the frames it has queued.
+        setDefaultCloseOperation(JFrame.DO_NOTHING_ON_CLOSE);
+        addWindowListener(new WindowAdapter() {
+            @Override
+            public void windowClosing(WindowEvent e) {
+                exit();
+            }
+        });
 
         addKeyListener(new KeyAdapter() {
             @Override
             public void keyPressed(KeyEvent evt) {
                 // Exit on ESCAPE key press
                 if (evt.getKeyCode() == KeyEvent.VK_ESCAPE) {
-                    dispose();
-                    System.exit(0);
+                    exit();
                 }
 
                 // Change render mode to density on F1 key press
                 else if (evt.getKeyCode() == KeyEvent.VK_F1) {
-                    fluidPanel.renderMode = RENDER_MODE_DENSITY;
+                    fluidPanel.renderMode = FieldRenderer.Mode.DENSITY;
                     System.out.println("Render mode changed to DENSITY");
                 }
 
                 // Change render mode to velocity on F2 key press
                 else if (evt.getKeyCode() == KeyEvent.VK_F2) {
-                    fluidPanel.renderMode = RENDER_MODE_VELOCITY;
+                    fluidPanel.renderMode = FieldRenderer.Mode.VELOCITY;
                     System.out.println("Render mode changed to VELOCITY");
                 }
 
                 // Clear sources on F3 key press
                 else if (evt.getKeyCode() == KeyEvent.VK_F3) {
-                    clearSource(velocitiesX);
-                    clearSource(velocitiesY);
-                    clearSource(prevVelocitiesX);
-                    clearSource(prevVelocitiesY);
-                    clearSource(prevDensities);
-                    clearSource(densities);
-                    System.out.println("Cleared sources");
+                    inputEvents.clear();
+                }
+
+                // Save a checkpoint on F5 key press
+                else if (evt.getKeyCode() == KeyEvent.VK_F5) {
+                    saveRequested = true;
+                }
+
+                // Load the checkpoint on F9 key press
+                else if (evt.getKeyCode() == KeyEvent.VK_F9) {
+                    loadRequested = true;
                 }
             }
         });
 
-        addMouseListener(new MouseAdapter() {
+        // The mouse handlers run on the event dispatch thread and only publish events. The simulation thread applies
+        // them between two steps.
+        MouseAdapter mouseAdapter = new MouseAdapter() {
             @Override
             public void mousePressed(MouseEvent e) {
                 if (e.getButton() == MouseEvent.BUTTON1) {
-                    isLeftMouseButtonDown = true;
+                    inputEvents.press(toGridX(e.getX()), toGridY(e.getY()));
                 }
             }
 
             @Override
-            public void mouseReleased(MouseEvent e) {
-                lastMousePos = null;
+            public void mouseDragged(MouseEvent e) {
+                if (SwingUtilities.isLeftMouseButton(e)) {
+                    inputEvents.drag(toGridX(e.getX()), toGridY(e.getY()));
+                }
+            }
 
+            @Override
+            public void mouseReleased(MouseEvent e) {
                 if (e.getButton() == MouseEvent.BUTTON1) {
-                    isLeftMouseButtonDown = false;
+                    inputEvents.release();
                 }
             }
-        });
+        };
+        addMouseListener(mouseAdapter);
+        addMouseMotionListener(mouseAdapter);
 
         // Add the fluid panel as the canvas
-        fluidPanel = new FluidPanel(densities, velocitiesX, velocitiesY, n);
+        fluidPanel = new FluidPanel(frames, renderer, scale);
         add(fluidPanel);
 
         pack();
         setResizable(false);
         setVisible(true);
 
-        // Simulation thread
-        new Thread(() -> {
-            while (true) {
-                long startTime = System.currentTimeMillis();
-                getSourcesFromUI();
-
-                velocityStep();
-                densityStep();
-                clearSource(prevDensities);
-                clearSource(prevVelocitiesX);
-                clearSource(prevVelocitiesY);
-                fluidPanel.repaint();
-
-                long elapsedTime = System.currentTimeMillis() - startTime;
-                deltaTime = (float) elapsedTime / 1000.0f;
+        simulationThread = new Thread(() -> {
+            float deltaTime = scheduler.getStepTime();
+            long titleStartTime = System.nanoTime();
+            long titleStepNanos = 0;
+            int titleSteps = 0;
+
+            while (running) {
+                long startTime = System.nanoTime();
+                int steps = scheduler.beginFrame(startTime);
+                if (steps == 0) {
+                    // Sleep instead of spinning until the next step is due.
+                    LockSupport.parkNanos(scheduler.getNanosUntilNextStep(startTime));
+                    continue;
+                }
 
-                // Show elapsed time and FPS in the title bar
-                setTitle("Fluid Simulation - Elapsed Time: " + elapsedTime + " ms, FPS: " + (1000.0f / deltaTime));
-            }
-        }).start();
-    }
+                FrameEvent event = new FrameEvent(nX, nY, deltaTime);
+                event.begin();
 
-    private void getSourcesFromUI() {
-        Point mousePos = getMousePosition();
-        if (!isLeftMouseButtonDown || mousePos == null) return;
-
-        // Convert mouse coordinates to grid coordinates
-        int gridX = Math.clamp(1, n, (mousePos.x - getInsets().left) * n / (getWidth() - getInsets().left - getInsets().right));
-        int gridY = Math.clamp(1, n, (mousePos.y - getInsets().top) * n / (getHeight() - getInsets().top - getInsets().bottom));
-
-        // Add source at the mouse position
-        int halfSize = 5;
-        for (int i = -halfSize; i <= halfSize; i++) {
-            for (int j = -halfSize; j <= halfSize; j++) {
-                int sourceX = Math.clamp(1, n, gridX + i);
-                int sourceY = Math.clamp(1, n, gridY + j);
-                prevDensities[sourceX][sourceY] = 10f;
-            }
-        }
-
-        // Add velocity source at the mouse position
-        if (lastMousePos != null) {
-            for (int i = -halfSize; i <= halfSize; i++) {
-                for (int j = -halfSize; j <= halfSize; j++) {
-                    int sourceX = Math.clamp(1, n, gridX + i);
-                    int sourceY = Math.clamp(1, n, gridY + j);
+                handleCheckpointRequests();
+                for (int i = 0; i < steps; i++) {
+                    // Sources are consumed by every step, so each one gets the input of its own drain.
+                    inputEvents.drain(inputListener);
+                    solver.step(deltaTime);
+                    if (exporter != null) exporter.submit(solver);
+                }
+                frames.publish(solver);
+                fluidPanel.repaint();
 
-                    prevVelocitiesX[sourceX][sourceY] = mousePos.x - lastMousePos.x;
-                    prevVelocitiesY[sourceX][sourceY] = mousePos.y - lastMousePos.y;
+                event.commit();
+                long endTime = System.nanoTime();
+                titleStepNanos += endTime - startTime;
+                titleSteps += steps;
+
+                // Show the mean step time and the step rate in the title bar. Updating it every frame would allocate
+                // a string per frame and flood the event dispatch thread.
+                if (endTime - titleStartTime >= TITLE_INTERVAL_NANOS) {
+                    setTitle(String.format("Fluid Simulation - Step Time: %.2f ms, Steps/s: %.1f",
+                            titleStepNanos / 1e6 / titleSteps, titleSteps * 1e9 / (endTime - titleStartTime)));
+                    titleStartTime = endTime;
+                    titleStepNanos = 0;
+                    titleSteps = 0;
                 }
             }
-        }
+        }, "Simulation");
+        simulationThread.start();
+        // Also on Ctrl+C in the terminal.
+        Runtime.getRuntime().addShutdownHook(new Thread(this::stop, "Shutdown"));
+    }
 
-        lastMousePos = mousePos;
+    private void exit() {
+        stop();
+        dispose();
+        System.exit(0);
     }
 
-    private void addSource(float[][] arr, float[][] source) {
-        for (int i = 0; i < arr.length; i++) {
-            for (int j = 0; j < arr[0].length; j++) {
-                arr[i][j] += deltaTime * source[i][j];
-            }
+    /**
+     * Stops the simulation thread after its current frame, then waits until the exporter has written every frame it
+     * queued. Only the first call does anything.
+     */
+    private void stop() {
+        if (!stopped.compareAndSet(false, true)) return;
+
+        running = false;
+        try {
+            simulationThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         }
-    }
 
-    private void clearSource(float[][] source) {
-        for (int i = 0; i < source.length; i++) {
-            for (int j = 0; j < source[0].length; j++) {
-                source[i][j] = 0;
-            }
+        if (exporter != null) {
+            exporter.close();
+            System.out.println("Exported " + exporter.getWrittenCount() + " frames, dropped " +
+                    exporter.getDroppedCount() + ", failed " + exporter.getFailedCount());
         }
     }
 
-
-    private void diffuse(float[][] arr, float[][] arrPrev, float rate, int bound) {
-        float a = deltaTime * rate * n * n;
-
-        for (int k = 0; k < iterationCount; k++) {
-            for (int i = 1; i <= n; i++) {
-                for (int j = 1; j <= n; j++) {
-                    float left = arr[i - 1][j];
-                    float right = arr[i + 1][j];
-                    float up = arr[i][j - 1];
-                    float down = arr[i][j + 1];
-                    arr[i][j] = (arrPrev[i][j] + a * (left + right + up + down)) / (1 + 4 * a);
-                }
+    private void handleCheckpointRequests() {
+        if (saveRequested) {
+            saveRequested = false;
+            try {
+                solver.saveCheckpoint(CHECKPOINT_PATH);
+                System.out.println("Saved checkpoint of step " + solver.getStepCount() +
+                        " to " + CHECKPOINT_PATH);
+            } catch (IOException e) {
+                System.err.println("Could not save checkpoint: " + e.getMessage());
             }
-            setBound(bound, arr);
         }
-    }
 
-    private void advect(float[][] arr, int bound) {
-        float deltaTime0 = deltaTime * n;
-
-        for (int i = 1; i <= n; i++) {
-            for (int j = 1; j <= n; j++) {
-                float x = Math.clamp(0.5f, n + 0.5f, i - deltaTime0 * velocitiesX[i][j]);
-                float y = Math.clamp(0.5f, n + 0.5f, j - deltaTime0 * velocitiesY[i][j]);
-
-                int i0 = (int) x;
-                int i1 = i0 + 1;
-                int j0 = (int) y;
-                int j1 = j0 + 1;
-
-                float s1 = x - i0;
-                float s0 = 1 - s1;
-                float t1 = y - j0;
-                float t0 = 1 - t1;
-
-                arr[i][j] = s0 * (t0 * arr[i0][j0] + t1 * arr[i0][j1]) +
-                        s1 * (t0 * arr[i1][j0] + t1 * arr[i1][j1]);
+        if (loadRequested) {
+            loadRequested = false;
+            try {
+                solver.loadCheckpoint(CHECKPOINT_PATH);
+                System.out.println("Loaded checkpoint of step " + solver.getStepCount() +
+                        " from " + CHECKPOINT_PATH);
+            } catch (IOException | IllegalArgumentException e) {
+                System.err.println("Could not load checkpoint: " + e.getMessage());
             }
         }
-        setBound(bound, arr);
     }
 
-    private void project() {
-        float h = 1.0f / n;
+    private int toGridX(int mouseX) {
+        return Math.clamp(1, nX, (mouseX - getInsets().left) * nX / (getWidth() - getInsets().left - getInsets().right));
+    }
 
-        for (int i = 1; i <= n; i++) {
-            for (int j = 1; j <= n; j++) {
-                divergence[i][j] =
-                        -0.5f * h * (velocitiesX[i + 1][j] - velocitiesX[i - 1][j] +
-                                velocitiesY[i][j + 1] - velocitiesY[i][j - 1]);
+    private int toGridY(int mouseY) {
+        return Math.clamp(1, nY, (mouseY - getInsets().top) * nY / (getHeight() - getInsets().top - getInsets().bottom));
+    }
 
-                pressure[i][j] = 0;
-            }
-        }
-        setBound(0, divergence);
-        setBound(0, pressure);
-
-        for (int k = 0; k < iterationCount; k++) {
-            for (int i = 1; i <= n; i++) {
-                for (int j = 1; j <= n; j++) {
-                    pressure[i][j] = (pressure[i - 1][j] + pressure[i + 1][j] +
-                            pressure[i][j - 1] + pressure[i][j + 1] + divergence[i][j]) / 4;
+    public static void main(String[] args) {
+        int nX = 200;
+        int nY = 200;
+        int parallelism = Runtime.getRuntime().availableProcessors();
+        CpuSolver.Pipeline pipeline = CpuSolver.Pipeline.REFERENCE;
+        CpuSolver.Relaxation relaxation = null;
+        int tileCacheBytes = TiledJacobi.DEFAULT_CACHE_BYTES;
+        int tileIterations = TiledJacobi.DEFAULT_ITERATIONS_PER_TILE;
+        CpuSolver.LinearSolver pressureSolver = CpuSolver.LinearSolver.RELAXATION;
+        CpuSolver.LinearSolver diffusionSolver = CpuSolver.LinearSolver.RELAXATION;
+        ConjugateGradientSolver.Preconditioner preconditioner = ConjugateGradientSolver.Preconditioner.JACOBI;
+        // 0 keeps the solver's defaults.
+        int cgMaxIterations = 0;
+        float cgTolerance = 0;
+        Path exportDirectory = null;
+        FrameExporter.Format exportFormat = FrameExporter.Format.PNG;
+        FrameExporter.BackPressure exportBackPressure = FrameExporter.BackPressure.DROP;
+        Colormap colormap = Colormap.GRAYSCALE;
+        float simulationRate = 60;
+        int maxSubsteps = 4;
+        FixedStepScheduler.Mode simulationMode = FixedStepScheduler.Mode.REAL_TIME;
+        float scale = 1;
+
+        if (args != null) {
+            for (int i = 0; i + 1 < args.length; i++) {
+                if ("--n".equals(args[i])) {
+                    nX = Integer.parseInt(args[i + 1]);
+                    nY = nX;
+                } else if ("--nx".equals(args[i])) {
+                    nX = Integer.parseInt(args[i + 1]);
+                } else if ("--ny".equals(args[i])) {
+                    nY = Integer.parseInt(args[i + 1]);
+                } else if ("--threads".equals(args[i])) {
+                    parallelism = Integer.parseInt(args[i + 1]);
+                } else if ("--pipeline".equals(args[i])) {
+                    pipeline = CpuSolver.Pipeline.valueOf(args[i + 1].toUpperCase());
+                } else if ("--relaxation".equals(args[i])) {
+                    relaxation = CpuSolver.Relaxation.valueOf(args[i + 1].toUpperCase());
+                } else if ("--tile-cache".equals(args[i])) {
+                    tileCacheBytes = Integer.parseInt(args[i + 1]) << 10;
+                } else if ("--tile-iterations".equals(args[i])) {
+                    tileIterations = Integer.parseInt(args[i + 1]);
+                } else if ("--pressure-solver".equals(args[i])) {
+                    pressureSolver = CpuSolver.LinearSolver.valueOf(args[i + 1].toUpperCase());
+                } else if ("--diffusion-solver".equals(args[i])) {
+                    diffusionSolver = CpuSolver.LinearSolver.valueOf(args[i + 1].toUpperCase());
+                } else if ("--preconditioner".equals(args[i])) {
+                    preconditioner = ConjugateGradientSolver.Preconditioner.valueOf(args[i + 1].toUpperCase());
+                } else if ("--cg-max-iterations".equals(args[i])) {
+                    cgMaxIterations = Integer.parseInt(args[i + 1]);
+                } else if ("--cg-tolerance".equals(args[i])) {
+                    cgTolerance = Float.parseFloat(args[i + 1]);
+                } else if ("--export".equals(args[i])) {
+                    exportDirectory = Path.of(args[i + 1]);
+                } else if ("--export-format".equals(args[i])) {
+                    exportFormat = FrameExporter.Format.valueOf(args[i + 1].toUpperCase());
+                } else if ("--export-policy".equals(args[i])) {
+                    exportBackPressure = FrameExporter.BackPressure.valueOf(args[i + 1].toUpperCase());
+                } else if ("--colormap".equals(args[i])) {
+                    colormap = Colormap.valueOf(args[i + 1].toUpperCase());
+                } else if ("--sim-rate".equals(args[i])) {
+                    simulationRate = Float.parseFloat(args[i + 1]);
+                } else if ("--max-substeps".equals(args[i])) {
+                    maxSubsteps = Integer.parseInt(args[i + 1]);
+                } else if ("--sim-mode".equals(args[i])) {
+                    simulationMode = FixedStepScheduler.Mode.valueOf(args[i + 1].toUpperCase());
+                } else if ("--scale".equals(args[i])) {
+                    scale = Float.parseFloat(args[i + 1]);
                 }
             }
-            setBound(0, pressure);
         }
 
-        for (int i = 1; i <= n; i++) {
-            for (int j = 1; j <= n; j++) {
-                velocitiesX[i][j] -= 0.5f * (pressure[i + 1][j] - pressure[i - 1][j]) / h;
-                velocitiesY[i][j] -= 0.5f * (pressure[i][j + 1] - pressure[i][j - 1]) / h;
-            }
+        CpuSolver solver = new CpuSolver(nX, nY, parallelism);
+        solver.setPipeline(pipeline);
+        if (relaxation != null) solver.setRelaxation(relaxation);
+        solver.setPressureSolver(pressureSolver);
+        solver.setDiffusionSolver(diffusionSolver);
+        solver.getConjugateGradient().setPreconditioner(preconditioner);
+        if (cgMaxIterations > 0) solver.getConjugateGradient().setMaxIterations(cgMaxIterations);
+        if (cgTolerance > 0) solver.getConjugateGradient().setTolerance(cgTolerance);
+        System.out.println("Grid: " + nX + "x" + nY + ", solver threads: " + parallelism + ", pipeline: " + pipeline +
+                ", relaxation: " + solver.getRelaxation() + ", kernels: " + solver.getKernels().getName() +
+                ", pressure solver: " + pressureSolver + ", diffusion solver: " + diffusionSolver +
+                ", preconditioner: " + preconditioner);
+        if (solver.getRelaxation() == CpuSolver.Relaxation.TILED_JACOBI) {
+            solver.getTiledJacobi().setCacheBytes(tileCacheBytes);
+            solver.getTiledJacobi().setIterationsPerTile(tileIterations);
+            System.out.println(solver.getTiledJacobi());
         }
-        setBound(1, velocitiesX);
-        setBound(2, velocitiesY);
-    }
 
-    private void setBound(int bound, float[][] arr) {
-        for (int i = 1; i <= n; i++) {
-            arr[0][i] = bound == 1 ? -arr[1][i] : arr[1][i];
-            arr[n + 1][i] = bound == 1 ? -arr[n][i] : arr[n][i];
-            arr[i][0] = bound == 2 ? -arr[i][1] : arr[i][1];
-            arr[i][n + 1] = bound == 2 ? -arr[i][n] : arr[i][n];
+        FrameExporter exporter = null;
+        if (exportDirectory != null) {
+            try {
+                exporter = new FrameExporter(exportDirectory, nX, nY, exportFormat, exportBackPressure);
+                exporter.setColormap(colormap);
+            } catch (IOException e) {
+                System.err.println("Could not export to " + exportDirectory + ": " + e.getMessage());
+                System.exit(1);
+            }
+            System.out.println("Exporting " + exportFormat + " frames to " + exportDirectory + ", " +
+                    exportBackPressure + " when the writers fall behind");
         }
-        arr[0][0] = 0.5f * (arr[1][0] + arr[0][1]);
-        arr[0][n + 1] = 0.5f * (arr[1][n + 1] + arr[0][n]);
-        arr[n + 1][0] = 0.5f * (arr[n][0] + arr[n + 1][1]);
-        arr[n + 1][n + 1] = 0.5f * (arr[n][n + 1] + arr[n + 1][n]);
-    }
-
-    private void densityStep() {
-        addSource(densities, prevDensities);
 
-        // swap and diffuse
-        float[][] temp = prevDensities;
-        prevDensities = densities;
-        densities = temp;
+        FixedStepScheduler scheduler = new FixedStepScheduler(simulationRate, maxSubsteps, simulationMode);
+        System.out.println("Simulation: " + simulationRate + " steps per second, " + simulationMode +
+                ", at most " + maxSubsteps + " steps per frame");
 
-        float diffusionRate = 0.1f;
-        diffuse(densities, prevDensities, diffusionRate, 0);
+        FieldRenderer renderer = new FieldRenderer(nX, nY, parallelism);
+        renderer.setColormap(colormap);
 
-        // swap and advect
-        temp = prevDensities;
-        prevDensities = densities;
-        densities = temp;
-
-        advect(densities, 0);
-    }
-
-    private void velocityStep() {
-        addSource(velocitiesX, prevVelocitiesX);
-        addSource(velocitiesY, prevVelocitiesY);
-
-        // swap and diffuse
-        float[][] temp = prevVelocitiesX;
-        prevVelocitiesX = velocitiesX;
-        velocitiesX = temp;
-
-        temp = prevVelocitiesY;
-        prevVelocitiesY = velocitiesY;
-        velocitiesY = temp;
-
-        float viscosity = 0.01f;
-        diffuse(velocitiesX, prevVelocitiesX, viscosity, 1);
-        diffuse(velocitiesY, prevVelocitiesY, viscosity, 2);
-
-        project();
-
-        // swap and advect
-        temp = prevVelocitiesX;
-        prevVelocitiesX = velocitiesX;
-        velocitiesX = temp;
-
-        temp = prevVelocitiesY;
-        prevVelocitiesY = velocitiesY;
-        velocitiesY = temp;
-
-        advect(velocitiesX, 1);
-        advect(velocitiesY, 2);
-
-
-        project();
-    }
-
-    public static void main(String[] args) {
-        SwingUtilities.invokeLater(AppSwing::new);
+        FrameExporter finalExporter = exporter;
+        float finalScale = scale;
+        SwingUtilities.invokeLater(() -> new AppSwing(solver, finalExporter, scheduler, renderer, finalScale));
     }
 
     static class FluidPanel extends JPanel {
-        private final float[][] densities, velocitiesX, velocitiesY;
-        private final int n;
-        public int renderMode;
-
-        public FluidPanel(float[][] densities, float[][] velocitiesX, float[][] velocitiesY, int n) {
-            this.densities = densities;
-            this.velocitiesX = velocitiesX;
-            this.velocitiesY = velocitiesY;
-            this.n = n;
-            setPreferredSize(new Dimension(n, n));
+        private final TripleFrameBuffer frames;
+        private final FieldRenderer renderer;
+        public volatile FieldRenderer.Mode renderMode = FieldRenderer.Mode.DENSITY;
+
+        public FluidPanel(TripleFrameBuffer frames, FieldRenderer renderer, float scale) {
+            this.frames = frames;
+            this.renderer = renderer;
+            setPreferredSize(new Dimension(Math.max(1, (int) (renderer.nX * scale + 0.5f)),
+                    Math.max(1, (int) (renderer.nY * scale + 0.5f))));
         }
 
         @Override
         protected void paintComponent(Graphics g) {
-            super.paintComponent(g);
-            Graphics2D g2d = (Graphics2D) g;
-
-            g2d.setColor(Color.BLACK);
-            g2d.fillRect(0, 0, n, n);
-
-            for (int i = 1; i <= n; i++) {
-                for (int j = 1; j <= n; j++) {
-                    if (renderMode == RENDER_MODE_VELOCITY) {
-                        float valueX = Math.clamp(0f, 1f, velocitiesX[i][j]);
-                        float valueY = Math.clamp(0f, 1f, velocitiesY[i][j]);
-                        g2d.setColor(new Color(valueX, valueY, 0));
-                        g2d.fillRect(i, j, 1, 1);
-                    } else if (renderMode == RENDER_MODE_DENSITY) {
-                        float value = Math.clamp(0f, 1f, densities[i][j]);
-                        g2d.setColor(new Color(value, value, value));
-                        g2d.fillRect(i, j, 1, 1);
-                    }
-                }
-            }
+            // The latest frame the simulation thread published. It is not written while this paint reads it.
+            FieldFrame frame = frames.acquire();
+            PhaseEvent event = new PhaseEvent(PhaseEvent.Phase.PAINT, frame.nX, frame.nY, frame.getDeltaTime());
+            event.begin();
+
+            renderer.render(renderMode, frame.densities, frame.velocitiesX, frame.velocitiesY);
+            // The image covers the whole panel, so there is no background to paint first.
+            g.drawImage(renderer.getImage(), 0, 0, getWidth(), getHeight(), null);
+
+            event.end(0);
         }
     }
 }
@@ -0,0 +1,270 @@
+import system.Colormap;
+import system.ConjugateGradientSolver;
+import system.CpuSolver;
+import system.FrameExporter;
+import system.TiledJacobi;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Random;
+import java.util.zip.CRC32;
+
+/**
+ * Runs the CPU solver without a window for a fixed number of steps and reports its throughput.
+ * <br>
+ * Every step uses the same {@code dt}, and the sources come from a scenario driven by a seeded {@link Random}, so two
+ * runs with the same options compute the same fields, also when one of them is resumed from a checkpoint
+ * ({@code --resume}, {@code --checkpoint}). The checksum of the final fields makes that easy to verify.
+ * If {@code --min-steps-per-second} is given and the run is slower, the process exits with code 2.
+ */
+public class BatchRunner {
+    private enum Scenario {
+        /**
+         * A constant source of density pushed upwards from the bottom center.
+         */
+        PLUME,
+        /**
+         * Drags at random positions and in random directions, like a user moving the mouse.
+         */
+        RANDOM
+    }
+
+    private int nX = 200;
+    private int nY = 200;
+    private int steps = 1000;
+    private int warmupSteps = 100;
+    private float deltaTime = 1 / 60f;
+    private int parallelism = Runtime.getRuntime().availableProcessors();
+    private CpuSolver.Pipeline pipeline = CpuSolver.Pipeline.REFERENCE;
+    private CpuSolver.Relaxation relaxation;
+    private int tileCacheBytes = TiledJacobi.DEFAULT_CACHE_BYTES;
+    private int tileIterations = TiledJacobi.DEFAULT_ITERATIONS_PER_TILE;
+    private long seed = 42;
+    private Scenario scenario = Scenario.PLUME;
+    private CpuSolver.LinearSolver pressureSolver = CpuSolver.LinearSolver.RELAXATION;
+    private CpuSolver.LinearSolver diffusionSolver = CpuSolver.LinearSolver.RELAXATION;
+    private ConjugateGradientSolver.Preconditioner preconditioner = ConjugateGradientSolver.Preconditioner.JACOBI;
+    // 0 keeps the solver's defaults.
+    private int cgMaxIterations;
+    private float cgTolerance;
+    private double minStepsPerSecond;
+    private Path resumePath;
+    private Path checkpointPath;
+    private Path exportDirectory;
+    private FrameExporter.Format exportFormat = FrameExporter.Format.RAW;
+    private FrameExporter.BackPressure exportBackPressure = FrameExporter.BackPressure.BLOCK;
+    private Colormap colormap = Colormap.GRAYSCALE;
+
+    // The current drag of the RANDOM scenario, drawn again when its period of steps changes.
+    private final Random random = new Random();
+    private long dragPeriod = -1;
+    private int dragX;
+    private int dragY;
+    private float dragVelocityX;
+    private float dragVelocityY;
+
+    public static void main(String[] args) {
+        BatchRunner runner = new BatchRunner();
+        runner.parseArgs(args);
+
+        double stepsPerSecond = 0;
+        try {
+            stepsPerSecond = runner.run();
+        } catch (IOException e) {
+            System.err.println("Batch run failed: " + e.getMessage());
+            System.exit(1);
+        }
+        if (stepsPerSecond < runner.minStepsPerSecond) {
+            System.out.printf(Locale.ROOT, "FAILED: %.1f steps/s is below the floor of %.1f steps/s%n",
+                    stepsPerSecond, runner.minStepsPerSecond);
+            System.exit(2);
+        }
+        System.exit(0);
+    }
+
+    private void parseArgs(String[] args) {
+        for (int i = 0; i + 1 < args.length; i++) {
+            String value = args[i + 1];
+            switch (args[i]) {
+                case "--n" -> {
+                    nX = Integer.parseInt(value);
+                    nY = nX;
+                }
+                case "--nx" -> nX = Integer.parseInt(value);
+                case "--ny" -> nY = Integer.parseInt(value);
+                case "--steps" -> steps = Integer.parseInt(value);
+                case "--warmup" -> warmupSteps = Integer.parseInt(value);
+                case "--dt" -> deltaTime = Float.parseFloat(value);
+                case "--threads" -> parallelism = Integer.parseInt(value);
+                case "--seed" -> seed = Long.parseLong(value);
+                case "--pipeline" -> pipeline = CpuSolver.Pipeline.valueOf(value.toUpperCase());
+                case "--relaxation" -> relaxation = CpuSolver.Relaxation.valueOf(value.toUpperCase());
+                case "--tile-cache" -> tileCacheBytes = Integer.parseInt(value) << 10;
+                case "--tile-iterations" -> tileIterations = Integer.parseInt(value);
+                case "--scenario" -> scenario = Scenario.valueOf(value.toUpperCase());
+                case "--pressure-solver" -> pressureSolver = CpuSolver.LinearSolver.valueOf(value.toUpperCase());
+                case "--diffusion-solver" -> diffusionSolver = CpuSolver.LinearSolver.valueOf(value.toUpperCase());
+                case "--preconditioner" ->
+                        preconditioner = ConjugateGradientSolver.Preconditioner.valueOf(value.toUpperCase());
+                case "--cg-max-iterations" -> cgMaxIterations = Integer.parseInt(value);
+                case "--cg-tolerance" -> cgTolerance = Float.parseFloat(value);
+                case "--min-steps-per-second" -> minStepsPerSecond = Double.parseDouble(value);
+                case "--resume" -> resumePath = Path.of(value);
+                case "--checkpoint" -> checkpointPath = Path.of(value);
+                case "--export" -> exportDirectory = Path.of(value);
+                case "--export-format" -> exportFormat = FrameExporter.Format.valueOf(value.toUpperCase());
+                case "--export-policy" -> exportBackPressure = FrameExporter.BackPressure.valueOf(value.toUpperCase());
+                case "--colormap" -> colormap = Colormap.valueOf(value.toUpperCase());
+                default -> {
+                }
+            }
+        }
+
+        if (steps < 1)
+            throw new IllegalArgumentException("Steps must be at least 1: " + steps);
+        if (warmupSteps < 0)
+            throw new IllegalArgumentException("Warmup steps must not be negative: " + warmupSteps);
+    }
+
+    /**
+     * Runs the warmup and the measured steps, prints the report and returns the measured steps per second.
+     */
+    private double run() throws IOException {
+        CpuSolver solver = new CpuSolver(nX, nY, parallelism);
+        solver.setPipeline(pipeline);
+        if (relaxation != null) solver.setRelaxation(relaxation);
+        solver.setPressureSolver(pressureSolver);
+        solver.setDiffusionSolver(diffusionSolver);
+        solver.getConjugateGradient().setPreconditioner(preconditioner);
+        if (cgMaxIterations > 0) solver.getConjugateGradient().setMaxIterations(cgMaxIterations);
+        if (cgTolerance > 0) solver.getConjugateGradient().setTolerance(cgTolerance);
+        // A resumed run continues the simulated sequence, whose warmup is already in the checkpoint.
+        int warmup = resumePath == null ? warmupSteps : 0;
+        if (resumePath != null) {
+            solver.loadCheckpoint(resumePath);
+            System.out.println("Resumed from step " + solver.getStepCount() + " of " + resumePath +
+                    ", skipping the warmup");
+        }
+
+        System.out.println("Batch run: grid " + nX + "x" + nY + ", steps " + steps + " (+" + warmup + " warmup), dt " +
+                deltaTime + ", threads " + parallelism + ", scenario " + scenario + ", seed " + seed +
+                ", pipeline " + pipeline + ", kernels " + solver.getKernels().getName() + ", pressure solver " +
+                pressureSolver + ", diffusion solver " + diffusionSolver);
+        if (solver.getRelaxation() == CpuSolver.Relaxation.TILED_JACOBI) {
+            solver.getTiledJacobi().setCacheBytes(tileCacheBytes);
+            solver.getTiledJacobi().setIterationsPerTile(tileIterations);
+            System.out.println(solver.getTiledJacobi());
+        }
+
+        // The warmup steps are part of the simulated sequence, so the checksum depends on them too.
+        for (int s = 0; s < warmup; s++) {
+            addSources(solver, solver.getStepCount());
+            solver.step(deltaTime);
+        }
+
+        FrameExporter exporter = null;
+        if (exportDirectory != null) {
+            exporter = new FrameExporter(exportDirectory, nX, nY, exportFormat, exportBackPressure);
+            exporter.setColormap(colormap);
+        }
+
+        // Exporting is part of the step time, so a slow disk shows up in the numbers with the BLOCK policy.
+        long[] stepTimes = new long[steps];
+        long start = System.nanoTime();
+        for (int s = 0; s < steps; s++) {
+            long stepStart = System.nanoTime();
+            addSources(solver, solver.getStepCount());
+            solver.step(deltaTime);
+            if (exporter != null) exporter.submit(solver);
+            stepTimes[s] = System.nanoTime() - stepStart;
+        }
+        long total = System.nanoTime() - start;
+
+        if (exporter != null) {
+            exporter.close();
+            System.out.println("Exported " + exporter.getWrittenCount() + " frames to " + exportDirectory +
+                    ", dropped " + exporter.getDroppedCount() + ", failed " + exporter.getFailedCount());
+        }
+
+        double stepsPerSecond = steps / (total / 1e9);
+        Arrays.sort(stepTimes);
+        System.out.printf(Locale.ROOT, "Steps/s: %.2f%n", stepsPerSecond);
+        System.out.printf(Locale.ROOT, "Step time (ms): mean %.3f, p50 %.3f, p95 %.3f, p99 %.3f, max %.3f%n",
+                total / 1e6 / steps, percentile(stepTimes, 0.50), percentile(stepTimes, 0.95),
+                percentile(stepTimes, 0.99), stepTimes[steps - 1] / 1e6);
+        System.out.println("Pressure solve (last step): " + solver.getPressureStats());
+        System.out.println("Diffusion solve (last step): " + solver.getDiffusionStats());
+        System.out.printf("Checksum: %08x%n", checksum(solver));
+
+        if (checkpointPath != null) {
+            solver.saveCheckpoint(checkpointPath);
+            System.out.println("Saved step " + solver.getStepCount() + " to " + checkpointPath);
+        }
+
+        return stepsPerSecond;
+    }
+
+    /**
+     * Sizes and speeds are relative to the longer side of the grid, so they look the same at any resolution.
+     */
+    private void addSources(CpuSolver solver, long step) {
+        int scale = solver.getScale();
+        int halfSize = Math.max(1, scale / 40);
+
+        switch (scenario) {
+            case PLUME -> {
+                for (int i = Math.max(1, nX / 2 - halfSize); i <= Math.min(nX, nX / 2 + halfSize); i++) {
+                    for (int j = Math.max(1, nY - 2 * halfSize); j <= nY; j++) {
+                        solver.setDensitySource(i, j, 10f);
+                        solver.setVelocitySource(i, j, 0, -scale / 4f);
+                    }
+                }
+            }
+            case RANDOM -> {
+                // A new drag every 30 steps, held in between like a mouse button. It only depends on the seed and
+                // the step count, so a run resumed from a checkpoint drags the same way.
+                if (step / 30 != dragPeriod) {
+                    dragPeriod = step / 30;
+                    random.setSeed(seed * 31 + dragPeriod);
+                    dragX = 1 + random.nextInt(nX);
+                    dragY = 1 + random.nextInt(nY);
+                    dragVelocityX = (random.nextFloat() * 2 - 1) * scale / 4f;
+                    dragVelocityY = (random.nextFloat() * 2 - 1) * scale / 4f;
+                }
+
+                for (int i = Math.max(1, dragX - halfSize); i <= Math.min(nX, dragX + halfSize); i++) {
+                    for (int j = Math.max(1, dragY - halfSize); j <= Math.min(nY, dragY + halfSize); j++) {
+                        solver.setDensitySource(i, j, 10f);
+                        solver.setVelocitySource(i, j, dragVelocityX, dragVelocityY);
+                    }
+                }
+            }
+        }
+    }
+
+    private static double percentile(long[] sortedTimes, double p) {
+        int index = (int) Math.ceil(p * sortedTimes.length) - 1;
+        return sortedTimes[Math.max(0, index)] / 1e6;
+    }
+
+    /**
+     * CRC32 of the bits of the final density and velocity fields.
+     */
+    private static long checksum(CpuSolver solver) {
+        CRC32 crc = new CRC32();
+        byte[] bytes = new byte[4];
+        for (float[] field : new float[][]{solver.getDensities(), solver.getVelocitiesX(), solver.getVelocitiesY()}) {
+            for (float value : field) {
+                int bits = Float.floatToIntBits(value);
+                bytes[0] = (byte) bits;
+                bytes[1] = (byte) (bits >>> 8);
+                bytes[2] = (byte) (bits >>> 16);
+                bytes[3] = (byte) (bits >>> 24);
+                crc.update(bytes);
+            }
+        }
+        return crc.getValue();
+    }
+}
@@ -1,5 +1,9 @@
 package system;
 
+import org.lwjgl.opengl.ARBBufferStorage;
+
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
 import java.util.HashSet;
 import java.util.Set;
 
@@ -33,10 +37,66 @@ public class BufferObject {
         System.out.println("Created buffer object " + id);
     }
 
+    /**
+     * Creates a buffer of {@code size} bytes with undefined content, e.g. for a shader to write into.
+     */
+    public BufferObject(long size, int target, int usage, boolean autoCleanup) {
+        this(target, autoCleanup);
+        glBufferData(target, size, usage);
+    }
+
+    private BufferObject(int target, boolean autoCleanup) {
+        this.id = glGenBuffers();
+        this.target = target;
+
+        bind();
+
+        if (autoCleanup) BUFFER_OBJ_TO_CLEANUP.add(this);
+        System.out.println("Created buffer object " + id);
+    }
+
+    /**
+     * Creates an immutable buffer of {@code size} bytes with {@code glBufferStorage}. Requires OpenGL 4.4 or
+     * {@code ARB_buffer_storage}.
+     */
+    public static BufferObject createStorage(long size, int target, int storageFlags, boolean autoCleanup) {
+        BufferObject bufferObject = new BufferObject(target, autoCleanup);
+        ARBBufferStorage.glBufferStorage(target, size, storageFlags);
+        return bufferObject;
+    }
+
     public void bind() {
         glBindBuffer(target, id);
     }
 
+    /**
+     * Binds the buffer to the indexed binding point {@code index} of its target, e.g. a shader storage block.
+     */
+    public void bindBase(int index) {
+        glBindBufferBase(target, index, id);
+    }
+
+    /**
+     * Replaces the content from byte {@code offset} with the remaining floats of {@code data}.
+     */
+    public void putSubData(long offset, FloatBuffer data) {
+        bind();
+        glBufferSubData(target, offset, data);
+    }
+
+    public ByteBuffer mapRange(long offset, long length, int access) {
+        bind();
+        return glMapBufferRange(target, offset, length, access);
+    }
+
+    /**
+     * Unmaps a mapping made with {@link #mapRange(long, long, int)}. The buffer stays bound.
+     */
+    public void unmap() {
+        bind();
+        glUnmapBuffer(target);
+    }
+
     public void cleanup() {
         glDeleteBuffers(id);
         System.out.println("Deleted buffer object " + id);
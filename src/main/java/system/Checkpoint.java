@@ -0,0 +1,238 @@
+package system;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * A snapshot of the solver fields in a file.
+ * <br>
+ * The layout is little-endian: a 32-byte header ({@code int} magic, {@code int} version, {@code int} nX, {@code int}
+ * nY, {@code float} deltaTime, {@code int} flags, {@code long} stepCount), then one plane of
+ * {@code (nX + 2) * (nY + 2)} floats per field, boundary cells included, with x changing fastest. The planes are
+ * density, velocity x, velocity y, and pressure if {@link #FLAG_PRESSURE} is set.
+ * <br>
+ * A snapshot is written to a temporary file next to the destination with positional writes from a reusable direct
+ * buffer of the caller, see {@link #createBuffer(int, int)}, so saving allocates nothing in proportion to the grid.
+ * {@link #commit()} writes the header last, with the magic, and moves the temporary file over the destination, so the
+ * destination never holds a partial snapshot and the file being replaced is never truncated. Writes reach the page
+ * cache and survive a crash of the process; they are not forced to the disk.
+ * <br>
+ * {@link #open(Path)} maps the file read-only, and the planes are views of the mapping, so fields are restored with
+ * single bulk transfers.
+ */
+public class Checkpoint implements Closeable {
+    public enum Field {DENSITY, VELOCITY_X, VELOCITY_Y, PRESSURE}
+
+    public static final int MAGIC = 0x53434C46; // "FLCS"
+    public static final int VERSION = 1;
+    public static final int FLAG_PRESSURE = 1;
+
+    private static final int HEADER_BYTES = 32;
+
+    public final int nX;
+    public final int nY;
+    public final float deltaTime;
+    public final long stepCount;
+    public final boolean hasPressure;
+
+    private final int planeFloats;
+    // The read-only mapping of an opened file.
+    private final ByteBuffer mapping;
+    // The destination, temporary file and write buffer of a created snapshot.
+    private final Path path;
+    private final Path temp;
+    private final FileChannel channel;
+    private final ByteBuffer buffer;
+    private final FloatBuffer floats;
+    private boolean committed;
+
+    private Checkpoint(ByteBuffer mapping, Path path, Path temp, FileChannel channel, ByteBuffer buffer, int nX, int nY,
+                       float deltaTime, long stepCount, boolean hasPressure) {
+        this.mapping = mapping;
+        this.path = path;
+        this.temp = temp;
+        this.channel = channel;
+        this.buffer = buffer;
+        this.floats = buffer == null ? null : buffer.asFloatBuffer();
+        this.nX = nX;
+        this.nY = nY;
+        this.deltaTime = deltaTime;
+        this.stepCount = stepCount;
+        this.hasPressure = hasPressure;
+        this.planeFloats = (nX + 2) * (nY + 2);
+    }
+
+    /**
+     * Returns a direct little-endian buffer that holds one plane of an {@code nX} by {@code nY} grid, for
+     * {@link #create}. Keep it and pass it to every save of that grid.
+     */
+    public static ByteBuffer createBuffer(int nX, int nY) {
+        int bytes = Math.max(HEADER_BYTES, (nX + 2) * (nY + 2) * Float.BYTES);
+        return ByteBuffer.allocateDirect(bytes).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /**
+     * Starts a snapshot for the given grid that {@link #commit()} moves to {@code path}. Write every plane with
+     * {@link #write(Field, float[])} or {@link #write(Field, FloatBuffer)}, then call {@link #commit()}, and
+     * {@link #close()} in any case. {@code buffer} is used for every write; a buffer smaller than a plane, but at least
+     * 32 bytes, writes it in several chunks.
+     */
+    public static Checkpoint create(Path path, ByteBuffer buffer, int nX, int nY, float deltaTime, long stepCount,
+                                    boolean hasPressure) throws IOException {
+        if (!buffer.isDirect() || buffer.capacity() < HEADER_BYTES)
+            throw new IllegalArgumentException("The buffer must be direct and hold at least " + HEADER_BYTES +
+                    " bytes");
+
+        Path temp = path.resolveSibling(path.getFileName() + ".tmp");
+        FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+        buffer.order(ByteOrder.LITTLE_ENDIAN).clear();
+        return new Checkpoint(null, path, temp, channel, buffer, nX, nY, deltaTime, stepCount, hasPressure);
+    }
+
+    /**
+     * Maps {@code path} read-only and validates its header.
+     */
+    public static Checkpoint open(Path path) throws IOException {
+        ByteBuffer mapping;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            if (channel.size() < HEADER_BYTES || channel.size() > Integer.MAX_VALUE)
+                throw new IOException("Not a checkpoint file: " + path);
+
+            mapping = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        mapping.order(ByteOrder.LITTLE_ENDIAN);
+
+        if (mapping.getInt(0) != MAGIC)
+            throw new IOException("Not a checkpoint file, or it was not completely written: " + path);
+        if (mapping.getInt(4) != VERSION)
+            throw new IOException("Unsupported checkpoint version " + mapping.getInt(4) + ": " + path);
+
+        int nX = mapping.getInt(8);
+        int nY = mapping.getInt(12);
+        boolean hasPressure = (mapping.getInt(20) & FLAG_PRESSURE) != 0;
+        if (nX < 1 || nY < 1 || mapping.capacity() != fileSize(nX, nY, hasPressure))
+            throw new IOException("Checkpoint size does not match its " + nX + "x" + nY + " grid: " + path);
+
+        return new Checkpoint(mapping, path, null, null, null, nX, nY, mapping.getFloat(16), mapping.getLong(24),
+                hasPressure);
+    }
+
+    /**
+     * Returns a little-endian view of the plane of {@code field} of an opened file.
+     */
+    public FloatBuffer field(Field field) {
+        if (mapping == null)
+            throw new IllegalStateException("Only an opened checkpoint can be read");
+        checkField(field);
+
+        return mapping.slice((int) planeOffset(field), planeFloats * Float.BYTES).order(ByteOrder.LITTLE_ENDIAN)
+                .asFloatBuffer();
+    }
+
+    /**
+     * Writes the plane of {@code field} from {@code values}, which holds at least one plane.
+     */
+    public void write(Field field, float[] values) throws IOException {
+        checkWritable(field);
+
+        long position = planeOffset(field);
+        for (int from = 0; from < planeFloats; from += floats.capacity()) {
+            int count = Math.min(floats.capacity(), planeFloats - from);
+            floats.clear();
+            floats.put(values, from, count);
+            position = writeChunk(position, count);
+        }
+    }
+
+    /**
+     * Writes the plane of {@code field} from the floats {@code values} has remaining, at least one plane. Leaves its
+     * position unchanged.
+     */
+    public void write(Field field, FloatBuffer values) throws IOException {
+        checkWritable(field);
+
+        long position = planeOffset(field);
+        for (int from = 0; from < planeFloats; from += floats.capacity()) {
+            int count = Math.min(floats.capacity(), planeFloats - from);
+            floats.clear();
+            floats.put(values.slice(values.position() + from, count));
+            position = writeChunk(position, count);
+        }
+    }
+
+    /**
+     * Writes the header, marking the snapshot as completely written, and replaces the file with it.
+     */
+    public void commit() throws IOException {
+        if (channel == null || committed)
+            throw new IllegalStateException("Only a created checkpoint can be committed, and only once");
+
+        buffer.clear();
+        buffer.putInt(MAGIC).putInt(VERSION).putInt(nX).putInt(nY).putFloat(deltaTime);
+        buffer.putInt(hasPressure ? FLAG_PRESSURE : 0).putLong(stepCount).flip();
+        long position = 0;
+        while (buffer.hasRemaining())
+            position += channel.write(buffer, position);
+
+        channel.close();
+        Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        committed = true;
+    }
+
+    /**
+     * Deletes the temporary file of a created snapshot that was not committed. The mapping of an opened file is
+     * released once the checkpoint and its field views are no longer referenced.
+     */
+    @Override
+    public void close() throws IOException {
+        if (channel == null || committed) return;
+
+        channel.close();
+        Files.deleteIfExists(temp);
+    }
+
+    /**
+     * Throws if the checkpoint was not taken on an {@code nX} by {@code nY} grid.
+     */
+    public void checkSize(int nX, int nY) {
+        if (this.nX != nX || this.nY != nY)
+            throw new IllegalArgumentException("Checkpoint grid " + this.nX + "x" + this.nY +
+                    " does not match the solver grid " + nX + "x" + nY);
+    }
+
+    private long writeChunk(long position, int count) throws IOException {
+        buffer.clear().limit(count * Float.BYTES);
+        while (buffer.hasRemaining())
+            position += channel.write(buffer, position);
+        return position;
+    }
+
+    private void checkWritable(Field field) {
+        if (channel == null || committed)
+            throw new IllegalStateException("Only a created checkpoint that is not committed can be written");
+        checkField(field);
+    }
+
+    private void checkField(Field field) {
+        if (field == Field.PRESSURE && !hasPressure)
+            throw new IllegalStateException("The checkpoint has no pressure");
+    }
+
+    private long planeOffset(Field field) {
+        return HEADER_BYTES + (long) field.ordinal() * planeFloats * Float.BYTES;
+    }
+
+    private static long fileSize(int nX, int nY, boolean hasPressure) {
+        int planes = hasPressure ? 4 : 3;
+        return HEADER_BYTES + (long) planes * (nX + 2) * (nY + 2) * Float.BYTES;
+    }
+}
@@ -0,0 +1,44 @@
+package system;
+
+/**
+ * Maps scalar values in {@code [0, 1]} to packed {@code 0xRRGGBB} colors. Values outside the range are clamped.
+ */
+public enum Colormap {
+    GRAYSCALE(0x000000, 0xffffff),
+    /**
+     * Black, red, yellow, white.
+     */
+    HEAT(0x000000, 0xff0000, 0xffff00, 0xffffff),
+    /**
+     * A 5-stop approximation of matplotlib's viridis.
+     */
+    VIRIDIS(0x440154, 0x3b528b, 0x21918c, 0x5ec962, 0xfde725);
+
+    private static final int TABLE_SIZE = 256;
+
+    private final int[] table = new int[TABLE_SIZE];
+
+    Colormap(int... stops) {
+        for (int t = 0; t < TABLE_SIZE; t++) {
+            float position = (float) t / (TABLE_SIZE - 1) * (stops.length - 1);
+            int stop = Math.min((int) position, stops.length - 2);
+            float f = position - stop;
+            table[t] = mix(stops[stop], stops[stop + 1], f);
+        }
+    }
+
+    public int rgb(float value) {
+        int t = (int) (value * (TABLE_SIZE - 1) + 0.5f);
+        return table[Math.max(0, Math.min(TABLE_SIZE - 1, t))];
+    }
+
+    private static int mix(int from, int to, float f) {
+        int rgb = 0;
+        for (int shift = 0; shift <= 16; shift += 8) {
+            int a = (from >> shift) & 0xff;
+            int b = (to >> shift) & 0xff;
+            rgb |= Math.round(a + (b - a) * f) << shift;
+        }
+        return rgb;
+    }
+}
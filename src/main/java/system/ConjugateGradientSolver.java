@@ -0,0 +1,365 @@
+package system;
+
+import java.util.Arrays;
+
+/**
+ * Matrix-free preconditioned conjugate gradient solver for {@code c * x - a * (sum of the 4 neighbours of x) = b}, the
+ * equation behind both the pressure and the diffusion solves of {@link CpuSolver}.
+ * <br>
+ * The boundary cells are not unknowns: they are set with {@link CpuSolver#setBound} before the operator is applied,
+ * which keeps the operator symmetric. Iterations stop once the relative residual {@code |b - Ax| / |b|} reaches the
+ * tolerance, or after the maximum number of iterations.
+ * <br>
+ * The iterations the Jacobi preconditioner needs grow linearly with the grid side (about 2.6 per cell of the longer
+ * side for a random right-hand side), so the default maximum is {@link #DEFAULT_ITERATIONS_PER_CELL} times the longer
+ * side.
+ */
+public class ConjugateGradientSolver {
+    public enum Preconditioner {
+        /**
+         * Divides by the diagonal of the operator. Every step can be split into row bands.
+         */
+        JACOBI,
+        /**
+         * Modified incomplete Cholesky, MIC(0). Needs far fewer iterations than {@link #JACOBI}, but its triangular
+         * solves run on a single thread.
+         */
+        INCOMPLETE_CHOLESKY
+    }
+
+    public static final int DEFAULT_ITERATIONS_PER_CELL = 4;
+    private static final float MIC_TUNING = 0.97f;
+    private static final float MIC_SAFETY = 0.25f;
+
+    private final int nX;
+    private final int nY;
+    private final int stride;
+    private final float[] r;
+    private final float[] z;
+    private final float[] p;
+    private final float[] q;
+    private final float[] precon;
+
+    private Preconditioner preconditioner = Preconditioner.JACOBI;
+    private float tolerance = 1e-4f;
+    private int maxIterations;
+
+    // The equation the preconditioner was built for.
+    private Preconditioner preconType;
+    private float preconA = Float.NaN;
+    private float preconC = Float.NaN;
+    private int preconBound = -1;
+
+    // The equation being solved.
+    private float[] x;
+    private float[] b;
+    private float a;
+    private float c;
+    private int bound;
+    private RowBands bands;
+
+    public ConjugateGradientSolver(int nX, int nY) {
+        this.nX = nX;
+        this.nY = nY;
+        this.stride = nX + 2;
+        this.maxIterations = DEFAULT_ITERATIONS_PER_CELL * Math.max(nX, nY);
+
+        int size = stride * (nY + 2);
+        this.r = new float[size];
+        this.z = new float[size];
+        this.p = new float[size];
+        this.q = new float[size];
+        this.precon = new float[size];
+    }
+
+    /**
+     * Solves the equation in place, using the current content of {@code x} as the initial guess.
+     * If the operator is singular (pure Neumann pressure, {@code c == 4 * a}), the mean of {@code b} is removed first
+     * so that the system has a solution; this does not change the gradient of {@code x}.
+     */
+    public void solve(float[] x, float[] b, float a, float c, int bound, RowBands bands, SolveStats stats) {
+        this.x = x;
+        this.b = b;
+        this.a = a;
+        this.c = c;
+        this.bound = bound;
+        this.bands = bands;
+
+        if (Math.abs(c - 4 * a) <= 1e-6f * c) removeMean(b);
+
+        double bNorm = Math.sqrt(sum(this::dotRows));
+        if (bNorm == 0) {
+            fillInterior(x, 0);
+            CpuSolver.setBound(bound, x, nX, nY, stride);
+            stats.record(0, 0);
+            return;
+        }
+
+        updatePreconditioner();
+
+        CpuSolver.setBound(bound, x, nX, nY, stride);
+        float residual = (float) (Math.sqrt(sum(this::residualRows)) / bNorm);
+        int iterations = 0;
+
+        if (residual > tolerance) {
+            double rz = precondition();
+            System.arraycopy(z, 0, p, 0, p.length);
+
+            while (iterations < maxIterations) {
+                CpuSolver.setBound(bound, p, nX, nY, stride);
+                double pq = sum(this::applyRows);
+                if (pq <= 0) break; // p lies in the null space, nothing left to reduce
+
+                float alpha = (float) (rz / pq);
+                residual = (float) (Math.sqrt(sum((from, to) -> updateRows(alpha, from, to))) / bNorm);
+                iterations++;
+
+                if (residual <= tolerance) break;
+
+                double rzNew = precondition();
+                float beta = (float) (rzNew / rz);
+                rz = rzNew;
+                run((from, to) -> directionRows(beta, from, to));
+            }
+        }
+
+        CpuSolver.setBound(bound, x, nX, nY, stride);
+        stats.record(iterations, residual, residual > tolerance && iterations == maxIterations);
+    }
+
+    public void setPreconditioner(Preconditioner preconditioner) {
+        this.preconditioner = preconditioner;
+    }
+
+    public float getTolerance() {
+        return tolerance;
+    }
+
+    public void setTolerance(float tolerance) {
+        if (!(tolerance > 0))
+            throw new IllegalArgumentException("Tolerance must be positive: " + tolerance);
+
+        this.tolerance = tolerance;
+    }
+
+    public int getMaxIterations() {
+        return maxIterations;
+    }
+
+    public void setMaxIterations(int maxIterations) {
+        if (maxIterations < 1)
+            throw new IllegalArgumentException("Maximum iterations must be at least 1: " + maxIterations);
+
+        this.maxIterations = maxIterations;
+    }
+
+    /**
+     * The diagonal of the operator. A boundary cell mirrors its neighbour, possibly negated, so every wall next to a
+     * cell moves {@code a} or {@code -a} from the neighbour sum onto the diagonal.
+     */
+    private float diagonal(int i, int j) {
+        int wallsX = (i == 1 ? 1 : 0) + (i == nX ? 1 : 0);
+        int wallsY = (j == 1 ? 1 : 0) + (j == nY ? 1 : 0);
+        int signX = bound == 1 ? -1 : 1;
+        int signY = bound == 2 ? -1 : 1;
+        return c - a * (signX * wallsX + signY * wallsY);
+    }
+
+    private void updatePreconditioner() {
+        if (preconType == preconditioner && preconA == a && preconC == c && preconBound == bound) return;
+
+        preconType = preconditioner;
+        preconA = a;
+        preconC = c;
+        preconBound = bound;
+
+        if (preconditioner == Preconditioner.JACOBI) {
+            for (int j = 1; j <= nY; j++)
+                for (int i = 1; i <= nX; i++)
+                    precon[i + j * stride] = 1 / diagonal(i, j);
+            return;
+        }
+
+        // MIC(0) after Bridson, "Fluid Simulation for Computer Graphics". Every off-diagonal entry is -a.
+        float aa = a * a;
+        for (int j = 1; j <= nY; j++) {
+            for (int i = 1; i <= nX; i++) {
+                int idx = i + j * stride;
+                float diag = diagonal(i, j);
+                float e = diag;
+
+                if (i > 1) {
+                    float pi = precon[idx - 1];
+                    e -= aa * pi * pi * (1 + (j < nY ? MIC_TUNING : 0));
+                }
+                if (j > 1) {
+                    float pj = precon[idx - stride];
+                    e -= aa * pj * pj * (1 + (i < nX ? MIC_TUNING : 0));
+                }
+
+                if (e < MIC_SAFETY * diag) e = diag;
+                precon[idx] = (float) (1 / Math.sqrt(e));
+            }
+        }
+    }
+
+    /**
+     * {@code z = M^-1 r}. Returns {@code r . z}.
+     */
+    private double precondition() {
+        if (preconditioner == Preconditioner.JACOBI) return sum(this::jacobiRows);
+
+        // Solve L y = r, then L^T z = y, both in z.
+        for (int j = 1; j <= nY; j++) {
+            int row = j * stride;
+            for (int i = 1; i <= nX; i++) {
+                int idx = row + i;
+                float t = r[idx];
+                if (i > 1) t += a * precon[idx - 1] * z[idx - 1];
+                if (j > 1) t += a * precon[idx - stride] * z[idx - stride];
+                z[idx] = t * precon[idx];
+            }
+        }
+        for (int j = nY; j >= 1; j--) {
+            int row = j * stride;
+            for (int i = nX; i >= 1; i--) {
+                int idx = row + i;
+                float t = z[idx];
+                if (i < nX) t += a * precon[idx] * z[idx + 1];
+                if (j < nY) t += a * precon[idx] * z[idx + stride];
+                z[idx] = t * precon[idx];
+            }
+        }
+
+        return sum(this::rzRows);
+    }
+
+    private double dotRows(int from, int to) {
+        double sum = 0;
+        for (int j = from; j < to; j++) {
+            int row = j * stride;
+            for (int idx = row + 1; idx <= row + nX; idx++)
+                sum += (double) b[idx] * b[idx];
+        }
+        return sum;
+    }
+
+    /**
+     * {@code r = b - A x}. Returns {@code r . r}.
+     */
+    private double residualRows(int from, int to) {
+        double sum = 0;
+        for (int j = from; j < to; j++) {
+            int row = j * stride;
+            for (int idx = row + 1; idx <= row + nX; idx++) {
+                float neighbours = x[idx - 1] + x[idx + 1] + x[idx - stride] + x[idx + stride];
+                float value = b[idx] - (c * x[idx] - a * neighbours);
+                r[idx] = value;
+                sum += (double) value * value;
+            }
+        }
+        return sum;
+    }
+
+    /**
+     * {@code q = A p}. Returns {@code p . q}.
+     */
+    private double applyRows(int from, int to) {
+        double sum = 0;
+        for (int j = from; j < to; j++) {
+            int row = j * stride;
+            for (int idx = row + 1; idx <= row + nX; idx++) {
+                float neighbours = p[idx - 1] + p[idx + 1] + p[idx - stride] + p[idx + stride];
+                float value = c * p[idx] - a * neighbours;
+                q[idx] = value;
+                sum += (double) p[idx] * value;
+            }
+        }
+        return sum;
+    }
+
+    /**
+     * {@code x += alpha p} and {@code r -= alpha q}. Returns {@code r . r}.
+     */
+    private double updateRows(float alpha, int from, int to) {
+        double sum = 0;
+        for (int j = from; j < to; j++) {
+            int row = j * stride;
+            for (int idx = row + 1; idx <= row + nX; idx++) {
+                x[idx] += alpha * p[idx];
+                float value = r[idx] - alpha * q[idx];
+                r[idx] = value;
+                sum += (double) value * value;
+            }
+        }
+        return sum;
+    }
+
+    private void directionRows(float beta, int from, int to) {
+        for (int j = from; j < to; j++) {
+            int row = j * stride;
+            for (int idx = row + 1; idx <= row + nX; idx++)
+                p[idx] = z[idx] + beta * p[idx];
+        }
+    }
+
+    /**
+     * {@code z = r / diagonal}. Returns {@code r . z}.
+     */
+    private double jacobiRows(int from, int to) {
+        double sum = 0;
+        for (int j = from; j < to; j++) {
+            int row = j * stride;
+            for (int idx = row + 1; idx <= row + nX; idx++) {
+                float value = r[idx] * precon[idx];
+                z[idx] = value;
+                sum += (double) r[idx] * value;
+            }
+        }
+        return sum;
+    }
+
+    private double rzRows(int from, int to) {
+        double sum = 0;
+        for (int j = from; j < to; j++) {
+            int row = j * stride;
+            for (int idx = row + 1; idx <= row + nX; idx++)
+                sum += (double) r[idx] * z[idx];
+        }
+        return sum;
+    }
+
+    private void removeMean(float[] arr) {
+        double sum = 0;
+        for (int j = 1; j <= nY; j++) {
+            int row = j * stride;
+            for (int idx = row + 1; idx <= row + nX; idx++)
+                sum += arr[idx];
+        }
+
+        float mean = (float) (sum / ((double) nX * nY));
+        for (int j = 1; j <= nY; j++) {
+            int row = j * stride;
+            for (int idx = row + 1; idx <= row + nX; idx++)
+                arr[idx] -= mean;
+        }
+    }
+
+    private void fillInterior(float[] arr, float value) {
+        for (int j = 1; j <= nY; j++) {
+            int row = j * stride;
+            Arrays.fill(arr, row + 1, row + nX + 1, value);
+        }
+    }
+
+    private double sum(RowBands.SumTask task) {
+        return bands == null ? task.run(1, nY + 1) : bands.sum(1, nY + 1, task);
+    }
+
+    private void run(RowBands.Task task) {
+        if (bands == null)
+            task.run(1, nY + 1);
+        else
+            bands.forEach(1, nY + 1, task);
+    }
+}
@@ -0,0 +1,800 @@
+package system;
+
+import org.joml.Math;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+/**
+ * A CPU implementation of Jos Stam's stable fluid solver.
+ * <br>
+ * Every field is stored as one contiguous row-major {@code float[]} of {@code (nX + 2) * (nY + 2)} cells, including the
+ * boundary cells. The cell {@code (i, j)} lives at {@code i + j * stride}, so the inner loops walk memory linearly.
+ * <br>
+ * The cells are square, of width {@code h = 1 / max(nX, nY)}, so the longer side of the domain has length 1 and a
+ * non-square grid is a non-square domain rather than stretched cells. The diffusion and projection coefficients are
+ * therefore the same along both axes; only the bounds of the loops and of the advection backtrace differ.
+ * <br>
+ * The solver does not depend on any window, so it can run headless. Every field and scratch buffer is allocated up
+ * front, so a step allocates no arrays. Single-threaded, a step only allocates its small Flight Recorder event objects.
+ * With row bands, every pass also allocates its fork/join tasks and their lambdas, a few hundred bytes per pass.
+ * <br>
+ * Every step is a {@link StepEvent} and every pass of it a {@link PhaseEvent} for Java Flight Recorder.
+ */
+public class CpuSolver {
+    /**
+     * The iteration scheme used to relax the diffusion and pressure equations.
+     */
+    public enum Relaxation {
+        /**
+         * Stam's in-place lexicographic sweep. It always runs on a single thread, since every cell depends on the
+         * cells updated before it in the same sweep.
+         */
+        GAUSS_SEIDEL,
+        /**
+         * Gauss-Seidel over a checkerboard: all red cells, then all black cells. Converges like
+         * {@link #GAUSS_SEIDEL} and can be split into row bands.
+         */
+        RED_BLACK,
+        /**
+         * Jacobi iteration ping-ponging between the field and a scratch buffer. Converges about half as fast per
+         * sweep as {@link #GAUSS_SEIDEL} and can be split into row bands.
+         */
+        JACOBI,
+        /**
+         * The same iterations as {@link #JACOBI}, with the same result, run by {@link TiledJacobi} several at a time
+         * on cache-sized tiles. Faster on grids that do not fit in the cache.
+         */
+        TILED_JACOBI
+    }
+
+    /**
+     * How the passes of a step are arranged.
+     */
+    public enum Pipeline {
+        /**
+         * Stam's order: the velocity step, then the density step, with one advection pass per field.
+         */
+        REFERENCE,
+        /**
+         * Both velocity components and the density are advected by a single pass that traces each cell back once and
+         * interpolates all of them with the same weights. The density is therefore moved along the projected velocity
+         * from before the velocity's own advection, instead of the final velocity of the step.
+         */
+        FUSED
+    }
+
+    /**
+     * The method used for a linear solve (pressure or diffusion).
+     */
+    public enum LinearSolver {
+        /**
+         * A fixed number of sweeps of the current {@link Relaxation} scheme.
+         */
+        RELAXATION,
+        /**
+         * {@link MultigridSolver} cycles until the relative residual reaches its tolerance.
+         */
+        MULTIGRID,
+        /**
+         * {@link ConjugateGradientSolver} iterations until the relative residual reaches its tolerance.
+         */
+        CONJUGATE_GRADIENT
+    }
+
+    public final int nX;
+    public final int nY;
+    public final int stride;
+    public final int size;
+
+    private final float[] divergence;
+    private final float[] pressure;
+    private final float[][] advectedFields = new float[3][];
+    private final float[][] advectedPrevFields = new float[3][];
+    private final int[] advectedBounds = {1, 2, 0};
+
+    private StencilKernels kernels = StencilKernels.create();
+    private RowBands bands;
+    private Pipeline pipeline = Pipeline.REFERENCE;
+    private Relaxation relaxation = Relaxation.GAUSS_SEIDEL;
+    private float[] scratch;
+    private LinearSolver pressureSolver = LinearSolver.RELAXATION;
+    private LinearSolver diffusionSolver = LinearSolver.RELAXATION;
+    private MultigridSolver multigrid;
+    private TiledJacobi tiledJacobi;
+    private ConjugateGradientSolver conjugateGradient;
+    private final SolveStats pressureStats = new SolveStats();
+    private final SolveStats diffusionStats = new SolveStats();
+    private float[] prevDensities;
+    private float[] densities;
+    private float[] prevVelocitiesX;
+    private float[] prevVelocitiesY;
+    private float[] velocitiesX;
+    private float[] velocitiesY;
+    private int iterationCount = 20;
+    private float diffusionRate = 0.0001f;
+    private float viscosity = 0.01f;
+    private float deltaTime;
+    private long stepCount;
+    // Reused by every saveCheckpoint.
+    private ByteBuffer checkpointBuffer;
+
+    public CpuSolver(int n) {
+        this(n, n, 1);
+    }
+
+    public CpuSolver(int n, int parallelism) {
+        this(n, n, parallelism);
+    }
+
+    /**
+     * Creates a solver of {@code nX} by {@code nY} inner cells whose passes are split into row bands over
+     * {@code parallelism} threads. A parallelism above 1 selects {@link Relaxation#RED_BLACK}, since Gauss-Seidel
+     * cannot be split.
+     */
+    public CpuSolver(int nX, int nY, int parallelism) {
+        if (nX < 1 || nY < 1)
+            throw new IllegalArgumentException("Grid must have at least 1 cell along each axis: " + nX + "x" + nY);
+
+        this.nX = nX;
+        this.nY = nY;
+        this.stride = nX + 2;
+        this.size = stride * (nY + 2);
+        this.divergence = new float[size];
+        this.pressure = new float[size];
+        this.prevDensities = new float[size];
+        this.densities = new float[size];
+        this.prevVelocitiesX = new float[size];
+        this.prevVelocitiesY = new float[size];
+        this.velocitiesX = new float[size];
+        this.velocitiesY = new float[size];
+
+        setParallelism(parallelism);
+        if (parallelism > 1) setRelaxation(Relaxation.RED_BLACK);
+    }
+
+    /**
+     * Advances the simulation by one step, consuming the sources set since the previous step.
+     */
+    public void step(float deltaTime) {
+        StepEvent event = new StepEvent(stepCount, nX, nY, deltaTime);
+        event.begin();
+
+        this.deltaTime = deltaTime;
+        pressureStats.reset();
+        diffusionStats.reset();
+
+        if (pipeline == Pipeline.FUSED) {
+            fusedStep();
+        } else {
+            velocityStep();
+            densityStep();
+        }
+        clearSource(prevDensities);
+        clearSource(prevVelocitiesX);
+        clearSource(prevVelocitiesY);
+        stepCount++;
+
+        event.end(pressureStats, diffusionStats);
+    }
+
+    /**
+     * Clear all density and velocity fields, including pending sources.
+     */
+    public void clear() {
+        clearSource(velocitiesX);
+        clearSource(velocitiesY);
+        clearSource(prevVelocitiesX);
+        clearSource(prevVelocitiesY);
+        clearSource(prevDensities);
+        clearSource(densities);
+    }
+
+    /**
+     * Sets the density source of cell {@code (i, j)} that is added in the next {@link #step(float)}.
+     */
+    public void setDensitySource(int i, int j, float value) {
+        prevDensities[index(i, j)] = value;
+    }
+
+    /**
+     * Sets the velocity source of cell {@code (i, j)} that is added in the next {@link #step(float)}.
+     */
+    public void setVelocitySource(int i, int j, float valueX, float valueY) {
+        int idx = index(i, j);
+        prevVelocitiesX[idx] = valueX;
+        prevVelocitiesY[idx] = valueY;
+    }
+
+    public int index(int i, int j) {
+        return i + j * stride;
+    }
+
+    /**
+     * The number of cells along the longer axis. Cells are {@code 1 / getScale()} wide.
+     */
+    public int getScale() {
+        return Math.max(nX, nY);
+    }
+
+    public float[] getDensities() {
+        return densities;
+    }
+
+    public float[] getVelocitiesX() {
+        return velocitiesX;
+    }
+
+    public float[] getVelocitiesY() {
+        return velocitiesY;
+    }
+
+    public int getIterationCount() {
+        return iterationCount;
+    }
+
+    public void setIterationCount(int iterationCount) {
+        this.iterationCount = iterationCount;
+    }
+
+    public int getParallelism() {
+        return bands == null ? 1 : bands.getParallelism();
+    }
+
+    /**
+     * Sets the number of threads the passes are split over. A parallelism of 1 runs everything on the calling thread.
+     */
+    public void setParallelism(int parallelism) {
+        if (parallelism < 1)
+            throw new IllegalArgumentException("Parallelism must be at least 1: " + parallelism);
+
+        if (bands != null) bands.shutdown();
+        bands = parallelism == 1 ? null : new RowBands(parallelism);
+    }
+
+    public StencilKernels getKernels() {
+        return kernels;
+    }
+
+    /**
+     * Chooses between the fastest available {@link StencilKernels} and the plain scalar ones.
+     */
+    public void setVectorized(boolean vectorized) {
+        kernels = vectorized ? StencilKernels.create() : new ScalarKernels();
+    }
+
+    public Pipeline getPipeline() {
+        return pipeline;
+    }
+
+    public void setPipeline(Pipeline pipeline) {
+        this.pipeline = pipeline;
+    }
+
+    public Relaxation getRelaxation() {
+        return relaxation;
+    }
+
+    public void setRelaxation(Relaxation relaxation) {
+        this.relaxation = relaxation;
+        boolean needsScratch = relaxation == Relaxation.JACOBI || relaxation == Relaxation.TILED_JACOBI;
+        if (needsScratch && scratch == null) scratch = new float[size];
+    }
+
+    public LinearSolver getPressureSolver() {
+        return pressureSolver;
+    }
+
+    public void setPressureSolver(LinearSolver pressureSolver) {
+        this.pressureSolver = pressureSolver;
+    }
+
+    public LinearSolver getDiffusionSolver() {
+        return diffusionSolver;
+    }
+
+    public void setDiffusionSolver(LinearSolver diffusionSolver) {
+        this.diffusionSolver = diffusionSolver;
+    }
+
+    /**
+     * Returns the multigrid solver used by {@link LinearSolver#MULTIGRID}, creating it with as many levels as the
+     * grid allows if needed. Use it to configure cycles, smoothing and tolerance.
+     */
+    public MultigridSolver getMultigrid() {
+        if (multigrid == null) multigrid = new MultigridSolver(nX, nY, Integer.MAX_VALUE);
+        return multigrid;
+    }
+
+    /**
+     * Returns the tiles used by {@link Relaxation#TILED_JACOBI}, creating them if needed. Use it to configure the cache
+     * budget and the iterations per tile.
+     */
+    public TiledJacobi getTiledJacobi() {
+        if (tiledJacobi == null) tiledJacobi = new TiledJacobi(nX, nY);
+        return tiledJacobi;
+    }
+
+    /**
+     * Replaces the multigrid solver with one of at most {@code maxLevels} levels.
+     */
+    public void setMultigridLevels(int maxLevels) {
+        multigrid = new MultigridSolver(nX, nY, maxLevels);
+    }
+
+    /**
+     * Returns the solver used by {@link LinearSolver#CONJUGATE_GRADIENT}, creating it if needed. Use it to configure
+     * the preconditioner, tolerance and maximum iterations.
+     */
+    public ConjugateGradientSolver getConjugateGradient() {
+        if (conjugateGradient == null) conjugateGradient = new ConjugateGradientSolver(nX, nY);
+        return conjugateGradient;
+    }
+
+    /**
+     * Iterations and residuals of the pressure solves during the last step.
+     */
+    public SolveStats getPressureStats() {
+        return pressureStats;
+    }
+
+    /**
+     * Iterations and residuals of the diffusion solves during the last step.
+     */
+    public SolveStats getDiffusionStats() {
+        return diffusionStats;
+    }
+
+    public void setDiffusionRate(float diffusionRate) {
+        this.diffusionRate = diffusionRate;
+    }
+
+    public void setViscosity(float viscosity) {
+        this.viscosity = viscosity;
+    }
+
+    /**
+     * The time step of the last step.
+     */
+    public float getDeltaTime() {
+        return deltaTime;
+    }
+
+    /**
+     * The number of steps taken, including those restored by {@link #loadCheckpoint(Path)}.
+     */
+    public long getStepCount() {
+        return stepCount;
+    }
+
+    /**
+     * Writes the density and velocity fields to a {@link Checkpoint}. That is all a step depends on: every pressure
+     * solve starts from zero, so a resumed run computes the same fields bit for bit without the pressure.
+     */
+    public void saveCheckpoint(Path path) throws IOException {
+        if (checkpointBuffer == null) checkpointBuffer = Checkpoint.createBuffer(nX, nY);
+
+        try (Checkpoint checkpoint = Checkpoint.create(path, checkpointBuffer, nX, nY, deltaTime, stepCount, false)) {
+            checkpoint.write(Checkpoint.Field.DENSITY, densities);
+            checkpoint.write(Checkpoint.Field.VELOCITY_X, velocitiesX);
+            checkpoint.write(Checkpoint.Field.VELOCITY_Y, velocitiesY);
+            checkpoint.commit();
+        }
+    }
+
+    /**
+     * Restores the fields and the step count of a {@link Checkpoint}. Pending sources are dropped, and a pressure
+     * plane, e.g. from the OpenGL engine, is ignored. Each field is restored with a single bulk copy.
+     */
+    public void loadCheckpoint(Path path) throws IOException {
+        try (Checkpoint checkpoint = Checkpoint.open(path)) {
+            checkpoint.checkSize(nX, nY);
+
+            // The fields are overwritten, only the sources need clearing.
+            clearSource(prevDensities);
+            clearSource(prevVelocitiesX);
+            clearSource(prevVelocitiesY);
+            checkpoint.field(Checkpoint.Field.DENSITY).get(densities);
+            checkpoint.field(Checkpoint.Field.VELOCITY_X).get(velocitiesX);
+            checkpoint.field(Checkpoint.Field.VELOCITY_Y).get(velocitiesY);
+
+            deltaTime = checkpoint.deltaTime;
+            stepCount = checkpoint.stepCount;
+        }
+    }
+
+    /**
+     * Sets the time step used by the individual passes. {@link #step(float)} does this itself.
+     */
+    void setDeltaTime(float deltaTime) {
+        this.deltaTime = deltaTime;
+    }
+
+    void addSource(float[] arr, float[] source) {
+        PhaseEvent event = new PhaseEvent(PhaseEvent.Phase.ADD_SOURCE, nX, nY, deltaTime);
+        event.begin();
+
+        if (bands == null)
+            addSourceRows(arr, source, deltaTime, 0, nY + 2);
+        else
+            bands.forEach(0, nY + 2, (from, to) -> addSourceRows(arr, source, deltaTime, from, to));
+
+        event.end(0);
+    }
+
+    void clearSource(float[] source) {
+        Arrays.fill(source, 0);
+    }
+
+    void diffuse(float[] arr, float[] arrPrev, float rate, int bound) {
+        PhaseEvent event = new PhaseEvent(PhaseEvent.Phase.DIFFUSE, nX, nY, deltaTime);
+        event.begin();
+        int iterations = diffusionStats.getIterations();
+
+        int scale = getScale();
+        float a = deltaTime * rate * scale * scale;
+        linearSolve(arr, arrPrev, a, 1 + 4 * a, bound, diffusionSolver, diffusionStats);
+
+        event.end(diffusionStats.getIterations() - iterations);
+    }
+
+    void advect(float[] arr, float[] arrPrev, float[] velX, float[] velY, int bound) {
+        PhaseEvent event = new PhaseEvent(PhaseEvent.Phase.ADVECT, nX, nY, deltaTime);
+        event.begin();
+
+        float deltaTime0 = deltaTime * getScale();
+
+        if (bands == null)
+            advectRows(arr, arrPrev, velX, velY, deltaTime0, 1, nY + 1);
+        else
+            bands.forEach(1, nY + 1, (from, to) -> advectRows(arr, arrPrev, velX, velY, deltaTime0, from, to));
+        setBound(bound, arr);
+
+        event.end(0);
+    }
+
+    /**
+     * Advects every field {@code arrs[k]} from {@code arrPrevs[k]} along {@code (velX, velY)} in one pass and sets its
+     * boundary with {@code bounds[k]}. The backtrace and the interpolation weights of a cell are computed once for all
+     * fields.
+     */
+    void advect(float[][] arrs, float[][] arrPrevs, int[] bounds, float[] velX, float[] velY) {
+        PhaseEvent event = new PhaseEvent(PhaseEvent.Phase.ADVECT, nX, nY, deltaTime);
+        event.begin();
+
+        float deltaTime0 = deltaTime * getScale();
+
+        if (bands == null)
+            advectRows(arrs, arrPrevs, velX, velY, deltaTime0, 1, nY + 1);
+        else
+            bands.forEach(1, nY + 1, (from, to) -> advectRows(arrs, arrPrevs, velX, velY, deltaTime0, from, to));
+        for (int k = 0; k < arrs.length; k++)
+            setBound(bounds[k], arrs[k]);
+
+        event.end(0);
+    }
+
+    void project() {
+        PhaseEvent event = new PhaseEvent(PhaseEvent.Phase.PROJECT, nX, nY, deltaTime);
+        event.begin();
+        int iterations = pressureStats.getIterations();
+
+        float h = 1.0f / getScale();
+
+        if (bands == null)
+            divergenceRows(h, 1, nY + 1);
+        else
+            bands.forEach(1, nY + 1, (from, to) -> divergenceRows(h, from, to));
+        setBound(0, divergence);
+        setBound(0, pressure);
+
+        linearSolve(pressure, divergence, 1, 4, 0, pressureSolver, pressureStats);
+
+        if (bands == null)
+            subtractGradientRows(h, 1, nY + 1);
+        else
+            bands.forEach(1, nY + 1, (from, to) -> subtractGradientRows(h, from, to));
+        setBound(1, velocitiesX);
+        setBound(2, velocitiesY);
+
+        event.end(pressureStats.getIterations() - iterations);
+    }
+
+    /**
+     * Solves {@code c * x - a * (sum of the 4 neighbours of x) = x0} with the given method.
+     */
+    void linearSolve(float[] x, float[] x0, float a, float c, int bound, LinearSolver solver, SolveStats stats) {
+        switch (solver) {
+            case RELAXATION -> {
+                relax(x, x0, a, c, bound);
+                stats.record(iterationCount, Float.NaN);
+            }
+            case MULTIGRID -> getMultigrid().solve(x, x0, a, c, bound, kernels, bands, stats);
+            case CONJUGATE_GRADIENT -> getConjugateGradient().solve(x, x0, a, c, bound, bands, stats);
+        }
+    }
+
+    /**
+     * Relaxes {@code c * x - a * (sum of the 4 neighbours of x) = x0} for {@link #iterationCount} sweeps with the
+     * current {@link Relaxation} scheme.
+     */
+    void relax(float[] x, float[] x0, float a, float c, int bound) {
+        float invC = 1 / c;
+
+        switch (relaxation) {
+            case GAUSS_SEIDEL -> {
+                for (int k = 0; k < iterationCount; k++) {
+                    gaussSeidelRows(x, x0, a, invC, 1, nY + 1);
+                    setBound(bound, x);
+                }
+            }
+            case RED_BLACK -> {
+                for (int k = 0; k < iterationCount; k++) {
+                    for (int color = 0; color < 2; color++) {
+                        int c0 = color;
+                        if (bands == null)
+                            redBlackRows(x, x0, a, invC, c0, 1, nY + 1);
+                        else
+                            bands.forEach(1, nY + 1, (from, to) -> redBlackRows(x, x0, a, invC, c0, from, to));
+                    }
+                    setBound(bound, x);
+                }
+            }
+            case JACOBI -> {
+                float[] src = x;
+                float[] dst = scratch;
+                for (int k = 0; k < iterationCount; k++) {
+                    float[] s0 = src, d0 = dst;
+                    if (bands == null)
+                        jacobiRows(d0, s0, x0, a, invC, 1, nY + 1);
+                    else
+                        bands.forEach(1, nY + 1, (from, to) -> jacobiRows(d0, s0, x0, a, invC, from, to));
+                    setBound(bound, dst);
+
+                    dst = src;
+                    src = d0;
+                }
+
+                // An odd number of iterations leaves the result in the scratch buffer.
+                if (src != x) System.arraycopy(src, 0, x, 0, size);
+            }
+            case TILED_JACOBI ->
+                    getTiledJacobi().relax(x, x0, scratch, a, invC, bound, iterationCount, kernels, bands);
+        }
+    }
+
+    private void addSourceRows(float[] arr, float[] source, float deltaTime, int from, int to) {
+        for (int idx = from * stride; idx < to * stride; idx++) {
+            arr[idx] += deltaTime * source[idx];
+        }
+    }
+
+    private void gaussSeidelRows(float[] x, float[] x0, float a, float invC, int from, int to) {
+        for (int j = from; j < to; j++) {
+            int row = j * stride;
+            for (int idx = row + 1; idx <= row + nX; idx++) {
+                float left = x[idx - 1];
+                float right = x[idx + 1];
+                float up = x[idx - stride];
+                float down = x[idx + stride];
+                x[idx] = (x0[idx] + a * (left + right + up + down)) * invC;
+            }
+        }
+    }
+
+    /**
+     * Updates only the cells whose {@code (i + j) % 2} equals {@code color}. Those cells only read cells of the other
+     * color, so rows can be processed in any order and on any thread.
+     */
+    private void redBlackRows(float[] x, float[] x0, float a, float invC, int color, int from, int to) {
+        for (int j = from; j < to; j++) {
+            int row = j * stride;
+            int first = ((1 + j) & 1) == color ? 1 : 2;
+            kernels.redBlack(x, x0, a, invC, row + first, row + nX + 1, stride);
+        }
+    }
+
+    private void jacobiRows(float[] dst, float[] src, float[] x0, float a, float invC, int from, int to) {
+        for (int j = from; j < to; j++) {
+            int row = j * stride;
+            kernels.jacobi(dst, src, x0, a, invC, row + 1, row + nX + 1, stride);
+        }
+    }
+
+    private void advectRows(float[] arr, float[] arrPrev, float[] velX, float[] velY, float deltaTime0, int from, int to) {
+        for (int j = from; j < to; j++) {
+            int row = j * stride;
+            for (int i = 1; i <= nX; i++) {
+                int idx = row + i;
+                float x = Math.clamp(0.5f, nX + 0.5f, i - deltaTime0 * velX[idx]);
+                float y = Math.clamp(0.5f, nY + 0.5f, j - deltaTime0 * velY[idx]);
+
+                int i0 = (int) x;
+                int j0 = (int) y;
+                int idx00 = i0 + j0 * stride;
+                int idx01 = idx00 + stride;
+
+                float s1 = x - i0;
+                float s0 = 1 - s1;
+                float t1 = y - j0;
+                float t0 = 1 - t1;
+
+                arr[idx] = s0 * (t0 * arrPrev[idx00] + t1 * arrPrev[idx01]) +
+                        s1 * (t0 * arrPrev[idx00 + 1] + t1 * arrPrev[idx01 + 1]);
+            }
+        }
+    }
+
+    private void advectRows(float[][] arrs, float[][] arrPrevs, float[] velX, float[] velY, float deltaTime0,
+                            int from, int to) {
+        int fieldCount = arrs.length;
+        for (int j = from; j < to; j++) {
+            int row = j * stride;
+            for (int i = 1; i <= nX; i++) {
+                int idx = row + i;
+                float x = Math.clamp(0.5f, nX + 0.5f, i - deltaTime0 * velX[idx]);
+                float y = Math.clamp(0.5f, nY + 0.5f, j - deltaTime0 * velY[idx]);
+
+                int i0 = (int) x;
+                int j0 = (int) y;
+                int idx00 = i0 + j0 * stride;
+                int idx01 = idx00 + stride;
+
+                float s1 = x - i0;
+                float s0 = 1 - s1;
+                float t1 = y - j0;
+                float t0 = 1 - t1;
+
+                // The same expression as the single-field pass, so a field advects identically in both.
+                for (int k = 0; k < fieldCount; k++) {
+                    float[] arrPrev = arrPrevs[k];
+                    arrs[k][idx] = s0 * (t0 * arrPrev[idx00] + t1 * arrPrev[idx01]) +
+                            s1 * (t0 * arrPrev[idx00 + 1] + t1 * arrPrev[idx01 + 1]);
+                }
+            }
+        }
+    }
+
+    private void divergenceRows(float h, int from, int to) {
+        for (int j = from; j < to; j++) {
+            int row = j * stride;
+            kernels.divergence(divergence, velocitiesX, velocitiesY, -0.5f * h, row + 1, row + nX + 1, stride);
+            Arrays.fill(pressure, row + 1, row + nX + 1, 0);
+        }
+    }
+
+    private void subtractGradientRows(float h, int from, int to) {
+        for (int j = from; j < to; j++) {
+            int row = j * stride;
+            kernels.subtractGradient(velocitiesX, velocitiesY, pressure, 0.5f / h, row + 1, row + nX + 1, stride);
+        }
+    }
+
+    /**
+     * Sets the boundary cells of {@code arr}.
+     * A bound of 1 mirrors the x component, 2 mirrors the y component and 0 copies the neighbours.
+     */
+    void setBound(int bound, float[] arr) {
+        setBound(bound, arr, nX, nY, stride);
+    }
+
+    /**
+     * {@link #setBound(int, float[])} for a field of any size, e.g. a coarse multigrid level.
+     */
+    static void setBound(int bound, float[] arr, int nX, int nY, int stride) {
+        int last = (nY + 1) * stride;
+        for (int j = 1; j <= nY; j++) {
+            int row = j * stride;
+            arr[row] = bound == 1 ? -arr[row + 1] : arr[row + 1];
+            arr[row + nX + 1] = bound == 1 ? -arr[row + nX] : arr[row + nX];
+        }
+        for (int i = 1; i <= nX; i++) {
+            arr[i] = bound == 2 ? -arr[i + stride] : arr[i + stride];
+            arr[last + i] = bound == 2 ? -arr[last - stride + i] : arr[last - stride + i];
+        }
+        arr[0] = 0.5f * (arr[1] + arr[stride]);
+        arr[last] = 0.5f * (arr[last + 1] + arr[last - stride]);
+        arr[nX + 1] = 0.5f * (arr[nX] + arr[nX + 1 + stride]);
+        arr[last + nX + 1] = 0.5f * (arr[last + nX] + arr[last - stride + nX + 1]);
+    }
+
+    void densityStep() {
+        addSource(densities, prevDensities);
+
+        // swap and diffuse
+        float[] temp = prevDensities;
+        prevDensities = densities;
+        densities = temp;
+
+        diffuse(densities, prevDensities, diffusionRate, 0);
+
+        // swap and advect
+        temp = prevDensities;
+        prevDensities = densities;
+        densities = temp;
+
+        advect(densities, prevDensities, velocitiesX, velocitiesY, 0);
+    }
+
+    void velocityStep() {
+        addSource(velocitiesX, prevVelocitiesX);
+        addSource(velocitiesY, prevVelocitiesY);
+
+        // swap and diffuse
+        float[] temp = prevVelocitiesX;
+        prevVelocitiesX = velocitiesX;
+        velocitiesX = temp;
+
+        temp = prevVelocitiesY;
+        prevVelocitiesY = velocitiesY;
+        velocitiesY = temp;
+
+        diffuse(velocitiesX, prevVelocitiesX, viscosity, 1);
+        diffuse(velocitiesY, prevVelocitiesY, viscosity, 2);
+
+        project();
+
+        // swap and advect
+        temp = prevVelocitiesX;
+        prevVelocitiesX = velocitiesX;
+        velocitiesX = temp;
+
+        temp = prevVelocitiesY;
+        prevVelocitiesY = velocitiesY;
+        velocitiesY = temp;
+
+        advect(velocitiesX, prevVelocitiesX, prevVelocitiesX, prevVelocitiesY, 1);
+        advect(velocitiesY, prevVelocitiesY, prevVelocitiesX, prevVelocitiesY, 2);
+
+        project();
+    }
+
+    /**
+     * The step of {@link Pipeline#FUSED}: the sources, diffusion and first projection as in the reference order, then
+     * one advection pass for the velocity and the density, then the second projection.
+     */
+    void fusedStep() {
+        addSource(velocitiesX, prevVelocitiesX);
+        addSource(velocitiesY, prevVelocitiesY);
+        addSource(densities, prevDensities);
+        swapVelocities();
+        swapDensities();
+
+        diffuse(velocitiesX, prevVelocitiesX, viscosity, 1);
+        diffuse(velocitiesY, prevVelocitiesY, viscosity, 2);
+        diffuse(densities, prevDensities, diffusionRate, 0);
+
+        project();
+
+        swapVelocities();
+        swapDensities();
+
+        advectedFields[0] = velocitiesX;
+        advectedFields[1] = velocitiesY;
+        advectedFields[2] = densities;
+        advectedPrevFields[0] = prevVelocitiesX;
+        advectedPrevFields[1] = prevVelocitiesY;
+        advectedPrevFields[2] = prevDensities;
+        advect(advectedFields, advectedPrevFields, advectedBounds, prevVelocitiesX, prevVelocitiesY);
+
+        project();
+    }
+
+    private void swapVelocities() {
+        float[] temp = prevVelocitiesX;
+        prevVelocitiesX = velocitiesX;
+        velocitiesX = temp;
+
+        temp = prevVelocitiesY;
+        prevVelocitiesY = velocitiesY;
+        velocitiesY = temp;
+    }
+
+    private void swapDensities() {
+        float[] temp = prevDensities;
+        prevDensities = densities;
+        densities = temp;
+    }
+}
@@ -2,17 +2,73 @@ package system;
 
 import org.lwjgl.BufferUtils;
 
+import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.nio.FloatBuffer;
+import java.nio.file.Path;
+import java.util.EnumMap;
 import java.util.EnumSet;
+import java.util.Map;
 
 import static org.lwjgl.opengl.GL43.*;
 
 public class Engine {
+    public enum Pipeline {
+        /**
+         * One compute pass per operation of the solver, each followed by a barrier.
+         */
+        REFERENCE,
+        /**
+         * Combined passes that compute the same steps: the sources are added in the first diffusion iteration, the velocity
+         * bounds are set by the passes that write the velocity, the advected velocity's divergence is computed in the
+         * advection pass, and the ping-pong is arranged so that no texture has to be copied.
+         * <br>
+         * The diffusion starts from the current state instead of the sources, so the two pipelines agree to within the
+         * convergence of the diffusion solve, not bit for bit. {@link #comparePipelines(float)} measures how far.
+         */
+        FUSED
+    }
+
+    public enum Relaxation {
+        /**
+         * jacobi.glsl, which updates the solution in place, so some neighbours already hold new values in an order that
+         * depends on the scheduling. Above 1 iteration per dispatch, the iterations run like {@link #JACOBI}.
+         */
+        IN_PLACE_JACOBI,
+        /**
+         * Plain Jacobi, which reads the previous iteration from one texture and writes another. The result is
+         * reproducible. Runs {@link #setJacobiIterationsPerDispatch(int)} iterations per dispatch.
+         */
+        JACOBI,
+        /**
+         * Red-black Gauss-Seidel: every iteration updates the cells with an even {@code x + y} in one dispatch, then
+         * the odd ones from the new even values in another. The result is reproducible, and it converges about twice
+         * as fast per iteration, so it runs half as many. Over-relaxed by {@link #setOverRelaxation(float)}.
+         */
+        RED_BLACK_GAUSS_SEIDEL
+    }
+
+    /**
+     * The fields whose storage {@link Texture.Precision} can be chosen. The Jacobi scratch textures and the copies of
+     * {@link #savePreviousState()} follow the field they belong to.
+     */
+    public enum Field {DENSITY, VELOCITY, DIVERGENCE, PRESSURE}
+
     public static final int NUM_LOCAL_SIZE_X = 16;
     public static final int NUM_LOCAL_SIZE_Y = 16;
     private static final int JACOBI_ITERATION_COUNT = 40;
-    private static ShaderProgram subtractPressureProgram, divergenceProgram, setBoundProgram;
-    private static MultiProgramManager addSourceProgramMgr, jacobiProgramMgr, advectProgramMgr;
+    private static final int RED_BLACK_ITERATION_COUNT = JACOBI_ITERATION_COUNT / 2;
+    /**
+     * The most iterations jacobiTiled.glsl runs per dispatch. Its shared memory is sized for this many.
+     */
+    public static final int MAX_JACOBI_ITERATIONS_PER_DISPATCH = 8;
+    private static final int MAX_SPLATS_PER_FRAME = 256;
+    private static final int SPLAT_RADIUS = 2;
+    private static MultiProgramManager subtractPressureProgramMgr, divergenceProgramMgr, setBoundProgramMgr;
+    private static MultiProgramManager splatProgramMgr, subtractPressureFusedProgramMgr, advectDivergenceProgramMgr;
+    private static MultiProgramManager clearSourcesProgramMgr;
+    private static MultiProgramManager addSourceProgramMgr, jacobiProgramMgr, advectProgramMgr, residualProgramMgr;
+    private static MultiProgramManager jacobiFusedProgramMgr, jacobiTiledProgramMgr, redBlackProgramMgr;
 
     public final int nX;
     public final int nY;
@@ -21,17 +77,57 @@ public class Engine {
     public final int numGroupsX;
     public final int numGroupsY;
     public final int setBoundNumGroups;
+    public final int redBlackNumGroupsX;
+    private final Map<Field, Texture.Precision> precisions = new EnumMap<>(Field.class);
     private final PingPongTexture densities;
     private final PingPongTexture velocities;
     private final Texture divergence;
     private final Texture pressure;
-    private final FloatBuffer userInputVelocityBuffer;
-    private final FloatBuffer userInputDensityBuffer;
-    private final float[][][] userInputVelocityArray;
-    private final float[][] userInputDensityArray;
+    private final Texture jacobiScratchR;
+    private final Texture jacobiScratchRG;
+    /**
+     * {@link #jacobiScratchR} if the pressure has the density's precision, otherwise a texture of its own.
+     */
+    private final Texture pressureScratch;
+    /**
+     * The variants of the passes whose images are always the same fields, for the precisions of this engine.
+     */
+    private final ShaderProgram subtractPressureProgram, divergenceProgram, setBoundProgram, splatProgram;
+    private final ShaderProgram subtractPressureFusedProgram, advectDivergenceProgram, clearSourcesProgram;
+    private final SplatBatch splats;
+    private final FloatBuffer splatUploadBuffer;
+    private final BufferObject splatBuffer;
+    /**
+     * One per equation, so each solve can stop where the previous solve of the same equation converged.
+     */
+    private final ResidualMonitor densityResidualMonitor, velocityResidualMonitor, pressureResidualMonitor;
+    private final SolveStats diffusionStats = new SolveStats();
+    private final SolveStats pressureStats = new SolveStats();
+    /**
+     * Copies of the state before the last step, created by the first {@link #savePreviousState()}.
+     */
+    private Texture previousDensity, previousVelocity;
+    /**
+     * Reused by every checkpoint save and load, created by the first one.
+     */
+    private ByteBuffer checkpointBuffer;
+    private FloatBuffer checkpointStaging, checkpointVelocityStaging;
 
-    private int lastMouseX;
-    private int lastMouseY;
+    /**
+     * Jacobi iterations between two residual measurements. 0 disables the measurements, so every solve runs
+     * {@link #JACOBI_ITERATION_COUNT} iterations.
+     */
+    private int residualCheckInterval = 5;
+    private float residualTolerance = 1e-3f;
+    private int jacobiIterationsPerDispatch = 1;
+    private Relaxation diffusionRelaxation = Relaxation.IN_PLACE_JACOBI;
+    private Relaxation pressureRelaxation = Relaxation.IN_PLACE_JACOBI;
+    private float overRelaxation = 1;
+
+    private Pipeline pipeline = Pipeline.REFERENCE;
+    private GpuTimer timer;
+    private float lastDeltaTime;
+    private long stepCount;
 
     /**
      * Whether {@link #clear()} method was ever called.
@@ -39,6 +135,18 @@ public class Engine {
     private boolean hasCleared;
 
     public Engine(int nX, int nY) {
+        this(nX, nY, Map.of());
+    }
+
+    /**
+     * Creates an engine whose fields are stored with the given precisions. Fields without one are
+     * {@link Texture.Precision#FULL}. Half precision halves the memory and the bandwidth of the passes over that field;
+     * a half precision pressure may not reach the residual tolerance and then runs every iteration.
+     */
+    public Engine(int nX, int nY, Map<Field, Texture.Precision> precisions) {
+        for (Field field : Field.values())
+            this.precisions.put(field, precisions.getOrDefault(field, Texture.Precision.FULL));
+
         this.nX = nX;
         this.nY = nY;
         this.textureWidth = nX + 2;
@@ -46,14 +154,46 @@ public class Engine {
         this.numGroupsX = getNumGroupsX(textureWidth);
         this.numGroupsY = getNumGroupsY(textureHeight);
         this.setBoundNumGroups = getNumGroupsX(2 * (textureWidth + textureHeight) - 4);
-        this.densities = new PingPongTexture(textureWidth, textureHeight, GL_R32F, GL_RED, null, true);
-        this.velocities = new PingPongTexture(textureWidth, textureHeight, GL_RG32F, GL_RG, null, true);
-        this.divergence = new Texture(textureWidth, textureHeight, GL_R32F, GL_RED, null, true);
-        this.pressure = new Texture(textureWidth, textureHeight, GL_R32F, GL_RED, null, true);
-        this.userInputVelocityArray = new float[textureWidth][textureHeight][2];
-        this.userInputVelocityBuffer = BufferUtils.createFloatBuffer(textureWidth * textureHeight * 2);
-        this.userInputDensityArray = new float[textureWidth][textureHeight];
-        this.userInputDensityBuffer = BufferUtils.createFloatBuffer(textureWidth * textureHeight);
+        this.redBlackNumGroupsX = getNumGroupsX((textureWidth + 1) / 2);
+        this.densities = new PingPongTexture(textureWidth, textureHeight, internalFormat(Field.DENSITY, GL_RED),
+                GL_RED, null, true);
+        this.velocities = new PingPongTexture(textureWidth, textureHeight, internalFormat(Field.VELOCITY, GL_RG),
+                GL_RG, null, true);
+        this.divergence = new Texture(textureWidth, textureHeight, internalFormat(Field.DIVERGENCE, GL_RED), GL_RED,
+                null, true);
+        this.pressure = new Texture(textureWidth, textureHeight, internalFormat(Field.PRESSURE, GL_RED), GL_RED, null,
+                true);
+        this.jacobiScratchR = new Texture(textureWidth, textureHeight, internalFormat(Field.DENSITY, GL_RED), GL_RED,
+                null, true);
+        this.jacobiScratchRG = new Texture(textureWidth, textureHeight, internalFormat(Field.VELOCITY, GL_RG), GL_RG,
+                null, true);
+        this.pressureScratch = getPrecision(Field.PRESSURE) == getPrecision(Field.DENSITY) ? jacobiScratchR :
+                new Texture(textureWidth, textureHeight, internalFormat(Field.PRESSURE, GL_RED), GL_RED, null, true);
+        this.splats = new SplatBatch(MAX_SPLATS_PER_FRAME);
+        this.splatUploadBuffer = BufferUtils.createFloatBuffer(MAX_SPLATS_PER_FRAME * SplatBatch.FLOATS_PER_SPLAT);
+        this.splatBuffer = new BufferObject((long) splatUploadBuffer.capacity() * Float.BYTES,
+                GL_SHADER_STORAGE_BUFFER, GL_STREAM_DRAW, true);
+        this.densityResidualMonitor = new ResidualMonitor(numGroupsX, numGroupsY);
+        this.velocityResidualMonitor = new ResidualMonitor(numGroupsX, numGroupsY);
+        this.pressureResidualMonitor = new ResidualMonitor(numGroupsX, numGroupsY);
+
+        Texture velocity = velocities.getWriteTexture();
+        Texture density = densities.getWriteTexture();
+        this.subtractPressureProgram = subtractPressureProgramMgr.getProgram(velocity);
+        this.divergenceProgram = divergenceProgramMgr.getProgram(divergence);
+        this.setBoundProgram = setBoundProgramMgr.getProgram(velocity);
+        this.splatProgram = splatProgramMgr.getProgram(density, velocity);
+        this.subtractPressureFusedProgram = subtractPressureFusedProgramMgr.getProgram(velocity);
+        this.advectDivergenceProgram = advectDivergenceProgramMgr.getProgram(velocity, divergence);
+        this.clearSourcesProgram = clearSourcesProgramMgr.getProgram(density, velocity, pressure);
+    }
+
+    public Texture.Precision getPrecision(Field field) {
+        return precisions.get(field);
+    }
+
+    private int internalFormat(Field field, int format) {
+        return getPrecision(field).internalFormat(format);
     }
 
     /**
@@ -62,32 +202,20 @@ public class Engine {
     public void clear() {
         densities.clearData();
         velocities.clearData();
+        if (previousDensity != null) {
+            previousDensity.clearData();
+            previousVelocity.clearData();
+        }
 
         hasCleared = true;
     }
 
-    public void userInput(int mouseX, int mouseY) {
-        float velocityX = (float) (mouseX - lastMouseX) * 10;
-        float velocityY = (float) (mouseY - lastMouseY) * 10;
-
-        int halfSize = 2;
-        for (int i = -halfSize; i <= halfSize; i++) {
-            for (int j = -halfSize; j <= halfSize; j++) {
-                int x = mouseX + i;
-                int y = mouseY + j;
-
-                if (x < 0 || x >= textureWidth || y < 0 || y >= textureHeight) {
-                    continue; // Skip out-of-bounds coordinates
-                }
-
-                userInputVelocityArray[x][y][0] = velocityX;
-                userInputVelocityArray[x][y][1] = velocityY;
-                userInputDensityArray[x][y] = 1.0f;
-            }
-        }
-
-        lastMouseX = mouseX;
-        lastMouseY = mouseY;
+    /**
+     * Queues a splat of density and velocity at texel {@code (x, y)} for the next {@link #step(float)}. The velocity
+     * follows the mouse movement, in texels, since the previous step.
+     */
+    public void userInput(int x, int y, int movementX, int movementY) {
+        splats.add(x, y, SPLAT_RADIUS, 1.0f, movementX * 10f, movementY * 10f);
     }
 
     public Texture getDensityTexture() {
@@ -98,37 +226,385 @@ public class Engine {
         return velocities.getWriteTexture();
     }
 
+    /**
+     * Copies the current density and velocity, so the renderer can blend from them towards the state after the next
+     * {@link #step(float)}. Call it only before the last step of a frame; the copies cost about one pass each.
+     */
+    public void savePreviousState() {
+        if (previousDensity == null) {
+            previousDensity = new Texture(textureWidth, textureHeight, internalFormat(Field.DENSITY, GL_RED), GL_RED,
+                    null, true);
+            previousVelocity = new Texture(textureWidth, textureHeight, internalFormat(Field.VELOCITY, GL_RG), GL_RG,
+                    null, true);
+        }
+        previousDensity.copyFrom(getDensityTexture());
+        previousVelocity.copyFrom(getVelocityTexture());
+    }
+
+    /**
+     * The density saved by the last {@link #savePreviousState()}, or the current one if it was never called.
+     */
+    public Texture getPreviousDensityTexture() {
+        return previousDensity == null ? getDensityTexture() : previousDensity;
+    }
+
+    /**
+     * The velocity saved by the last {@link #savePreviousState()}, or the current one if it was never called.
+     */
+    public Texture getPreviousVelocityTexture() {
+        return previousVelocity == null ? getVelocityTexture() : previousVelocity;
+    }
+
     public boolean hasCleared() {
         return hasCleared;
     }
 
+    public Pipeline getPipeline() {
+        return pipeline;
+    }
+
+    /**
+     * Takes effect from the next {@link #step(float)}. Both pipelines leave the textures in the same state between
+     * steps, so they can be switched while running.
+     */
+    public void setPipeline(Pipeline pipeline) {
+        this.pipeline = pipeline;
+    }
+
+    /**
+     * Sets how many Jacobi iterations run per dispatch, from 1 to {@link #MAX_JACOBI_ITERATIONS_PER_DISPATCH}. Above
+     * 1, the iterations run in shared memory on tiles with a halo, and each solve reads and writes the global textures
+     * once per dispatch instead of once per iteration. The tiled iterations are plain Jacobi, while a single
+     * {@link Relaxation#IN_PLACE_JACOBI} iteration updates the texture in place and already sees some of the new
+     * neighbours, so a solve may need a few more iterations to meet the residual tolerance. A half precision field is
+     * rounded to 16 bits once per dispatch instead of once per iteration. Does not apply to
+     * {@link Relaxation#RED_BLACK_GAUSS_SEIDEL}.
+     */
+    public void setJacobiIterationsPerDispatch(int jacobiIterationsPerDispatch) {
+        if (jacobiIterationsPerDispatch < 1 || jacobiIterationsPerDispatch > MAX_JACOBI_ITERATIONS_PER_DISPATCH)
+            throw new IllegalArgumentException("Jacobi iterations per dispatch must be between 1 and " +
+                    MAX_JACOBI_ITERATIONS_PER_DISPATCH + ": " + jacobiIterationsPerDispatch);
+
+        this.jacobiIterationsPerDispatch = jacobiIterationsPerDispatch;
+    }
+
+    public void setDiffusionRelaxation(Relaxation diffusionRelaxation) {
+        this.diffusionRelaxation = diffusionRelaxation;
+    }
+
+    public void setPressureRelaxation(Relaxation pressureRelaxation) {
+        this.pressureRelaxation = pressureRelaxation;
+    }
+
+    /**
+     * Sets the over-relaxation factor of {@link Relaxation#RED_BLACK_GAUSS_SEIDEL}, between 0 and 2 exclusive. 1 is
+     * plain Gauss-Seidel; a value around 1.5 to 1.9 usually converges faster.
+     */
+    public void setOverRelaxation(float overRelaxation) {
+        if (!(overRelaxation > 0 && overRelaxation < 2))
+            throw new IllegalArgumentException("The over-relaxation factor must be between 0 and 2: " + overRelaxation);
+
+        this.overRelaxation = overRelaxation;
+    }
+
+    public void setResidualCheckInterval(int residualCheckInterval) {
+        this.residualCheckInterval = residualCheckInterval;
+    }
+
+    /**
+     * Jacobi solves stop once the relative residual {@code |r| / |rhs|} is at or below this value.
+     */
+    public void setResidualTolerance(float residualTolerance) {
+        this.residualTolerance = residualTolerance;
+    }
+
+    /**
+     * Iterations and residuals of the diffusion solves during the last step. The residuals are the last ones read
+     * back, which lag the final iterate by up to one check interval.
+     */
+    public SolveStats getDiffusionStats() {
+        return diffusionStats;
+    }
+
+    /**
+     * Iterations and residuals of the pressure solves during the last step, see {@link #getDiffusionStats()}.
+     */
+    public SolveStats getPressureStats() {
+        return pressureStats;
+    }
+
+    /**
+     * Records the commands of one step. Its {@link StepEvent} spans the time the CPU spends recording them and reading
+     * back residuals, not the GPU time, which {@link #setTimer(GpuTimer)} measures.
+     */
     public void step(float deltaTime) {
+        StepEvent event = new StepEvent(stepCount, nX, nY, deltaTime);
+        event.begin();
+
+        diffusionStats.reset();
+        pressureStats.reset();
+
+        mark(GpuTimer.Pass.SOURCES);
+        getSourcesFromUI();
+        step(pipeline, deltaTime);
+
+        lastDeltaTime = deltaTime;
+        stepCount++;
+        event.end(pressureStats, diffusionStats);
+    }
+
+    private void step(Pipeline pipeline, float deltaTime) {
+        if (pipeline == Pipeline.FUSED) {
+            fusedVelocityStep(deltaTime);
+            fusedDensityStep(deltaTime);
+            mark(GpuTimer.Pass.SOURCES);
+            fusedClearSources();
+        } else {
+            velocityStep(deltaTime);
+            densityStep(deltaTime);
+            mark(GpuTimer.Pass.SOURCES);
+            clearSources();
+        }
+    }
+
+    /**
+     * Runs the next step with both pipelines from the same state and sources, and returns the largest absolute
+     * difference between their densities and between their velocities, in that order. The step of the current
+     * pipeline is kept.
+     * <br>
+     * Both run every Jacobi iteration, as the early exits depend on residuals that arrive at different times. With
+     * {@link Relaxation#IN_PLACE_JACOBI} the result also depends on the scheduling, so compare with one of the
+     * reproducible relaxations.
+     */
+    public float[] comparePipelines(float deltaTime) {
         getSourcesFromUI();
-        velocityStep(deltaTime);
-        densityStep(deltaTime);
 
-        clearSources();
+        Texture[] fields = {densities.getReadTexture(), densities.getWriteTexture(), velocities.getReadTexture(),
+                velocities.getWriteTexture(), pressure};
+        Texture[] saved = new Texture[fields.length];
+        for (int i = 0; i < fields.length; i++) {
+            saved[i] = new Texture(textureWidth, textureHeight, fields[i].getInternalFormat(), fields[i].getFormat(),
+                    null, false);
+            saved[i].copyFrom(fields[i]);
+        }
+
+        int interval = residualCheckInterval;
+        residualCheckInterval = 0;
+        diffusionStats.reset();
+        pressureStats.reset();
+        step(pipeline == Pipeline.FUSED ? Pipeline.REFERENCE : Pipeline.FUSED, deltaTime);
+        FloatBuffer[] other = readFields();
+
+        // The ping-pong textures may have swapped, so the state is restored by role.
+        fields = new Texture[]{densities.getReadTexture(), densities.getWriteTexture(), velocities.getReadTexture(),
+                velocities.getWriteTexture(), pressure};
+        for (int i = 0; i < fields.length; i++) {
+            fields[i].copyFrom(saved[i]);
+            saved[i].cleanup();
+        }
+
+        diffusionStats.reset();
+        pressureStats.reset();
+        step(pipeline, deltaTime);
+        FloatBuffer[] current = readFields();
+        residualCheckInterval = interval;
+
+        lastDeltaTime = deltaTime;
+        stepCount++;
+
+        float[] differences = new float[2];
+        for (int f = 0; f < 2; f++) {
+            for (int i = 0; i < current[f].capacity(); i++)
+                differences[f] = Math.max(differences[f], Math.abs(current[f].get(i) - other[f].get(i)));
+        }
+        return differences;
+    }
+
+    /**
+     * The largest absolute difference between the density of this engine and that of {@code other}, e.g. one with
+     * other precisions that was given the same splats.
+     */
+    public float compareDensity(Engine other) {
+        if (other.nX != nX || other.nY != nY)
+            throw new IllegalArgumentException("Cannot compare a " + nX + "x" + nY + " grid with a " + other.nX + "x" +
+                    other.nY + " grid");
+
+        FloatBuffer density = readFields()[0];
+        FloatBuffer otherDensity = other.readFields()[0];
+        float difference = 0;
+        for (int i = 0; i < density.capacity(); i++)
+            difference = Math.max(difference, Math.abs(density.get(i) - otherDensity.get(i)));
+        return difference;
+    }
+
+    /**
+     * The density and the interleaved velocity of the state.
+     */
+    private FloatBuffer[] readFields() {
+        FloatBuffer density = BufferUtils.createFloatBuffer(textureWidth * textureHeight);
+        FloatBuffer velocity = BufferUtils.createFloatBuffer(2 * textureWidth * textureHeight);
+        densities.getWriteTexture().getData(GL_RED, density);
+        velocities.getWriteTexture().getData(GL_RG, velocity);
+        return new FloatBuffer[]{density, velocity};
+    }
+
+    public long getStepCount() {
+        return stepCount;
+    }
+
+    /**
+     * Sets the timer whose passes {@link #step(float)} marks, or {@code null} to not time the passes.
+     */
+    public void setTimer(GpuTimer timer) {
+        this.timer = timer;
+    }
+
+    private void mark(GpuTimer.Pass pass) {
+        if (timer != null) timer.mark(pass);
+    }
+
+    /**
+     * Writes the density and velocity textures, and the pressure if {@code includePressure}, to a {@link Checkpoint}.
+     * The pressure is cleared after every step, so it is only worth saving for debugging.
+     */
+    public void saveCheckpoint(Path path, boolean includePressure) throws IOException {
+        FloatBuffer staging = getCheckpointStaging();
+        try (Checkpoint checkpoint = Checkpoint.create(path, getCheckpointBuffer(), nX, nY, lastDeltaTime, stepCount,
+                includePressure)) {
+            densities.getWriteTexture().getData(GL_RED, staging.clear());
+            checkpoint.write(Checkpoint.Field.DENSITY, staging);
+            velocities.getWriteTexture().getData(GL_RED, staging.clear());
+            checkpoint.write(Checkpoint.Field.VELOCITY_X, staging);
+            velocities.getWriteTexture().getData(GL_GREEN, staging.clear());
+            checkpoint.write(Checkpoint.Field.VELOCITY_Y, staging);
+            if (includePressure) {
+                pressure.getData(GL_RED, staging.clear());
+                checkpoint.write(Checkpoint.Field.PRESSURE, staging);
+            }
+            checkpoint.commit();
+        }
+    }
+
+    /**
+     * Restores the textures and the step count of a {@link Checkpoint}. The planes are copied from the mapped file
+     * into a direct buffer for the upload, the velocity planes interleaved, as the texture is RG.
+     */
+    public void loadCheckpoint(Path path) throws IOException {
+        try (Checkpoint checkpoint = Checkpoint.open(path)) {
+            checkpoint.checkSize(nX, nY);
+
+            clear();
+            FloatBuffer staging = getCheckpointStaging();
+            densities.getWriteTexture().putData(staging.clear().put(checkpoint.field(Checkpoint.Field.DENSITY)).flip());
+
+            FloatBuffer velocityX = checkpoint.field(Checkpoint.Field.VELOCITY_X);
+            FloatBuffer velocityY = checkpoint.field(Checkpoint.Field.VELOCITY_Y);
+            FloatBuffer velocity = getCheckpointVelocityStaging().clear();
+            for (int i = 0; i < textureWidth * textureHeight; i++)
+                velocity.put(velocityX.get(i)).put(velocityY.get(i));
+            velocities.getWriteTexture().putData(velocity.flip());
+
+            if (checkpoint.hasPressure)
+                pressure.putData(staging.clear().put(checkpoint.field(Checkpoint.Field.PRESSURE)).flip());
+            else
+                pressure.clearData();
+
+            lastDeltaTime = checkpoint.deltaTime;
+            stepCount = checkpoint.stepCount;
+        }
+    }
+
+    private ByteBuffer getCheckpointBuffer() {
+        if (checkpointBuffer == null) checkpointBuffer = Checkpoint.createBuffer(nX, nY);
+        return checkpointBuffer;
+    }
+
+    /**
+     * One plane, for the texture transfers of checkpoints.
+     */
+    private FloatBuffer getCheckpointStaging() {
+        if (checkpointStaging == null) checkpointStaging = BufferUtils.createFloatBuffer(textureWidth * textureHeight);
+        return checkpointStaging;
+    }
+
+    /**
+     * The interleaved velocity planes, for the upload of checkpoints.
+     */
+    private FloatBuffer getCheckpointVelocityStaging() {
+        if (checkpointVelocityStaging == null)
+            checkpointVelocityStaging = BufferUtils.createFloatBuffer(2 * textureWidth * textureHeight);
+        return checkpointVelocityStaging;
     }
 
     private void densityStep(float deltaTime) {
+        mark(GpuTimer.Pass.SOURCES);
         addSource(densities, deltaTime);
         densities.swapReadWrite();
+        mark(GpuTimer.Pass.DIFFUSE);
         diffuse(densities, 0.0001f, deltaTime);
         densities.swapReadWrite();
-        advect(densities, deltaTime);
+        mark(GpuTimer.Pass.ADVECT);
+        advect(densities, velocities.getWriteTexture(), deltaTime);
     }
 
     private void velocityStep(float deltaTime) {
         addSource(velocities, deltaTime);
         velocities.swapReadWrite();
+        mark(GpuTimer.Pass.DIFFUSE);
         diffuse(velocities, 0.1f, deltaTime);
+        mark(GpuTimer.Pass.PROJECT);
         project();
-        velocities.getWriteTexture().copyFrom(velocities.getReadTexture());
+        // The diffused and projected velocity advects itself.
+        mark(GpuTimer.Pass.ADVECT);
         velocities.swapReadWrite();
         advect(velocities, deltaTime);
+        mark(GpuTimer.Pass.PROJECT);
         project();
     }
 
+    /**
+     * {@link #velocityStep(float)} in 5 passes besides the Jacobi iterations instead of 9, and without the 40 bound
+     * passes of the diffusion.
+     * <br>
+     * The state starts in the write texture and the sources in the read texture:
+     * <ol>
+     *     <li>The diffusion adds the sources into the read texture, which then holds the right-hand side, and
+     *     leaves the diffused velocity in the write texture.</li>
+     *     <li>The first projection subtracts the pressure gradient from the write texture into the read texture.</li>
+     *     <li>The advection reads it and writes the write texture, along with its divergence.</li>
+     *     <li>The second projection subtracts into the read texture again, and a swap makes it the state.</li>
+     * </ol>
+     */
+    private void fusedVelocityStep(float deltaTime) {
+        mark(GpuTimer.Pass.DIFFUSE);
+        diffuseFused(velocities, 0.1f, deltaTime);
+
+        mark(GpuTimer.Pass.PROJECT);
+        solveDivergence();
+        solvePressure();
+        subtractPressureFused();
+
+        // The advection pass also computes the divergence of the second projection.
+        mark(GpuTimer.Pass.ADVECT);
+        advectDivergence(deltaTime);
+        mark(GpuTimer.Pass.PROJECT);
+        solvePressure();
+        subtractPressureFused();
+        velocities.swapReadWrite();
+    }
+
+    /**
+     * {@link #densityStep(float)} without the add-source pass. The density is advected along the final velocity of
+     * the step.
+     */
+    private void fusedDensityStep(float deltaTime) {
+        mark(GpuTimer.Pass.DIFFUSE);
+        diffuseFused(densities, 0.0001f, deltaTime);
+        densities.swapReadWrite();
+        mark(GpuTimer.Pass.ADVECT);
+        advect(densities, velocities.getWriteTexture(), deltaTime);
+    }
+
     private void addSource(PingPongTexture texture, float deltaTime) {
         Texture readTexture = texture.getReadTexture();
         Texture writeTexture = texture.getWriteTexture();
@@ -136,8 +612,7 @@ public class Engine {
         readTexture.bindToUnit(0);
         writeTexture.bindToImageUnit(0, GL_READ_WRITE);
 
-        boolean isVelocity = readTexture.getFormat() == GL_RG;
-        ShaderProgram program = isVelocity ? addSourceProgramMgr.getProgramRG() : addSourceProgramMgr.getProgramR();
+        ShaderProgram program = addSourceProgramMgr.getProgram(writeTexture);
         program.use();
         program.setUniform("deltaTime", deltaTime);
 
@@ -146,38 +621,37 @@ public class Engine {
     }
 
     private void diffuse(PingPongTexture texture, float rate, float deltaTime) {
-        Texture readTexture = texture.getReadTexture();
-        Texture writeTexture = texture.getWriteTexture();
-
-        readTexture.bindToUnit(0);
-        writeTexture.bindToImageUnit(0, GL_READ_WRITE);
-
-        boolean isVelocity = readTexture.getFormat() == GL_RG;
-        ShaderProgram program = isVelocity ? jacobiProgramMgr.getProgramRG() : jacobiProgramMgr.getProgramR();
-        program.use();
         float a = deltaTime * rate * nX * nY;
         float b = 1f / (1 + 4 * a);
-        program.setUniform("a", a);
-        program.setUniform("b", b);
-
-        for (int i = 0; i < JACOBI_ITERATION_COUNT; i++) {
-            glDispatchCompute(numGroupsX, numGroupsY, 1);
-            glMemoryBarrier(GL_SHADER_IMAGE_ACCESS_BARRIER_BIT);
+        relax(texture.getWriteTexture(), texture.getReadTexture(), a, b, diffusionRelaxation, false, 0,
+                diffusionStats);
+    }
 
-            if (isVelocity) setBound();
-        }
+    /**
+     * Diffuses the state in the write texture plus {@code deltaTime} times the sources in the read texture. The first
+     * iteration adds them and stores the sum, the right-hand side, in the read texture.
+     */
+    private void diffuseFused(PingPongTexture texture, float rate, float deltaTime) {
+        float a = deltaTime * rate * nX * nY;
+        float b = 1f / (1 + 4 * a);
+        relax(texture.getWriteTexture(), texture.getReadTexture(), a, b, diffusionRelaxation, true, deltaTime,
+                diffusionStats);
     }
 
     private void advect(PingPongTexture texture, float deltaTime) {
+        advect(texture, velocities.getReadTexture(), deltaTime);
+    }
+
+    private void advect(PingPongTexture texture, Texture velocity, float deltaTime) {
         Texture readTexture = texture.getReadTexture();
         Texture writeTexture = texture.getWriteTexture();
 
-        velocities.getReadTexture().bindToUnit(0);
+        velocity.bindToUnit(0);
         readTexture.bindToUnit(1);
         writeTexture.bindToImageUnit(0, GL_READ_WRITE);
 
         boolean isVelocity = readTexture.getFormat() == GL_RG;
-        ShaderProgram program = isVelocity ? advectProgramMgr.getProgramRG() : advectProgramMgr.getProgramR();
+        ShaderProgram program = advectProgramMgr.getProgram(writeTexture);
         program.use();
         float deltaTime0 = deltaTime * nX;
         program.setUniform("deltaTime0", deltaTime0);
@@ -188,6 +662,23 @@ public class Engine {
         if (isVelocity) setBound();
     }
 
+    /**
+     * Advects the velocity in the read texture into the write texture, sets its bounds and computes its divergence,
+     * in one pass.
+     */
+    private void advectDivergence(float deltaTime) {
+        velocities.getReadTexture().bindToUnit(0);
+        velocities.getWriteTexture().bindToImageUnit(0, GL_WRITE_ONLY);
+        divergence.bindToImageUnit(1, GL_WRITE_ONLY);
+
+        advectDivergenceProgram.use();
+        advectDivergenceProgram.setUniform("deltaTime0", deltaTime * nX);
+        advectDivergenceProgram.setUniform("h", -0.5f / nX);
+
+        glDispatchCompute(numGroupsX, numGroupsY, 1);
+        glMemoryBarrier(GL_SHADER_IMAGE_ACCESS_BARRIER_BIT | GL_TEXTURE_FETCH_BARRIER_BIT);
+    }
+
     private void project() {
         solveDivergence();
         solvePressure();
@@ -210,21 +701,180 @@ public class Engine {
     }
 
     private void solvePressure() {
-        divergence.bindToUnit(0);
-        pressure.bindToImageUnit(0, GL_READ_WRITE);
+        relax(pressure, divergence, 1f, 0.25f, pressureRelaxation, false, 0, pressureStats);
+    }
+
+    /**
+     * Subtracts the pressure gradient from the velocity in the write texture into the read texture and sets its
+     * bounds, in one pass.
+     */
+    private void subtractPressureFused() {
+        pressure.bindToUnit(0);
+        velocities.getWriteTexture().bindToUnit(1);
+        velocities.getReadTexture().bindToImageUnit(0, GL_WRITE_ONLY);
+
+        subtractPressureFusedProgram.use();
+        subtractPressureFusedProgram.setUniform("h", -0.5f * nX);
+
+        glDispatchCompute(numGroupsX, numGroupsY, 1);
+        glMemoryBarrier(GL_SHADER_IMAGE_ACCESS_BARRIER_BIT | GL_TEXTURE_FETCH_BARRIER_BIT);
+    }
 
+    /**
+     * Solves for {@code solution} with {@code relaxation}, with {@code rhs} as the right-hand side. Every
+     * {@link #residualCheckInterval} iterations the residual is measured, and the loop stops as soon as a measurement
+     * that has reached the GPU meets {@link #residualTolerance}. Those rarely arrive during the solve, so it also stops
+     * after as many iterations as the previous solve of the same equation needed to meet the tolerance, measuring
+     * there so the next solve knows whether that was enough. Velocity bounds are set after every iteration.
+     * <br>
+     * If {@code fused}, the add-source pass is folded into the first iteration, which adds {@code deltaTime} times
+     * {@code rhs} to {@code solution} and stores the sum, the actual right-hand side, in {@code rhs}. The velocity
+     * bounds are then also set by the iterations themselves instead of a pass of their own.
+     * <br>
+     * Plain Jacobi writes to a scratch texture, so the solution alternates between {@code solution} and the scratch
+     * texture, and is copied back at the end if it ended in the scratch texture. Iterations that set the bounds from
+     * neighbours that may be older than the iteration leave them lagging, so they are set exactly once more after the
+     * last one.
+     */
+    private void relax(Texture solution, Texture rhs, float a, float b, Relaxation relaxation, boolean fused,
+                       float deltaTime, SolveStats stats) {
+        boolean isVelocity = solution.getFormat() == GL_RG;
+        ShaderProgram residualProgram = residualProgramMgr.getProgram(solution);
+        int maxIterations = relaxation == Relaxation.RED_BLACK_GAUSS_SEIDEL ?
+                RED_BLACK_ITERATION_COUNT : JACOBI_ITERATION_COUNT;
+        Texture current = solution;
+        Texture scratch = isVelocity ? jacobiScratchRG : solution == pressure ? pressureScratch : jacobiScratchR;
+        boolean boundsLag = false;
+        ResidualMonitor monitor = isVelocity ? velocityResidualMonitor :
+                solution == pressure ? pressureResidualMonitor : densityResidualMonitor;
+        monitor.begin();
+        int convergedIterations = monitor.getConvergedIterations(residualTolerance);
+        boolean lagged = false;
+
+        int iterations = 0;
+        while (iterations < maxIterations) {
+            boolean addSource = fused && iterations == 0;
+            int count = 1;
+            rhs.bindToUnit(0);
+
+            if (relaxation == Relaxation.RED_BLACK_GAUSS_SEIDEL) {
+                current.bindToImageUnit(0, GL_READ_WRITE);
+                rhs.bindToImageUnit(1, GL_READ_WRITE);
+                redBlackIteration(redBlackProgramMgr.getProgram(current, rhs), isVelocity, a, b, addSource, deltaTime);
+                boundsLag = isVelocity;
+            } else if (addSource || relaxation == Relaxation.IN_PLACE_JACOBI && jacobiIterationsPerDispatch == 1) {
+                boolean pingPong = relaxation == Relaxation.JACOBI;
+                current.bindToImageUnit(0, GL_READ_WRITE);
+                rhs.bindToImageUnit(1, GL_READ_WRITE);
+                scratch.bindToImageUnit(2, GL_WRITE_ONLY);
+                ShaderProgram program = fused ? jacobiFusedProgramMgr.getProgram(current, rhs) :
+                        jacobiProgramMgr.getProgram(current);
+                jacobiIteration(program, isVelocity, a, b, fused, addSource, pingPong, deltaTime);
+                if (pingPong) {
+                    Texture temp = current;
+                    current = scratch;
+                    scratch = temp;
+                }
+                boundsLag = fused && isVelocity;
+            } else {
+                count = Math.min(jacobiIterationsPerDispatch, maxIterations - iterations);
+                current.bindToImageUnit(0, GL_READ_ONLY);
+                scratch.bindToImageUnit(1, GL_WRITE_ONLY);
+                jacobiTiled(jacobiTiledProgramMgr.getProgram(current), isVelocity, a, b, count);
+                Texture temp = current;
+                current = scratch;
+                scratch = temp;
+                boundsLag = false;
+            }
+            iterations += count;
+
+            // Measure whenever a multiple of the interval was passed, which is every interval for single iterations.
+            if (residualCheckInterval > 0 && iterations < maxIterations &&
+                    iterations / residualCheckInterval > (iterations - count) / residualCheckInterval) {
+                if (monitor.poll() <= residualTolerance) break;
+                lagged = iterations >= convergedIterations;
+                current.bindToImageUnit(0, GL_READ_ONLY);
+                monitor.measure(residualProgram, a, b, iterations);
+                if (lagged) break;
+            }
+        }
 
-        ShaderProgram program = jacobiProgramMgr.getProgramR();
+        if (current != solution) solution.copyFrom(current);
+        if (boundsLag) {
+            solution.bindToImageUnit(0, GL_READ_WRITE);
+            setBound();
+        }
+        // The result is sampled next.
+        glMemoryBarrier(GL_TEXTURE_FETCH_BARRIER_BIT);
+        stats.record(iterations, monitor.getResidual());
+        if (iterations < maxIterations) stats.recordEarlyExit(lagged);
+    }
+
+    /**
+     * One iteration from image unit 0, with the right-hand side on texture unit 0. If {@code fused}, {@code program}
+     * is jacobiFused.glsl, which also sets the velocity bounds, adds the sources on image unit 1 if {@code addSource},
+     * and writes to image unit 2 if {@code pingPong}. Otherwise it is jacobi.glsl, which runs in place and is followed
+     * by setBound.glsl for the velocity.
+     */
+    private void jacobiIteration(ShaderProgram program, boolean isVelocity, float a, float b, boolean fused,
+                                 boolean addSource, boolean pingPong, float deltaTime) {
+        program.use();
+        program.setUniform("a", a);
+        program.setUniform("b", b);
+        if (fused) {
+            program.setUniform("addSource", addSource);
+            program.setUniform("deltaTime", deltaTime);
+            program.setUniform("setBound", isVelocity);
+            program.setUniform("pingPong", pingPong);
+        }
+
+        glDispatchCompute(numGroupsX, numGroupsY, 1);
+        // The right-hand side written when adding the sources is sampled by the next iterations.
+        glMemoryBarrier(addSource ? GL_SHADER_IMAGE_ACCESS_BARRIER_BIT | GL_TEXTURE_FETCH_BARRIER_BIT :
+                GL_SHADER_IMAGE_ACCESS_BARRIER_BIT);
+
+        if (isVelocity && !fused) setBound();
+    }
+
+    /**
+     * One red-black iteration in place on image unit 0: a dispatch for the even cells, then one for the odd cells.
+     * The first one adds the sources on image unit 1 if {@code addSource}. The velocity bounds are set by both.
+     */
+    private void redBlackIteration(ShaderProgram program, boolean isVelocity, float a, float b, boolean addSource,
+                                   float deltaTime) {
         program.use();
-        program.setUniform("a", 1f);
-        program.setUniform("b", 0.25f);
+        program.setUniform("a", a);
+        program.setUniform("b", b);
+        program.setUniform("omega", overRelaxation);
+        program.setUniform("deltaTime", deltaTime);
+        program.setUniform("setBound", isVelocity);
+
+        for (int color = 0; color < 2; color++) {
+            program.setUniform("color", color);
+            program.setUniform("addSource", addSource && color == 0);
 
-        for (int i = 0; i < JACOBI_ITERATION_COUNT; i++) {
-            glDispatchCompute(numGroupsX, numGroupsY, 1);
-            glMemoryBarrier(GL_SHADER_IMAGE_ACCESS_BARRIER_BIT);
+            glDispatchCompute(redBlackNumGroupsX, numGroupsY, 1);
+            glMemoryBarrier(addSource && color == 0 ?
+                    GL_SHADER_IMAGE_ACCESS_BARRIER_BIT | GL_TEXTURE_FETCH_BARRIER_BIT :
+                    GL_SHADER_IMAGE_ACCESS_BARRIER_BIT);
         }
     }
 
+    /**
+     * {@code count} iterations from image unit 0 into image unit 1 in one dispatch, with the velocity bounds set after
+     * every iteration.
+     */
+    private void jacobiTiled(ShaderProgram program, boolean isVelocity, float a, float b, int count) {
+        program.use();
+        program.setUniform("a", a);
+        program.setUniform("b", b);
+        program.setUniform("iterations", count);
+        program.setUniform("setBound", isVelocity);
+
+        glDispatchCompute(numGroupsX, numGroupsY, 1);
+        glMemoryBarrier(GL_SHADER_IMAGE_ACCESS_BARRIER_BIT);
+    }
+
     private void subtractPressure() {
         pressure.bindToUnit(0);
 
@@ -236,34 +886,27 @@ public class Engine {
         glMemoryBarrier(GL_SHADER_IMAGE_ACCESS_BARRIER_BIT);
     }
 
+    /**
+     * Writes the queued splats into the source textures, which are cleared after every step. Only the splats are
+     * uploaded, so a frame without input costs nothing here.
+     */
     private void getSourcesFromUI() {
-        // Reset buffers.
-        userInputVelocityBuffer.clear();
-        userInputDensityBuffer.clear();
-
-        // Copy user input data to buffers.
-        for (int i = 0; i < textureHeight; i++) {
-            for (int j = 0; j < textureWidth; j++) {
-                // Notice that the order of the array is inverted.
-                userInputVelocityBuffer.put(userInputVelocityArray[j][i]);
-                userInputDensityBuffer.put(userInputDensityArray[j][i]);
-            }
-        }
-        userInputVelocityBuffer.flip();
-        userInputDensityBuffer.flip();
-
-        // Copy data to textures.
-        velocities.getReadTexture().putData(userInputVelocityBuffer);
-        densities.getReadTexture().putData(userInputDensityBuffer);
-
-        // Clear arrays.
-        for (int i = 0; i < textureWidth; i++) {
-            for (int j = 0; j < textureHeight; j++) {
-                userInputVelocityArray[i][j][0] = 0;
-                userInputVelocityArray[i][j][1] = 0;
-                userInputDensityArray[i][j] = 0;
-            }
-        }
+        if (splats.isEmpty()) return;
+
+        splatUploadBuffer.clear();
+        splats.pack(splatUploadBuffer);
+        splatBuffer.putSubData(0, splatUploadBuffer);
+        splatBuffer.bindBase(0);
+
+        densities.getReadTexture().bindToImageUnit(0, GL_WRITE_ONLY);
+        velocities.getReadTexture().bindToImageUnit(1, GL_WRITE_ONLY);
+
+        splatProgram.use();
+        int splatGroups = getNumGroupsX(2 * splats.getMaxRadius() + 1);
+        glDispatchCompute(splatGroups, splatGroups, splats.size());
+        glMemoryBarrier(GL_SHADER_IMAGE_ACCESS_BARRIER_BIT | GL_TEXTURE_FETCH_BARRIER_BIT);
+
+        splats.clear();
     }
 
     private void setBound() {
@@ -278,14 +921,36 @@ public class Engine {
         pressure.clearData();
     }
 
+    /**
+     * {@link #clearSources()} in one pass.
+     */
+    private void fusedClearSources() {
+        densities.getReadTexture().bindToImageUnit(0, GL_WRITE_ONLY);
+        velocities.getReadTexture().bindToImageUnit(1, GL_WRITE_ONLY);
+        pressure.bindToImageUnit(2, GL_WRITE_ONLY);
+
+        clearSourcesProgram.use();
+        glDispatchCompute(numGroupsX, numGroupsY, 1);
+        glMemoryBarrier(GL_SHADER_IMAGE_ACCESS_BARRIER_BIT);
+    }
+
     public static void init() {
         var flag = EnumSet.of(MultiProgramManager.Formats.R, MultiProgramManager.Formats.RG);
         addSourceProgramMgr = new MultiProgramManager("shaders/addSource.glsl", flag);
         jacobiProgramMgr = new MultiProgramManager("shaders/jacobi.glsl", flag);
         advectProgramMgr = new MultiProgramManager("shaders/advect.glsl", flag);
-        subtractPressureProgram = ShaderProgram.createComputeProgramFromFile("shaders/subtractPressure.glsl");
-        divergenceProgram = ShaderProgram.createComputeProgramFromFile("shaders/divergence.glsl");
-        setBoundProgram = ShaderProgram.createComputeProgramFromFile("shaders/setBound.glsl");
+        residualProgramMgr = new MultiProgramManager("shaders/residual.glsl", flag);
+        subtractPressureProgramMgr = new MultiProgramManager("shaders/subtractPressure.glsl", GL_RG32F);
+        divergenceProgramMgr = new MultiProgramManager("shaders/divergence.glsl", GL_R32F);
+        setBoundProgramMgr = new MultiProgramManager("shaders/setBound.glsl", GL_RG32F);
+        splatProgramMgr = new MultiProgramManager("shaders/splat.glsl", GL_R32F, GL_RG32F);
+
+        jacobiFusedProgramMgr = new MultiProgramManager("shaders/jacobiFused.glsl", flag);
+        jacobiTiledProgramMgr = new MultiProgramManager("shaders/jacobiTiled.glsl", flag);
+        redBlackProgramMgr = new MultiProgramManager("shaders/redBlack.glsl", flag);
+        subtractPressureFusedProgramMgr = new MultiProgramManager("shaders/subtractPressureFused.glsl", GL_RG32F);
+        advectDivergenceProgramMgr = new MultiProgramManager("shaders/advectDivergence.glsl", GL_RG32F, GL_R32F);
+        clearSourcesProgramMgr = new MultiProgramManager("shaders/clearSources.glsl", GL_R32F, GL_RG32F, GL_R32F);
     }
 
     private static int getNumGroupsX(int size) {
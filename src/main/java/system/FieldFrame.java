@@ -0,0 +1,63 @@
+package system;
+
+import java.awt.image.BufferedImage;
+import java.nio.ByteBuffer;
+
+/**
+ * A copy of the density and velocity fields of a {@link CpuSolver} after a step, in the solver's layout.
+ * <br>
+ * Frames are meant to be reused: {@link #copyFrom(CpuSolver)} overwrites the previous content without allocating.
+ */
+public class FieldFrame {
+    public final int nX;
+    public final int nY;
+    public final int stride;
+    public final float[] densities;
+    public final float[] velocitiesX;
+    public final float[] velocitiesY;
+
+    private long stepCount;
+    private float deltaTime;
+
+    // Encoding buffers of the exporter that owns this frame, for PNG and RAW frames.
+    BufferedImage image;
+    ByteBuffer buffer;
+
+    public FieldFrame(int nX, int nY) {
+        this.nX = nX;
+        this.nY = nY;
+        this.stride = nX + 2;
+
+        int size = stride * (nY + 2);
+        this.densities = new float[size];
+        this.velocitiesX = new float[size];
+        this.velocitiesY = new float[size];
+    }
+
+    public void copyFrom(CpuSolver solver) {
+        if (solver.nX != nX || solver.nY != nY)
+            throw new IllegalArgumentException("Frame size " + nX + "x" + nY + " does not match the solver size " +
+                    solver.nX + "x" + solver.nY);
+
+        System.arraycopy(solver.getDensities(), 0, densities, 0, densities.length);
+        System.arraycopy(solver.getVelocitiesX(), 0, velocitiesX, 0, velocitiesX.length);
+        System.arraycopy(solver.getVelocitiesY(), 0, velocitiesY, 0, velocitiesY.length);
+        stepCount = solver.getStepCount();
+        deltaTime = solver.getDeltaTime();
+    }
+
+    /**
+     * The step count of the solver when the fields were copied.
+     */
+    public long getStepCount() {
+        return stepCount;
+    }
+
+    public float getDeltaTime() {
+        return deltaTime;
+    }
+
+    public int index(int i, int j) {
+        return i + j * stride;
+    }
+}
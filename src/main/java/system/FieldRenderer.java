@@ -0,0 +1,91 @@
+package system;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+
+/**
+ * Colors the inner cells of a CPU solver's fields into a reusable {@code TYPE_INT_RGB} image, one pixel per cell.
+ * <br>
+ * The pixels are written straight into the image's {@code int[]}, so a frame costs one table lookup or a few
+ * multiplications per cell and no allocation. Grids of at least {@value #MIN_PARALLEL_CELLS} cells are colored in row
+ * bands on their own threads.
+ */
+public class FieldRenderer {
+    public enum Mode {
+        /**
+         * The density through the {@link Colormap}.
+         */
+        DENSITY,
+        /**
+         * The x velocity in red and the y velocity in green, each clamped to {@code [0, 1]}.
+         */
+        VELOCITY
+    }
+
+    private static final int MIN_PARALLEL_CELLS = 128 * 128;
+
+    public final int nX;
+    public final int nY;
+    private final int stride;
+    private final BufferedImage image;
+    private final int[] pixels;
+    private final RowBands bands;
+
+    private Colormap colormap = Colormap.GRAYSCALE;
+
+    /**
+     * @param parallelism The number of threads to color large grids with.
+     */
+    public FieldRenderer(int nX, int nY, int parallelism) {
+        this.nX = nX;
+        this.nY = nY;
+        this.stride = nX + 2;
+        this.image = new BufferedImage(nX, nY, BufferedImage.TYPE_INT_RGB);
+        this.pixels = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+        this.bands = parallelism > 1 && nX * nY >= MIN_PARALLEL_CELLS ? new RowBands(parallelism) : null;
+    }
+
+    public void setColormap(Colormap colormap) {
+        this.colormap = colormap;
+    }
+
+    /**
+     * Colors the fields, which are laid out like {@link CpuSolver}'s, into {@link #getImage()}. Cell {@code (i, j)}
+     * becomes pixel {@code (i - 1, j - 1)}.
+     */
+    public void render(Mode mode, float[] densities, float[] velocitiesX, float[] velocitiesY) {
+        if (bands == null)
+            renderRows(mode, densities, velocitiesX, velocitiesY, 1, nY + 1);
+        else
+            bands.forEach(1, nY + 1, (from, to) -> renderRows(mode, densities, velocitiesX, velocitiesY, from, to));
+    }
+
+    private void renderRows(Mode mode, float[] densities, float[] velocitiesX, float[] velocitiesY, int from, int to) {
+        for (int j = from; j < to; j++) {
+            int idx = 1 + j * stride;
+            int pixel = (j - 1) * nX;
+            if (mode == Mode.DENSITY) {
+                for (int i = 0; i < nX; i++)
+                    pixels[pixel + i] = colormap.rgb(densities[idx + i]);
+            } else {
+                for (int i = 0; i < nX; i++)
+                    pixels[pixel + i] = channel(velocitiesX[idx + i]) << 16 | channel(velocitiesY[idx + i]) << 8;
+            }
+        }
+    }
+
+    private static int channel(float value) {
+        return (int) (Math.max(0, Math.min(1, value)) * 255 + 0.5f);
+    }
+
+    /**
+     * The image of the last {@link #render}. It is reused, so it changes with the next one.
+     */
+    public BufferedImage getImage() {
+        return image;
+    }
+
+    public void shutdown() {
+        if (bands != null) bands.shutdown();
+    }
+}
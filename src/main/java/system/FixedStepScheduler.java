@@ -0,0 +1,138 @@
+package system;
+
+/**
+ * Decides how many solver steps of a fixed time step each frame runs, so the simulation advances at the same rate
+ * whatever the display refresh rate or the cost of a frame.
+ * <br>
+ * The wall time since the previous frame is added to an accumulator, and every step takes {@link #getStepTime()} out
+ * of it. A frame runs at most {@code maxSubsteps} steps. If more time has piled up, e.g. after a stall, the rest is
+ * dropped and counted by {@link #getDroppedStepCount()}, instead of the next frames trying to catch up and falling
+ * further behind.
+ * <br>
+ * The time left in the accumulator is less than one step. Rendering the previous state blended towards the current
+ * one by {@link #getAlpha()} keeps the motion smooth when the frame rate and the step rate differ.
+ * <br>
+ * In {@link Mode#UNCAPPED} every frame runs exactly one step and wall time is ignored, so the simulation runs as fast
+ * as the machine allows, e.g. for benchmarks with vsync off.
+ */
+public class FixedStepScheduler {
+    public enum Mode {
+        /**
+         * Steps follow the wall clock.
+         */
+        REAL_TIME,
+        /**
+         * One step per frame, as fast as frames can be produced.
+         */
+        UNCAPPED
+    }
+
+    private final Mode mode;
+    private final float stepTime;
+    private final long stepNanos;
+    private final int maxSubsteps;
+
+    private boolean started;
+    private long lastTime;
+    private long accumulator;
+    private long stepCount;
+    private long droppedSteps;
+
+    /**
+     * @param stepsPerSecond The simulation rate. Every step advances the simulation by its inverse.
+     * @param maxSubsteps    The most steps a frame may run.
+     */
+    public FixedStepScheduler(float stepsPerSecond, int maxSubsteps, Mode mode) {
+        if (!(stepsPerSecond > 0))
+            throw new IllegalArgumentException("Steps per second must be positive: " + stepsPerSecond);
+        if (maxSubsteps < 1)
+            throw new IllegalArgumentException("Max substeps must be at least 1: " + maxSubsteps);
+
+        this.mode = mode;
+        this.stepTime = 1 / stepsPerSecond;
+        this.stepNanos = Math.round(1e9 / stepsPerSecond);
+        this.maxSubsteps = maxSubsteps;
+    }
+
+    /**
+     * Adds the time since the previous frame and returns the number of steps this frame should run. The first frame
+     * runs one step.
+     *
+     * @param now The current {@link System#nanoTime()}.
+     */
+    public int beginFrame(long now) {
+        long elapsed = started ? now - lastTime : stepNanos;
+        started = true;
+        lastTime = now;
+        if (mode == Mode.UNCAPPED) {
+            stepCount++;
+            return 1;
+        }
+
+        accumulator += elapsed;
+        int steps = (int) Math.min(accumulator / stepNanos, maxSubsteps);
+        accumulator -= steps * stepNanos;
+
+        if (accumulator >= stepNanos) {
+            droppedSteps += accumulator / stepNanos;
+            accumulator %= stepNanos;
+        }
+
+        stepCount += steps;
+        return steps;
+    }
+
+    /**
+     * Nanoseconds from {@code now} until the next step is due, 0 if it already is. Always 0 in {@link Mode#UNCAPPED}.
+     */
+    public long getNanosUntilNextStep(long now) {
+        if (mode == Mode.UNCAPPED) return 0;
+        return Math.max(0, stepNanos - accumulator - (now - lastTime));
+    }
+
+    /**
+     * How far the wall clock is between the last two steps, from 0 (the state before the last step) to 1 (the state
+     * after it). Always 1 in {@link Mode#UNCAPPED}.
+     */
+    public float getAlpha() {
+        if (mode == Mode.UNCAPPED) return 1;
+        return (float) accumulator / stepNanos;
+    }
+
+    /**
+     * Whether frames are drawn between the last two steps, i.e. whether the state before the last step is needed.
+     * False in {@link Mode#UNCAPPED}, where {@link #getAlpha()} is always 1.
+     */
+    public boolean interpolates() {
+        return mode != Mode.UNCAPPED;
+    }
+
+    /**
+     * The time step in seconds every step advances the simulation by.
+     */
+    public float getStepTime() {
+        return stepTime;
+    }
+
+    public int getMaxSubsteps() {
+        return maxSubsteps;
+    }
+
+    public Mode getMode() {
+        return mode;
+    }
+
+    /**
+     * The number of steps scheduled so far.
+     */
+    public long getStepCount() {
+        return stepCount;
+    }
+
+    /**
+     * The number of steps skipped because a frame would have needed more than the max substeps.
+     */
+    public long getDroppedStepCount() {
+        return droppedSteps;
+    }
+}
@@ -0,0 +1,36 @@
+package system;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * A Flight Recorder event spanning one iteration of an app's main loop: input, the solver step and rendering or
+ * handing the fields to the renderer.
+ */
+@Name("fluid.Frame")
+@Label("Frame")
+@Category("Fluid Simulation")
+@Description("One iteration of the main loop of an app")
+@StackTrace(false)
+public class FrameEvent extends jdk.jfr.Event {
+    @Label("Grid Width")
+    @Description("Number of inner cells along x")
+    int gridWidth;
+
+    @Label("Grid Height")
+    @Description("Number of inner cells along y")
+    int gridHeight;
+
+    @Label("Time Step")
+    @Description("Time step in seconds passed to the solver")
+    float deltaTime;
+
+    public FrameEvent(int gridWidth, int gridHeight, float deltaTime) {
+        this.gridWidth = gridWidth;
+        this.gridHeight = gridHeight;
+        this.deltaTime = deltaTime;
+    }
+}
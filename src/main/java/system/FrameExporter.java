@@ -0,0 +1,211 @@
+package system;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Writes the fields of a {@link CpuSolver} to disk after every step without slowing the solver down.
+ * <br>
+ * {@link #submit(CpuSolver)} only copies the fields into one of a fixed set of reusable {@link FieldFrame}s and hands
+ * it to a pool of writer threads, which encode and write it and then return it to the set. When every frame is still
+ * being written, the {@link BackPressure} policy decides whether the solver waits or the frame is dropped.
+ */
+public class FrameExporter implements AutoCloseable {
+    public enum Format {
+        /**
+         * One {@link Checkpoint} file per frame, without pressure: a header and the raw little-endian fields.
+         */
+        RAW,
+        /**
+         * Two images per frame: the density and the speed, both through the {@link Colormap}.
+         */
+        PNG
+    }
+
+    public enum BackPressure {
+        /**
+         * Skip the frame. The solver never waits, but frames are lost when the disk cannot keep up.
+         */
+        DROP,
+        /**
+         * Wait for a free frame. Every frame is written, but the solver slows down to the disk's pace.
+         */
+        BLOCK
+    }
+
+    private final Path directory;
+    private final Format format;
+    private final BackPressure backPressure;
+    private final BlockingQueue<FieldFrame> freeFrames;
+    private final ExecutorService writers;
+    private final AtomicLong written = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+
+    private Colormap colormap = Colormap.GRAYSCALE;
+    private float densityScale = 1;
+    private float speedScale = 1;
+
+    /**
+     * Uses half of the cores for writing, since the solver is busy with the others, and a few frames of slack per
+     * writer thread.
+     */
+    public FrameExporter(Path directory, int nX, int nY, Format format, BackPressure backPressure)
+            throws IOException {
+        this(directory, nX, nY, format, backPressure, 2 * defaultWriterThreads() + 2, defaultWriterThreads());
+    }
+
+    /**
+     * @param frameCount    The number of reusable frames, i.e. how many frames can be queued or being written at once.
+     * @param writerThreads The number of threads that encode and write frames.
+     */
+    public FrameExporter(Path directory, int nX, int nY, Format format, BackPressure backPressure, int frameCount,
+                         int writerThreads) throws IOException {
+        if (frameCount < 1 || writerThreads < 1)
+            throw new IllegalArgumentException("Need at least 1 frame and 1 writer thread: " + frameCount + ", " +
+                    writerThreads);
+
+        this.directory = Files.createDirectories(directory);
+        this.format = format;
+        this.backPressure = backPressure;
+        this.freeFrames = new ArrayBlockingQueue<>(frameCount);
+        for (int i = 0; i < frameCount; i++)
+            freeFrames.add(new FieldFrame(nX, nY));
+
+        AtomicInteger threadCount = new AtomicInteger();
+        this.writers = Executors.newFixedThreadPool(writerThreads, runnable -> {
+            Thread thread = new Thread(runnable, "Frame writer " + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    private static int defaultWriterThreads() {
+        return Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+    }
+
+    /**
+     * Sets the colormap of {@link Format#PNG} images.
+     */
+    public void setColormap(Colormap colormap) {
+        this.colormap = colormap;
+    }
+
+    /**
+     * Sets the density and the speed that map to the top of the colormap.
+     */
+    public void setScales(float densityScale, float speedScale) {
+        this.densityScale = densityScale;
+        this.speedScale = speedScale;
+    }
+
+    /**
+     * Copies the current fields of {@code solver} and queues them for writing. Call it from the thread that steps the
+     * solver, between two steps.
+     *
+     * @return Whether the frame was queued. It is not if it was dropped, or the thread was interrupted while waiting.
+     */
+    public boolean submit(CpuSolver solver) {
+        FieldFrame frame = acquireFrame();
+        if (frame == null) {
+            dropped.incrementAndGet();
+            return false;
+        }
+
+        frame.copyFrom(solver);
+        writers.execute(() -> {
+            try {
+                write(frame);
+                written.incrementAndGet();
+            } catch (IOException e) {
+                failed.incrementAndGet();
+                System.err.println("Could not export frame " + frame.getStepCount() + ": " + e.getMessage());
+            } finally {
+                freeFrames.add(frame);
+            }
+        });
+        return true;
+    }
+
+    private FieldFrame acquireFrame() {
+        if (backPressure == BackPressure.DROP) return freeFrames.poll();
+
+        try {
+            return freeFrames.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+    }
+
+    public long getWrittenCount() {
+        return written.get();
+    }
+
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+
+    public long getFailedCount() {
+        return failed.get();
+    }
+
+    /**
+     * Waits until every queued frame is written, then stops the writer threads.
+     */
+    @Override
+    public void close() {
+        writers.shutdown();
+        try {
+            writers.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void write(FieldFrame frame) throws IOException {
+        String name = String.format("frame_%08d", frame.getStepCount());
+
+        if (format == Format.RAW) {
+            if (frame.buffer == null) frame.buffer = Checkpoint.createBuffer(frame.nX, frame.nY);
+
+            try (Checkpoint checkpoint = Checkpoint.create(directory.resolve(name + ".raw"), frame.buffer, frame.nX,
+                    frame.nY, frame.getDeltaTime(), frame.getStepCount(), false)) {
+                checkpoint.write(Checkpoint.Field.DENSITY, frame.densities);
+                checkpoint.write(Checkpoint.Field.VELOCITY_X, frame.velocitiesX);
+                checkpoint.write(Checkpoint.Field.VELOCITY_Y, frame.velocitiesY);
+                checkpoint.commit();
+            }
+            return;
+        }
+
+        if (frame.image == null) frame.image = new BufferedImage(frame.nX, frame.nY, BufferedImage.TYPE_INT_RGB);
+        int[] pixels = ((DataBufferInt) frame.image.getRaster().getDataBuffer()).getData();
+
+        for (int j = 1; j <= frame.nY; j++)
+            for (int i = 1; i <= frame.nX; i++)
+                pixels[(i - 1) + (j - 1) * frame.nX] = colormap.rgb(frame.densities[frame.index(i, j)] / densityScale);
+        ImageIO.write(frame.image, "png", directory.resolve(name + "_density.png").toFile());
+
+        for (int j = 1; j <= frame.nY; j++) {
+            for (int i = 1; i <= frame.nX; i++) {
+                int idx = frame.index(i, j);
+                float speed = (float) Math.sqrt(frame.velocitiesX[idx] * frame.velocitiesX[idx] +
+                        frame.velocitiesY[idx] * frame.velocitiesY[idx]);
+                pixels[(i - 1) + (j - 1) * frame.nX] = colormap.rgb(speed / speedScale);
+            }
+        }
+        ImageIO.write(frame.image, "png", directory.resolve(name + "_speed.png").toFile());
+    }
+}
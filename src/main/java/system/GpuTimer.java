@@ -0,0 +1,174 @@
+package system;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+import static org.lwjgl.opengl.GL43.*;
+
+/**
+ * Measures how the GPU time of a frame splits between the passes of the solver and rendering.
+ * <br>
+ * {@link #mark(Pass)} puts a {@code GL_TIMESTAMP} query into the command stream, and the GPU time until the next mark,
+ * or until {@link #endFrame()}, counts for that pass. Consecutive timestamps need one query per mark, where
+ * {@code GL_TIME_ELAPSED} queries would need two and can not be nested.
+ * <br>
+ * The queries of up to {@link #FRAME_LATENCY} frames are in flight. {@link #endFrame()} only reads frames whose
+ * results the GPU already has, so it never stalls the pipeline. A frame that still has no results when its queries
+ * are needed again is dropped.
+ * <br>
+ * The time of each pass per frame is kept for the last {@link #WINDOW_SIZE} frames, from which the means and
+ * percentiles are computed. A pass that runs several times per frame is summed.
+ */
+public class GpuTimer {
+    public enum Pass {SOURCES, DIFFUSE, ADVECT, PROJECT, RENDER}
+
+    public static final int FRAME_LATENCY = 4;
+    public static final int WINDOW_SIZE = 240;
+    private static final int MAX_MARKS_PER_FRAME = 64;
+    private static final int PASS_COUNT = Pass.values().length;
+
+    private final int[][] queries = new int[FRAME_LATENCY][MAX_MARKS_PER_FRAME + 1];
+    private final Pass[][] markedPasses = new Pass[FRAME_LATENCY][MAX_MARKS_PER_FRAME];
+    private final int[] markCounts = new int[FRAME_LATENCY];
+    private final boolean[] pending = new boolean[FRAME_LATENCY];
+
+    /**
+     * Milliseconds per pass and frame, a ring of {@link #WINDOW_SIZE} frames.
+     */
+    private final double[][] window = new double[PASS_COUNT][WINDOW_SIZE];
+    private final double[] sortBuffer = new double[WINDOW_SIZE];
+    private final double[] frameTimes = new double[PASS_COUNT];
+    private int windowCount;
+    private int windowNext;
+
+    private int slot;
+    private long droppedFrames;
+
+    public GpuTimer() {
+        for (int[] slotQueries : queries)
+            glGenQueries(slotQueries);
+    }
+
+    /**
+     * Starts timing {@code pass}, which ends the pass marked before it. Marks beyond {@value #MAX_MARKS_PER_FRAME}
+     * per frame are ignored.
+     */
+    public void mark(Pass pass) {
+        int count = markCounts[slot];
+        if (count == MAX_MARKS_PER_FRAME) return;
+
+        glQueryCounter(queries[slot][count], GL_TIMESTAMP);
+        markedPasses[slot][count] = pass;
+        markCounts[slot] = count + 1;
+    }
+
+    /**
+     * Ends the last pass of the frame and reads the results of earlier frames that are available.
+     */
+    public void endFrame() {
+        int count = markCounts[slot];
+        if (count > 0) {
+            glQueryCounter(queries[slot][count], GL_TIMESTAMP);
+            pending[slot] = true;
+        }
+        slot = (slot + 1) % FRAME_LATENCY;
+
+        // Oldest first, so the window stays in frame order.
+        for (int i = 0; i < FRAME_LATENCY; i++) {
+            int oldest = (slot + i) % FRAME_LATENCY;
+            if (!pending[oldest]) continue;
+            if (!isAvailable(oldest)) {
+                // Its queries are about to be reused.
+                if (oldest == slot) {
+                    pending[oldest] = false;
+                    droppedFrames++;
+                }
+                break;
+            }
+            collect(oldest);
+        }
+        markCounts[slot] = 0;
+    }
+
+    private boolean isAvailable(int slot) {
+        // Queries complete in order, so the last one being available means all of them are.
+        return glGetQueryObjecti(queries[slot][markCounts[slot]], GL_QUERY_RESULT_AVAILABLE) == GL_TRUE;
+    }
+
+    private void collect(int slot) {
+        Arrays.fill(frameTimes, 0);
+        long previous = glGetQueryObjecti64(queries[slot][0], GL_QUERY_RESULT);
+        for (int i = 0; i < markCounts[slot]; i++) {
+            long next = glGetQueryObjecti64(queries[slot][i + 1], GL_QUERY_RESULT);
+            frameTimes[markedPasses[slot][i].ordinal()] += (next - previous) / 1e6;
+            previous = next;
+        }
+        pending[slot] = false;
+
+        for (int pass = 0; pass < PASS_COUNT; pass++)
+            window[pass][windowNext] = frameTimes[pass];
+        windowNext = (windowNext + 1) % WINDOW_SIZE;
+        windowCount = Math.min(windowCount + 1, WINDOW_SIZE);
+    }
+
+    /**
+     * The number of frames the statistics are computed from, at most {@link #WINDOW_SIZE}.
+     */
+    public int getFrameCount() {
+        return windowCount;
+    }
+
+    /**
+     * The number of frames whose results were not ready in time and were not measured.
+     */
+    public long getDroppedFrameCount() {
+        return droppedFrames;
+    }
+
+    /**
+     * The mean GPU time of {@code pass} per frame in milliseconds, or {@code NaN} if no frame was measured yet.
+     */
+    public double getMean(Pass pass) {
+        if (windowCount == 0) return Double.NaN;
+
+        double sum = 0;
+        for (int i = 0; i < windowCount; i++)
+            sum += window[pass.ordinal()][i];
+        return sum / windowCount;
+    }
+
+    /**
+     * The {@code p} (between 0 and 1) percentile of the GPU time of {@code pass} per frame in milliseconds, or
+     * {@code NaN} if no frame was measured yet.
+     */
+    public double getPercentile(Pass pass, double p) {
+        if (windowCount == 0) return Double.NaN;
+
+        System.arraycopy(window[pass.ordinal()], 0, sortBuffer, 0, windowCount);
+        Arrays.sort(sortBuffer, 0, windowCount);
+        int index = (int) Math.ceil(p * windowCount) - 1;
+        return sortBuffer[Math.max(0, index)];
+    }
+
+    /**
+     * One line with the mean and 95th percentile of every pass and of the whole frame.
+     */
+    public String summary() {
+        StringBuilder builder = new StringBuilder("GPU time (ms, mean/p95 over " + windowCount + " frames):");
+        double total = 0;
+        for (Pass pass : Pass.values()) {
+            double mean = getMean(pass);
+            total += mean;
+            builder.append(String.format(Locale.ROOT, " %s %.3f/%.3f", pass, mean, getPercentile(pass, 0.95)));
+        }
+        builder.append(String.format(Locale.ROOT, ", total %.3f", total));
+        if (droppedFrames > 0) builder.append(", dropped ").append(droppedFrames).append(" frames");
+        return builder.toString();
+    }
+
+    public void cleanup() {
+        for (int[] slotQueries : queries)
+            glDeleteQueries(slotQueries);
+        System.out.println("Deleted GPU timer queries");
+    }
+}
@@ -0,0 +1,156 @@
+package system;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A single-producer, single-consumer ring buffer of pointer and keyboard events, in grid coordinates.
+ * <br>
+ * The UI thread only publishes events ({@link #press}, {@link #drag}, {@link #release}, {@link #clear}) and the
+ * simulation thread calls {@link #drain(Listener)} once per step. Publishing never blocks or allocates: the event is
+ * written into preallocated arrays and becomes visible to the consumer with a release store of the tail. If the
+ * consumer falls a whole ring behind, new events are dropped.
+ * <br>
+ * Events are coalesced per drain: all movement of a drag becomes a single {@link Listener#drag} call at the last
+ * position, and a clear discards the drag movement published before it.
+ */
+public class InputEventQueue {
+    public interface Listener {
+        /**
+         * The pointer is held down on cell {@code (x, y)} and moved by {@code (movementX, movementY)} cells since the
+         * previous drain. Called on every drain while the pointer is down, also when it did not move.
+         */
+        void drag(int x, int y, int movementX, int movementY);
+
+        /**
+         * All fields should be cleared.
+         */
+        void clear();
+    }
+
+    private static final int PRESS = 0;
+    private static final int DRAG = 1;
+    private static final int RELEASE = 2;
+    private static final int CLEAR = 3;
+
+    private final int capacity;
+    private final int mask;
+    private final int[] types;
+    private final int[] xs;
+    private final int[] ys;
+    private final AtomicLong head = new AtomicLong();
+    private final AtomicLong tail = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+
+    // Consumer state.
+    private boolean down;
+    private boolean pending;
+    private int x;
+    private int y;
+    private int reportedX;
+    private int reportedY;
+
+    /**
+     * @param capacity The number of events that can be waiting, rounded up to a power of 2.
+     */
+    public InputEventQueue(int capacity) {
+        this.capacity = Integer.highestOneBit(Math.max(1, capacity - 1)) << 1;
+        this.mask = this.capacity - 1;
+        this.types = new int[this.capacity];
+        this.xs = new int[this.capacity];
+        this.ys = new int[this.capacity];
+    }
+
+    public boolean press(int x, int y) {
+        return publish(PRESS, x, y);
+    }
+
+    public boolean drag(int x, int y) {
+        return publish(DRAG, x, y);
+    }
+
+    public boolean release() {
+        return publish(RELEASE, 0, 0);
+    }
+
+    public boolean clear() {
+        return publish(CLEAR, 0, 0);
+    }
+
+    /**
+     * The number of events dropped because the ring was full.
+     */
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+
+    private boolean publish(int type, int x, int y) {
+        long t = tail.get();
+        if (t - head.get() == capacity) {
+            dropped.incrementAndGet();
+            return false;
+        }
+
+        int slot = (int) t & mask;
+        types[slot] = type;
+        xs[slot] = x;
+        ys[slot] = y;
+        tail.lazySet(t + 1);
+        return true;
+    }
+
+    /**
+     * Hands the events published since the previous drain to {@code listener}, coalesced. Must only be called from
+     * the consumer thread.
+     */
+    public void drain(Listener listener) {
+        long h = head.get();
+        long t = tail.get();
+
+        for (; h < t; h++) {
+            int slot = (int) h & mask;
+            switch (types[slot]) {
+                case PRESS -> {
+                    down = true;
+                    pending = true;
+                    moveTo(xs[slot], ys[slot], true);
+                }
+                case DRAG -> {
+                    moveTo(xs[slot], ys[slot], !down);
+                    down = true;
+                    pending = true;
+                }
+                case RELEASE -> {
+                    // Report a drag that started and ended within this drain.
+                    if (pending) report(listener);
+                    down = false;
+                    pending = false;
+                }
+                case CLEAR -> {
+                    reportedX = x;
+                    reportedY = y;
+                    pending = false;
+                    listener.clear();
+                }
+            }
+        }
+        head.lazySet(t);
+
+        if (down) report(listener);
+        pending = false;
+    }
+
+    private void moveTo(int x, int y, boolean start) {
+        this.x = x;
+        this.y = y;
+        if (start) {
+            reportedX = x;
+            reportedY = y;
+        }
+    }
+
+    private void report(Listener listener) {
+        listener.drag(x, y, x - reportedX, y - reportedY);
+        reportedX = x;
+        reportedY = y;
+    }
+}
@@ -1,48 +1,170 @@
 package system;
 
+import java.util.Arrays;
 import java.util.EnumSet;
 
+import static org.lwjgl.opengl.GL43.*;
+
 /**
  * This class is designed to create shader programs that utilize R, RG, or RGB image units.
  * In OpenGL, image uniforms require explicitly specified formats, which often results in maintaining
  * separate shader files with identical code except for the image format declarations.
  * This class simplifies that process by managing multiple shaders that share the same logic but differ only in image format.
+ * <br>
+ * The format of the first image declaration is written {@code REPLACE_ME} in the shader, and declarations that may
+ * have another format {@code REPLACE_ME_1}, {@code REPLACE_ME_2} and so on. A variant is picked by the textures that
+ * are bound to those images, e.g. {@code r16f} for a {@code GL_R16F} texture, so the same shader serves 32 and 16 bit
+ * fields. Variants are compiled the first time they are needed, except the ones given to the constructor.
+ * <br>
+ * The {@link Formats} variants use the same 32 bit format for every placeholder.
+ * <br>
+ * A placeholder fixes the format of every image declared with it, so images that share one must be bound to textures
+ * of the same internal format, e.g. a solution and its scratch texture.
  */
 
 public class MultiProgramManager {
     public enum Formats {R, RG, RGBA}
     private static final String STRING_TO_REPLACE = "REPLACE_ME";
+    private static final int MAX_PLACEHOLDERS = 3;
 
     private final String rawSource;
-    private ShaderProgram programR;
-    private ShaderProgram programRG;
-    private ShaderProgram programRGBA;
+    private final int placeholderCount;
+    /**
+     * The internal formats of each compiled variant, packed 16 bits per placeholder, and the variants.
+     */
+    private long[] keys = new long[0];
+    private ShaderProgram[] programs = new ShaderProgram[0];
 
+    /**
+     * Compiles the 32 bit variants of {@code formats}.
+     */
     public MultiProgramManager(String file, EnumSet<Formats> formats) {
-        rawSource = Shader.readString(file);
+        this(file);
 
-        if(formats.contains(Formats.R))
-            this.programR = createProgram("r32f");
+        if (formats.contains(Formats.R))
+            getProgram(uniformFormats(GL_R32F));
         if (formats.contains(Formats.RG))
-            this.programRG = createProgram("rg32f");
+            getProgram(uniformFormats(GL_RG32F));
         if (formats.contains(Formats.RGBA))
-            this.programRGBA = createProgram("rgba32f");
+            getProgram(uniformFormats(GL_RGBA32F));
+    }
+
+    /**
+     * Compiles the variant for the internal formats {@code internalFormats}, one per placeholder.
+     */
+    public MultiProgramManager(String file, int... internalFormats) {
+        this(file);
+        getProgram(internalFormats);
+    }
+
+    private MultiProgramManager(String file) {
+        rawSource = Shader.readString(file);
+
+        int count = 1;
+        while (count < MAX_PLACEHOLDERS && rawSource.contains(STRING_TO_REPLACE + "_" + count))
+            count++;
+        placeholderCount = count;
+    }
+
+    /**
+     * The variant for a shader whose only image format placeholder is for {@code image}.
+     */
+    public ShaderProgram getProgram(Texture image) {
+        ShaderProgram program = find(key(image.getInternalFormat(), 0, 0));
+        return program != null ? program : getProgram(image.getInternalFormat());
+    }
+
+    /**
+     * The variant for a shader whose placeholders are for {@code image0} and {@code image1}.
+     */
+    public ShaderProgram getProgram(Texture image0, Texture image1) {
+        ShaderProgram program = find(key(image0.getInternalFormat(), image1.getInternalFormat(), 0));
+        return program != null ? program : getProgram(image0.getInternalFormat(), image1.getInternalFormat());
     }
 
-    public ShaderProgram getProgramR() {
-        return programR;
+    /**
+     * The variant for a shader whose placeholders are for {@code image0}, {@code image1} and {@code image2}.
+     */
+    public ShaderProgram getProgram(Texture image0, Texture image1, Texture image2) {
+        ShaderProgram program =
+                find(key(image0.getInternalFormat(), image1.getInternalFormat(), image2.getInternalFormat()));
+        return program != null ? program :
+                getProgram(image0.getInternalFormat(), image1.getInternalFormat(), image2.getInternalFormat());
     }
 
-    public ShaderProgram getProgramRG() {
-        return programRG;
+    /**
+     * The variant for {@code internalFormats}, one per placeholder, compiled if it does not exist yet.
+     */
+    private ShaderProgram getProgram(int... internalFormats) {
+        if (internalFormats.length != placeholderCount)
+            throw new IllegalArgumentException("Expected " + placeholderCount + " image formats, got " +
+                    internalFormats.length);
+
+        int[] formats = Arrays.copyOf(internalFormats, MAX_PLACEHOLDERS);
+        long key = key(formats[0], formats[1], formats[2]);
+        ShaderProgram program = find(key);
+        if (program != null) return program;
+
+        program = createProgram(internalFormats);
+        keys = Arrays.copyOf(keys, keys.length + 1);
+        programs = Arrays.copyOf(programs, programs.length + 1);
+        keys[keys.length - 1] = key;
+        programs[programs.length - 1] = program;
+        return program;
+    }
+
+    private ShaderProgram find(long key) {
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] == key) return programs[i];
+        }
+        return null;
+    }
+
+    private int[] uniformFormats(int internalFormat) {
+        int[] formats = new int[placeholderCount];
+        Arrays.fill(formats, internalFormat);
+        return formats;
     }
 
-    public ShaderProgram getProgramRGBA() {
-        return programRGBA;
+    private static long key(int internalFormat0, int internalFormat1, int internalFormat2) {
+        return (internalFormat0 & 0xFFFFL) | (internalFormat1 & 0xFFFFL) << 16 | (internalFormat2 & 0xFFFFL) << 32;
+    }
+
+    private ShaderProgram createProgram(int... internalFormats) {
+        return ShaderProgram.createComputeProgramFromSource(substitute(rawSource, internalFormats));
+    }
+
+    /**
+     * Replaces the placeholders of {@code source} with the image formats of {@code internalFormats}, the first one for
+     * {@code REPLACE_ME} and the others for {@code REPLACE_ME_1}, {@code REPLACE_ME_2} and so on. Throws if a
+     * placeholder is left without a format, which the driver would otherwise report as an obscure compile error.
+     */
+    static String substitute(String source, int... internalFormats) {
+        if (internalFormats.length == 0)
+            throw new IllegalArgumentException("Expected at least 1 image format");
+
+        // The numbered placeholders first, as they start with the unnumbered one.
+        for (int i = internalFormats.length - 1; i > 0; i--)
+            source = source.replace(STRING_TO_REPLACE + "_" + i, imageFormat(internalFormats[i]));
+        if (source.contains(STRING_TO_REPLACE + "_"))
+            throw new IllegalArgumentException("The shader has more image format placeholders than the " +
+                    internalFormats.length + " formats given");
+
+        return source.replace(STRING_TO_REPLACE, imageFormat(internalFormats[0]));
     }
 
-    private ShaderProgram createProgram(String replacement) {
-        String source = rawSource.replace(STRING_TO_REPLACE, replacement);
-        return ShaderProgram.createComputeProgramFromSource(source);
+    /**
+     * The GLSL image format qualifier of a sized float internal format, e.g. {@code rg16f} for {@code GL_RG16F}.
+     */
+    public static String imageFormat(int internalFormat) {
+        return switch (internalFormat) {
+            case GL_R32F -> "r32f";
+            case GL_RG32F -> "rg32f";
+            case GL_RGBA32F -> "rgba32f";
+            case GL_R16F -> "r16f";
+            case GL_RG16F -> "rg16f";
+            case GL_RGBA16F -> "rgba16f";
+            default -> throw new IllegalArgumentException("Unsupported internal format: " + internalFormat);
+        };
     }
 }
@@ -0,0 +1,301 @@
+package system;
+
+import java.util.Arrays;
+
+/**
+ * Geometric multigrid solver for {@code c * x - a * (sum of the 4 neighbours of x) = b}, the equation behind both the
+ * pressure and the diffusion solves of {@link CpuSolver}.
+ * <br>
+ * Every level halves the grid along both axes, rounding odd sizes up, until its shorter side is only a few cells wide.
+ * Residuals are restricted by
+ * averaging the fine cells under a coarse cell, and corrections are prolongated bilinearly. The smoother is red-black
+ * Gauss-Seidel, so it uses the same {@link StencilKernels} and {@link RowBands} as the solver.
+ * <br>
+ * A coarse cell is twice as wide, so the coarse operator uses {@code a / 4} and keeps the same diagonal shift
+ * {@code c - 4 * a}. Cycles stop once the relative residual {@code |b - Ax| / |b|} reaches the tolerance.
+ */
+public class MultigridSolver {
+    public enum Cycle {V, W}
+
+    private static final int MIN_COARSE_N = 3;
+
+    private final Level[] levels;
+
+    private Cycle cycle = Cycle.V;
+    private int preSmoothing = 2;
+    private int postSmoothing = 2;
+    private int coarseSweeps = 40;
+    private int maxCycles = 10;
+    private float tolerance = 1e-4f;
+    private StencilKernels kernels;
+    private RowBands bands;
+    private boolean singular;
+
+    /**
+     * @param maxLevels The maximum number of levels, including the finest one.
+     */
+    public MultigridSolver(int nX, int nY, int maxLevels) {
+        if (maxLevels < 1)
+            throw new IllegalArgumentException("Multigrid needs at least 1 level: " + maxLevels);
+
+        int count = 1;
+        for (int levelN = Math.min(nX, nY); count < maxLevels && (levelN + 1) / 2 >= MIN_COARSE_N;
+             levelN = (levelN + 1) / 2)
+            count++;
+
+        levels = new Level[count];
+        int levelNX = nX;
+        int levelNY = nY;
+        for (int l = 0; l < count; l++) {
+            // The finest level borrows the caller's x and b.
+            levels[l] = new Level(levelNX, levelNY, l > 0);
+            levelNX = (levelNX + 1) / 2;
+            levelNY = (levelNY + 1) / 2;
+        }
+    }
+
+    /**
+     * Solves the equation in place, using the current content of {@code x} as the initial guess.
+     * If the operator is singular (pure Neumann pressure, {@code c == 4 * a}), the mean of {@code b} is removed first
+     * so that the system has a solution; this does not change the gradient of {@code x}. The same is done on every
+     * coarse level, otherwise rounding makes the coarse problems inconsistent and their solutions drift.
+     */
+    public void solve(float[] x, float[] b, float a, float c, int bound,
+                      StencilKernels kernels, RowBands bands, SolveStats stats) {
+        this.kernels = kernels;
+        this.bands = bands;
+
+        Level fine = levels[0];
+        fine.x = x;
+        fine.b = b;
+
+        singular = Math.abs(c - 4 * a) <= 1e-6f * c;
+        if (singular) removeMean(fine.b, fine);
+
+        float bNorm = norm(fine.b, fine);
+        if (bNorm == 0) {
+            // The exact solution, whatever the initial guess. The bounds of a zero interior are zero too.
+            Arrays.fill(x, 0);
+            stats.record(0, 0);
+            return;
+        }
+
+        int cycles = 0;
+        float residual;
+        do {
+            cycle(0, a, c, bound);
+            cycles++;
+
+            computeResidual(fine, a, c);
+            residual = norm(fine.r, fine) / bNorm;
+        } while (residual > tolerance && cycles < maxCycles);
+
+        stats.record(cycles, residual, residual > tolerance);
+    }
+
+    public int getLevelCount() {
+        return levels.length;
+    }
+
+    public void setCycle(Cycle cycle) {
+        this.cycle = cycle;
+    }
+
+    public void setSmoothing(int preSmoothing, int postSmoothing) {
+        this.preSmoothing = preSmoothing;
+        this.postSmoothing = postSmoothing;
+    }
+
+    public void setCoarseSweeps(int coarseSweeps) {
+        this.coarseSweeps = coarseSweeps;
+    }
+
+    public void setMaxCycles(int maxCycles) {
+        this.maxCycles = maxCycles;
+    }
+
+    public void setTolerance(float tolerance) {
+        this.tolerance = tolerance;
+    }
+
+    private void cycle(int l, float a, float c, int bound) {
+        Level level = levels[l];
+
+        if (l == levels.length - 1) {
+            smooth(level, a, c, bound, coarseSweeps);
+            if (singular) removeMean(level.x, level);
+            return;
+        }
+
+        smooth(level, a, c, bound, preSmoothing);
+        computeResidual(level, a, c);
+
+        Level coarse = levels[l + 1];
+        restrict(level, coarse);
+        if (singular) removeMean(coarse.b, coarse);
+        Arrays.fill(coarse.x, 0);
+
+        int visits = cycle == Cycle.W ? 2 : 1;
+        for (int k = 0; k < visits; k++)
+            cycle(l + 1, a / 4, c - 3 * a, bound);
+
+        CpuSolver.setBound(bound, coarse.x, coarse.nX, coarse.nY, coarse.stride);
+        prolongate(coarse, level);
+        CpuSolver.setBound(bound, level.x, level.nX, level.nY, level.stride);
+
+        smooth(level, a, c, bound, postSmoothing);
+    }
+
+    private void smooth(Level level, float a, float c, int bound, int sweeps) {
+        float invC = 1 / c;
+        for (int k = 0; k < sweeps; k++) {
+            for (int color = 0; color < 2; color++) {
+                int c0 = color;
+                if (bands == null)
+                    redBlackRows(level, a, invC, c0, 1, level.nY + 1);
+                else
+                    bands.forEach(1, level.nY + 1, (from, to) -> redBlackRows(level, a, invC, c0, from, to));
+            }
+            CpuSolver.setBound(bound, level.x, level.nX, level.nY, level.stride);
+        }
+    }
+
+    private void redBlackRows(Level level, float a, float invC, int color, int from, int to) {
+        for (int j = from; j < to; j++) {
+            int row = j * level.stride;
+            int first = ((1 + j) & 1) == color ? 1 : 2;
+            kernels.redBlack(level.x, level.b, a, invC, row + first, row + level.nX + 1, level.stride);
+        }
+    }
+
+    private void computeResidual(Level level, float a, float c) {
+        if (bands == null)
+            residualRows(level, a, c, 1, level.nY + 1);
+        else
+            bands.forEach(1, level.nY + 1, (from, to) -> residualRows(level, a, c, from, to));
+    }
+
+    private void residualRows(Level level, float a, float c, int from, int to) {
+        for (int j = from; j < to; j++) {
+            int row = j * level.stride;
+            kernels.residual(level.r, level.x, level.b, a, c, row + 1, row + level.nX + 1, level.stride);
+        }
+    }
+
+    /**
+     * Sets every coarse cell of {@code coarse.b} to the average of the 4 fine residuals it covers. The last coarse
+     * row and column of an odd-sized fine grid cover only one fine row or column; the missing cells count as zero,
+     * which under-corrects there instead of over-correcting.
+     */
+    private void restrict(Level fine, Level coarse) {
+        if (bands == null)
+            restrictRows(fine, coarse, 1, coarse.nY + 1);
+        else
+            bands.forEach(1, coarse.nY + 1, (from, to) -> restrictRows(fine, coarse, from, to));
+    }
+
+    private static void restrictRows(Level fine, Level coarse, int from, int to) {
+        float[] r = fine.r;
+        int fineStride = fine.stride;
+
+        for (int cj = from; cj < to; cj++) {
+            int fineRow0 = (2 * cj - 1) * fineStride;
+            boolean hasRow1 = 2 * cj <= fine.nY;
+            int coarseRow = cj * coarse.stride;
+
+            for (int ci = 1; ci <= coarse.nX; ci++) {
+                int idx = fineRow0 + 2 * ci - 1;
+                boolean hasCol1 = 2 * ci <= fine.nX;
+
+                float sum = r[idx];
+                if (hasCol1) sum += r[idx + 1];
+                if (hasRow1) {
+                    sum += r[idx + fineStride];
+                    if (hasCol1) sum += r[idx + fineStride + 1];
+                }
+
+                coarse.b[coarseRow + ci] = 0.25f * sum;
+            }
+        }
+    }
+
+    /**
+     * Adds the bilinear interpolation of {@code coarse.x} to {@code fine.x}. A fine cell sits a quarter of a coarse
+     * cell away from its parent's center, so the weights are 9/16, 3/16, 3/16 and 1/16. The coarse boundary cells must
+     * be set before this is called.
+     */
+    private void prolongate(Level coarse, Level fine) {
+        if (bands == null)
+            prolongateRows(coarse, fine, 1, fine.nY + 1);
+        else
+            bands.forEach(1, fine.nY + 1, (from, to) -> prolongateRows(coarse, fine, from, to));
+    }
+
+    private static void prolongateRows(Level coarse, Level fine, int from, int to) {
+        float[] e = coarse.x;
+        int coarseStride = coarse.stride;
+
+        for (int j = from; j < to; j++) {
+            int cj = (j + 1) >> 1;
+            int dj = (j & 1) == 1 ? -coarseStride : coarseStride;
+            int fineRow = j * fine.stride;
+
+            for (int i = 1; i <= fine.nX; i++) {
+                int ci = (i + 1) >> 1;
+                int di = (i & 1) == 1 ? -1 : 1;
+                int idx = ci + cj * coarseStride;
+
+                fine.x[fineRow + i] += 0.5625f * e[idx] + 0.1875f * (e[idx + di] + e[idx + dj]) +
+                        0.0625f * e[idx + di + dj];
+            }
+        }
+    }
+
+    private static void removeMean(float[] arr, Level level) {
+        double sum = 0;
+        for (int j = 1; j <= level.nY; j++) {
+            int row = j * level.stride;
+            for (int idx = row + 1; idx <= row + level.nX; idx++)
+                sum += arr[idx];
+        }
+
+        float mean = (float) (sum / ((double) level.nX * level.nY));
+        for (int j = 1; j <= level.nY; j++) {
+            int row = j * level.stride;
+            for (int idx = row + 1; idx <= row + level.nX; idx++)
+                arr[idx] -= mean;
+        }
+    }
+
+    private static float norm(float[] arr, Level level) {
+        double sum = 0;
+        for (int j = 1; j <= level.nY; j++) {
+            int row = j * level.stride;
+            for (int idx = row + 1; idx <= row + level.nX; idx++)
+                sum += (double) arr[idx] * arr[idx];
+        }
+        return (float) Math.sqrt(sum);
+    }
+
+    private static class Level {
+        final int nX;
+        final int nY;
+        final int stride;
+        final float[] r;
+        float[] x;
+        float[] b;
+
+        Level(int nX, int nY, boolean allocateFields) {
+            this.nX = nX;
+            this.nY = nY;
+            this.stride = nX + 2;
+
+            int size = stride * (nY + 2);
+            this.r = new float[size];
+            if (allocateFields) {
+                this.x = new float[size];
+                this.b = new float[size];
+            }
+        }
+    }
+}
@@ -0,0 +1,58 @@
+package system;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * A Flight Recorder event spanning one phase of a solver step, or the rendering of a frame.
+ * <br>
+ * Without a recording the JIT removes the event objects entirely, so the solver still allocates nothing per step.
+ */
+@Name("fluid.Phase")
+@Label("Solver Phase")
+@Category("Fluid Simulation")
+@Description("One phase of a solver step, or rendering a frame")
+@StackTrace(false)
+public class PhaseEvent extends jdk.jfr.Event {
+    public enum Phase {ADD_SOURCE, DIFFUSE, PROJECT, ADVECT, RENDER, PAINT}
+
+    @Label("Phase")
+    String phase;
+
+    @Label("Grid Width")
+    @Description("Number of inner cells along x")
+    int gridWidth;
+
+    @Label("Grid Height")
+    @Description("Number of inner cells along y")
+    int gridHeight;
+
+    @Label("Time Step")
+    @Description("Time step in seconds")
+    float deltaTime;
+
+    @Label("Iterations")
+    @Description("Linear solver iterations of the phase, 0 if it has none")
+    int iterations;
+
+    public PhaseEvent(Phase phase, int gridWidth, int gridHeight, float deltaTime) {
+        this.phase = phase.name();
+        this.gridWidth = gridWidth;
+        this.gridHeight = gridHeight;
+        this.deltaTime = deltaTime;
+    }
+
+    /**
+     * Ends the event and commits it, if it is recorded.
+     */
+    public void end(int iterations) {
+        end();
+        if (!shouldCommit()) return;
+
+        this.iterations = iterations;
+        commit();
+    }
+}
@@ -0,0 +1,97 @@
+package system;
+
+import org.lwjgl.opengl.GL;
+import org.lwjgl.opengl.GLCapabilities;
+
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+
+import static org.lwjgl.opengl.ARBBufferStorage.*;
+import static org.lwjgl.opengl.GL43.*;
+
+/**
+ * A ring of pixel unpack buffers for streaming texture uploads.
+ * <br>
+ * {@link #stage(FloatBuffer)} copies the data into the next buffer of the ring and binds it to
+ * {@code GL_PIXEL_UNPACK_BUFFER}, so the following {@code glTexSubImage2D} reads from GPU-visible memory and returns
+ * without copying. {@link #finish()} fences the buffer; it is only written again once that fence has signaled, which
+ * with {@link #SLOT_COUNT} buffers in flight has normally happened long before.
+ * <br>
+ * With {@code ARB_buffer_storage} the buffers are persistently mapped. Otherwise each upload maps its buffer with
+ * {@code GL_MAP_UNSYNCHRONIZED_BIT}, which is safe because the fence already guarantees the GPU is done with it.
+ */
+public class PixelUploadRing {
+    public static final int SLOT_COUNT = 3;
+
+    private final int slotBytes;
+    private final boolean persistent;
+    private final BufferObject[] buffers = new BufferObject[SLOT_COUNT];
+    private final FloatBuffer[] mappedBuffers = new FloatBuffer[SLOT_COUNT];
+    private final long[] fences = new long[SLOT_COUNT];
+
+    private int slot = -1;
+
+    public PixelUploadRing(int slotBytes) {
+        this.slotBytes = slotBytes;
+
+        GLCapabilities capabilities = GL.getCapabilities();
+        this.persistent = capabilities.OpenGL44 || capabilities.GL_ARB_buffer_storage;
+
+        for (int i = 0; i < SLOT_COUNT; i++) {
+            if (persistent) {
+                int flags = GL_MAP_WRITE_BIT | GL_MAP_PERSISTENT_BIT | GL_MAP_COHERENT_BIT;
+                buffers[i] = BufferObject.createStorage(slotBytes, GL_PIXEL_UNPACK_BUFFER, flags, true);
+                mappedBuffers[i] = buffers[i].mapRange(0, slotBytes, flags).asFloatBuffer();
+            } else {
+                buffers[i] = new BufferObject(slotBytes, GL_PIXEL_UNPACK_BUFFER, GL_STREAM_DRAW, true);
+            }
+        }
+        glBindBuffer(GL_PIXEL_UNPACK_BUFFER, 0);
+    }
+
+    /**
+     * The largest upload that fits in one buffer, in bytes.
+     */
+    public int getSlotBytes() {
+        return slotBytes;
+    }
+
+    /**
+     * Copies the remaining floats of {@code data} into the next buffer and leaves it bound to
+     * {@code GL_PIXEL_UNPACK_BUFFER}, so pixel data offsets now start at 0 in that buffer. The position of
+     * {@code data} is not changed.
+     */
+    public void stage(FloatBuffer data) {
+        int bytes = data.remaining() * Float.BYTES;
+        if (bytes > slotBytes)
+            throw new IllegalArgumentException("Upload of " + bytes + " bytes does not fit in " + slotBytes + " bytes");
+
+        slot = (slot + 1) % SLOT_COUNT;
+        if (fences[slot] != 0) {
+            // Only waits if the GPU is a whole ring of uploads behind.
+            glClientWaitSync(fences[slot], GL_SYNC_FLUSH_COMMANDS_BIT, Long.MAX_VALUE);
+            glDeleteSync(fences[slot]);
+            fences[slot] = 0;
+        }
+
+        if (persistent) {
+            FloatBuffer target = mappedBuffers[slot];
+            target.clear();
+            target.put(data.duplicate());
+            buffers[slot].bind();
+        } else {
+            int access = GL_MAP_WRITE_BIT | GL_MAP_UNSYNCHRONIZED_BIT | GL_MAP_INVALIDATE_RANGE_BIT;
+            ByteBuffer mapped = buffers[slot].mapRange(0, bytes, access);
+            mapped.asFloatBuffer().put(data.duplicate());
+            buffers[slot].unmap();
+        }
+    }
+
+    /**
+     * Fences the buffer of the last {@link #stage(FloatBuffer)} after the commands that read it, and unbinds it.
+     */
+    public void finish() {
+        fences[slot] = glFenceSync(GL_SYNC_GPU_COMMANDS_COMPLETE, 0);
+        glBindBuffer(GL_PIXEL_UNPACK_BUFFER, 0);
+    }
+}
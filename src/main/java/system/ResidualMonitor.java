@@ -0,0 +1,211 @@
+package system;
+
+import org.lwjgl.BufferUtils;
+import org.lwjgl.opengl.GL;
+import org.lwjgl.opengl.GLCapabilities;
+
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+
+import static org.lwjgl.opengl.ARBBufferStorage.*;
+import static org.lwjgl.opengl.GL43.*;
+
+/**
+ * Measures the residual of the Jacobi solves of one equation on the GPU without stalling the pipeline.
+ * <br>
+ * {@link #measure} dispatches residual.glsl, which writes one partial sum per work group into a small shader storage
+ * buffer, and puts a fence after it. {@link #poll} never waits: it only reads the buffers whose fence has already
+ * signaled and sums their partials on the CPU. The GPU usually runs a frame or more behind, so the measurements of a
+ * solve rarely finish while it is still being recorded. They are kept until they do, and
+ * {@link #getConvergedIterations(float)} tells the next solve of the same equation after how many iterations the last
+ * finished one met the tolerance. Stopping there lags the tolerance by a solve, but costs no pipeline flush.
+ * <br>
+ * With {@code ARB_buffer_storage} the buffers are persistently mapped and read directly, otherwise they are read with
+ * {@code glGetBufferSubData} once their fence has signaled. Buffers are created as measurements are pending, up to
+ * {@link #MAX_SLOTS}; beyond that the oldest pending measurement is dropped.
+ */
+public class ResidualMonitor {
+    private static final int MAX_SLOTS = 32;
+
+    private final int numGroupsX;
+    private final int numGroupsY;
+    private final int partialCount;
+    private final boolean persistent;
+    private final FloatBuffer readBuffer;
+
+    private BufferObject[] buffers = new BufferObject[0];
+    private FloatBuffer[] mappedBuffers = new FloatBuffer[0];
+    private long[] fences = new long[0];
+    private int[] solves = new int[0];
+    private int[] iterations = new int[0];
+    private long[] sequences = new long[0];
+
+    private int solve;
+    private long sequence;
+    private long lastReadSequence;
+    private float residual = Float.NaN;
+
+    // The finished measurements of the most recent earlier solve that has any.
+    private int laggedSolve;
+    private int laggedCount;
+    private final int[] laggedIterations = new int[MAX_SLOTS];
+    private final float[] laggedResiduals = new float[MAX_SLOTS];
+
+    public ResidualMonitor(int numGroupsX, int numGroupsY) {
+        this.numGroupsX = numGroupsX;
+        this.numGroupsY = numGroupsY;
+        this.partialCount = numGroupsX * numGroupsY * 2;
+
+        GLCapabilities capabilities = GL.getCapabilities();
+        this.persistent = capabilities.OpenGL44 || capabilities.GL_ARB_buffer_storage;
+        this.readBuffer = persistent ? null : BufferUtils.createFloatBuffer(partialCount);
+    }
+
+    /**
+     * Starts a new solve, after reading the finished measurements of the earlier ones.
+     */
+    public void begin() {
+        poll();
+        solve++;
+        lastReadSequence = 0;
+        residual = Float.NaN;
+    }
+
+    /**
+     * Dispatches the residual of the equation solved by jacobi.glsl with the same {@code a} and {@code b}, after
+     * {@code iterations} iterations of the current solve. The right-hand side must be bound to texture unit 0 and the
+     * solution to image unit 0, as they are for the Jacobi iterations.
+     */
+    public void measure(ShaderProgram program, float a, float b, int iterations) {
+        int slot = freeSlot();
+
+        program.use();
+        program.setUniform("a", a);
+        program.setUniform("b", b);
+        buffers[slot].bindBase(0);
+
+        glDispatchCompute(numGroupsX, numGroupsY, 1);
+        glMemoryBarrier(persistent ? GL_CLIENT_MAPPED_BUFFER_BARRIER_BIT : GL_BUFFER_UPDATE_BARRIER_BIT);
+
+        fences[slot] = glFenceSync(GL_SYNC_GPU_COMMANDS_COMPLETE, 0);
+        solves[slot] = solve;
+        this.iterations[slot] = iterations;
+        sequences[slot] = ++sequence;
+    }
+
+    /**
+     * Reads every finished measurement without waiting for the GPU.
+     *
+     * @return The relative residual {@code |r| / |rhs|} of the most recent finished measurement of the current solve,
+     * or {@code NaN} if none has finished yet. If the right-hand side is zero, the absolute residual is returned.
+     */
+    public float poll() {
+        for (int slot = 0; slot < fences.length; slot++) {
+            if (fences[slot] == 0) continue;
+
+            int status = glClientWaitSync(fences[slot], GL_SYNC_FLUSH_COMMANDS_BIT, 0);
+            if (status != GL_ALREADY_SIGNALED && status != GL_CONDITION_SATISFIED) continue;
+
+            glDeleteSync(fences[slot]);
+            fences[slot] = 0;
+            float measured = read(slot);
+
+            if (solves[slot] == solve) {
+                if (sequences[slot] > lastReadSequence) {
+                    lastReadSequence = sequences[slot];
+                    residual = measured;
+                }
+            } else if (solves[slot] >= laggedSolve) {
+                if (solves[slot] > laggedSolve) {
+                    laggedSolve = solves[slot];
+                    laggedCount = 0;
+                }
+                if (laggedCount == MAX_SLOTS) continue;
+
+                laggedIterations[laggedCount] = iterations[slot];
+                laggedResiduals[laggedCount] = measured;
+                laggedCount++;
+            }
+        }
+
+        return residual;
+    }
+
+    /**
+     * The relative residual of the most recent finished measurement of the current solve, or {@code NaN}.
+     */
+    public float getResidual() {
+        return residual;
+    }
+
+    /**
+     * The fewest iterations after which a finished measurement of the most recent earlier solve was at or below
+     * {@code tolerance}, or {@link Integer#MAX_VALUE} if there is none.
+     */
+    public int getConvergedIterations(float tolerance) {
+        int converged = Integer.MAX_VALUE;
+        for (int i = 0; i < laggedCount; i++) {
+            if (laggedResiduals[i] <= tolerance) converged = Math.min(converged, laggedIterations[i]);
+        }
+        return converged;
+    }
+
+    /**
+     * A slot without a pending measurement, created if there is none, or else the one with the oldest measurement.
+     */
+    private int freeSlot() {
+        int oldest = -1;
+        for (int slot = 0; slot < fences.length; slot++) {
+            if (fences[slot] == 0) return slot;
+            if (oldest < 0 || sequences[slot] < sequences[oldest]) oldest = slot;
+        }
+
+        if (fences.length < MAX_SLOTS) return addSlot();
+
+        // GPU commands run in order, so the new fence only signals after the new partials are written.
+        glDeleteSync(fences[oldest]);
+        fences[oldest] = 0;
+        return oldest;
+    }
+
+    private int addSlot() {
+        int slot = fences.length;
+        buffers = Arrays.copyOf(buffers, slot + 1);
+        mappedBuffers = Arrays.copyOf(mappedBuffers, slot + 1);
+        fences = Arrays.copyOf(fences, slot + 1);
+        solves = Arrays.copyOf(solves, slot + 1);
+        iterations = Arrays.copyOf(iterations, slot + 1);
+        sequences = Arrays.copyOf(sequences, slot + 1);
+
+        long size = (long) partialCount * Float.BYTES;
+        if (persistent) {
+            int flags = GL_MAP_READ_BIT | GL_MAP_PERSISTENT_BIT | GL_MAP_COHERENT_BIT;
+            buffers[slot] = BufferObject.createStorage(size, GL_SHADER_STORAGE_BUFFER, flags, true);
+            mappedBuffers[slot] = buffers[slot].mapRange(0, size, flags).asFloatBuffer();
+        } else {
+            buffers[slot] = new BufferObject(size, GL_SHADER_STORAGE_BUFFER, GL_STREAM_READ, true);
+        }
+        return slot;
+    }
+
+    private float read(int slot) {
+        FloatBuffer partials;
+        if (persistent) {
+            partials = mappedBuffers[slot];
+        } else {
+            buffers[slot].bind();
+            readBuffer.clear();
+            glGetBufferSubData(GL_SHADER_STORAGE_BUFFER, 0, readBuffer);
+            partials = readBuffer;
+        }
+
+        double residualSum = 0;
+        double rhsSum = 0;
+        for (int i = 0; i < partialCount; i += 2) {
+            residualSum += partials.get(i);
+            rhsSum += partials.get(i + 1);
+        }
+
+        return (float) (rhsSum > 0 ? Math.sqrt(residualSum / rhsSum) : Math.sqrt(residualSum));
+    }
+}
@@ -0,0 +1,141 @@
+package system;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Splits a range of grid rows into bands and runs them on a {@link ForkJoinPool}.
+ * <br>
+ * The pool is sized to the requested parallelism and the range is cut into a few bands per worker, so that work
+ * stealing can even out bands that finish early.
+ */
+public class RowBands {
+    private static final int BANDS_PER_THREAD = 4;
+    private static final int MIN_ROWS_PER_BAND = 8;
+
+    private final ForkJoinPool pool;
+    private final int parallelism;
+
+    @FunctionalInterface
+    public interface Task {
+        /**
+         * Processes rows {@code [from, to)}.
+         */
+        void run(int from, int to);
+    }
+
+    @FunctionalInterface
+    public interface SumTask {
+        /**
+         * Processes rows {@code [from, to)} and returns their contribution to a sum.
+         */
+        double run(int from, int to);
+    }
+
+    public RowBands(int parallelism) {
+        if (parallelism < 1)
+            throw new IllegalArgumentException("Parallelism must be at least 1: " + parallelism);
+
+        this.parallelism = parallelism;
+        this.pool = new ForkJoinPool(parallelism);
+    }
+
+    /**
+     * Runs {@code task} over rows {@code [from, to)} and returns when every band is done.
+     */
+    public void forEach(int from, int to, Task task) {
+        forEach(from, to, Math.max(MIN_ROWS_PER_BAND, (to - from) / (parallelism * BANDS_PER_THREAD)), task);
+    }
+
+    /**
+     * Runs {@code task} over rows {@code [from, to)} in bands of at most {@code grain} rows, e.g. 1 for ranges of
+     * large work items such as tiles, and returns when every band is done.
+     */
+    public void forEach(int from, int to, int grain, Task task) {
+        if (grain < 1)
+            throw new IllegalArgumentException("Grain must be at least 1: " + grain);
+
+        int rows = to - from;
+        if (rows <= grain) {
+            task.run(from, to);
+            return;
+        }
+
+        pool.invoke(new BandAction(task, from, to, grain));
+    }
+
+    /**
+     * Runs {@code task} over rows {@code [from, to)} and returns the sum of what the bands returned.
+     */
+    public double sum(int from, int to, SumTask task) {
+        int rows = to - from;
+        int grain = Math.max(MIN_ROWS_PER_BAND, rows / (parallelism * BANDS_PER_THREAD));
+
+        if (rows <= grain) return task.run(from, to);
+
+        return pool.invoke(new SumAction(task, from, to, grain));
+    }
+
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    public void shutdown() {
+        pool.shutdown();
+    }
+
+    private static class BandAction extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final Task task;
+        private final int from;
+        private final int to;
+        private final int grain;
+
+        BandAction(Task task, int from, int to, int grain) {
+            this.task = task;
+            this.from = from;
+            this.to = to;
+            this.grain = grain;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= grain) {
+                task.run(from, to);
+                return;
+            }
+
+            int mid = (from + to) >>> 1;
+            invokeAll(new BandAction(task, from, mid, grain), new BandAction(task, mid, to, grain));
+        }
+    }
+
+    private static class SumAction extends RecursiveTask<Double> {
+        private static final long serialVersionUID = 1L;
+
+        private final SumTask task;
+        private final int from;
+        private final int to;
+        private final int grain;
+
+        SumAction(SumTask task, int from, int to, int grain) {
+            this.task = task;
+            this.from = from;
+            this.to = to;
+            this.grain = grain;
+        }
+
+        @Override
+        protected Double compute() {
+            if (to - from <= grain) return task.run(from, to);
+
+            int mid = (from + to) >>> 1;
+            SumAction left = new SumAction(task, from, mid, grain);
+            left.fork();
+            double right = new SumAction(task, mid, to, grain).compute();
+            return left.join() + right;
+        }
+    }
+}
@@ -0,0 +1,56 @@
+package system;
+
+/**
+ * Plain loop implementation of {@link StencilKernels}. Used when the Vector API is not available.
+ */
+public class ScalarKernels implements StencilKernels {
+    @Override
+    public void jacobi(float[] dst, float[] src, float[] x0, float a, float invC, int from, int to, int stride) {
+        for (int idx = from; idx < to; idx++) {
+            float left = src[idx - 1];
+            float right = src[idx + 1];
+            float up = src[idx - stride];
+            float down = src[idx + stride];
+            dst[idx] = (x0[idx] + a * (left + right + up + down)) * invC;
+        }
+    }
+
+    @Override
+    public void redBlack(float[] x, float[] x0, float a, float invC, int from, int to, int stride) {
+        for (int idx = from; idx < to; idx += 2) {
+            float left = x[idx - 1];
+            float right = x[idx + 1];
+            float up = x[idx - stride];
+            float down = x[idx + stride];
+            x[idx] = (x0[idx] + a * (left + right + up + down)) * invC;
+        }
+    }
+
+    @Override
+    public void residual(float[] r, float[] x, float[] b, float a, float c, int from, int to, int stride) {
+        for (int idx = from; idx < to; idx++) {
+            float neighbours = x[idx - 1] + x[idx + 1] + x[idx - stride] + x[idx + stride];
+            r[idx] = b[idx] - (c * x[idx] - a * neighbours);
+        }
+    }
+
+    @Override
+    public void divergence(float[] div, float[] u, float[] v, float scale, int from, int to, int stride) {
+        for (int idx = from; idx < to; idx++) {
+            div[idx] = scale * (u[idx + 1] - u[idx - 1] + v[idx + stride] - v[idx - stride]);
+        }
+    }
+
+    @Override
+    public void subtractGradient(float[] u, float[] v, float[] p, float scale, int from, int to, int stride) {
+        for (int idx = from; idx < to; idx++) {
+            u[idx] -= scale * (p[idx + 1] - p[idx - 1]);
+            v[idx] -= scale * (p[idx + stride] - p[idx - stride]);
+        }
+    }
+
+    @Override
+    public String getName() {
+        return "scalar";
+    }
+}
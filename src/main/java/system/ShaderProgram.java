@@ -81,6 +81,16 @@ public class ShaderProgram {
         glUniform2f(getUniformLocation(name), value1, value2);
     }
 
+    public void setUniform(String name, int value) {
+        // Remember to use the program before setting uniforms
+        glUniform1i(getUniformLocation(name), value);
+    }
+
+    public void setUniform(String name, boolean value) {
+        // Remember to use the program before setting uniforms
+        glUniform1i(getUniformLocation(name), value ? 1 : 0);
+    }
+
     public static ShaderProgram createComputeProgramFromFile(String file) {
         ShaderProgram computeProgram = new ShaderProgram(true);
         Shader shader = Shader.createFromFile(file, GL_COMPUTE_SHADER);
@@ -0,0 +1,81 @@
+package system;
+
+/**
+ * Iterations and final residuals of one kind of linear solve (pressure or diffusion) during the last solver step.
+ * <br>
+ * Iterations are summed over the solves of the step. The residual is the largest final relative residual
+ * {@code |b - Ax| / |b|} among them, or {@code NaN} if a solver that does not measure it was used. Solves that hit
+ * their iteration limit before reaching their tolerance are counted as capped, and fixed-count solves of the OpenGL
+ * engine that stopped early because the residual met the tolerance are counted as early exits, along with how many of
+ * those went by the residual of the previous solve instead of their own.
+ */
+public class SolveStats {
+    private int solves;
+    private int iterations;
+    private float residual;
+    private int cappedSolves;
+    private int earlyExits;
+    private int laggedExits;
+
+    void reset() {
+        solves = 0;
+        iterations = 0;
+        residual = 0;
+        cappedSolves = 0;
+        earlyExits = 0;
+        laggedExits = 0;
+    }
+
+    void record(int iterations, float residual) {
+        record(iterations, residual, false);
+    }
+
+    void record(int iterations, float residual, boolean capped) {
+        solves++;
+        if (capped) cappedSolves++;
+        this.iterations += iterations;
+        this.residual = Math.max(this.residual, residual);
+    }
+
+    void recordEarlyExit(boolean lagged) {
+        earlyExits++;
+        if (lagged) laggedExits++;
+    }
+
+    public int getSolves() {
+        return solves;
+    }
+
+    public int getIterations() {
+        return iterations;
+    }
+
+    public float getResidual() {
+        return residual;
+    }
+
+    /**
+     * The number of solves that stopped at their iteration limit with the residual still above the tolerance.
+     */
+    public int getCappedSolves() {
+        return cappedSolves;
+    }
+
+    public int getEarlyExits() {
+        return earlyExits;
+    }
+
+    /**
+     * The early exits that stopped where the previous solve of the same equation met the tolerance.
+     */
+    public int getLaggedExits() {
+        return laggedExits;
+    }
+
+    @Override
+    public String toString() {
+        String text = solves + " solves, " + iterations + " iterations, residual " + residual;
+        if (earlyExits > 0) text += ", " + earlyExits + " stopped early (" + laggedExits + " on the previous residual)";
+        return cappedSolves == 0 ? text : text + ", " + cappedSolves + " hit the iteration limit";
+    }
+}
@@ -0,0 +1,83 @@
+package system;
+
+import java.nio.FloatBuffer;
+
+/**
+ * The user input of one frame as a list of splats, in the std430 layout of the {@code Splat} struct of splat.glsl.
+ * <br>
+ * A splat sets the density and velocity sources of a square of cells. Each one takes {@link #FLOATS_PER_SPLAT}
+ * floats: position x and y, radius, density, velocity x and y, and 2 floats of padding.
+ */
+public class SplatBatch {
+    public static final int FLOATS_PER_SPLAT = 8;
+
+    private final float[] data;
+    private final int capacity;
+    private int size;
+    private int dropped;
+
+    public SplatBatch(int capacity) {
+        this.capacity = capacity;
+        this.data = new float[capacity * FLOATS_PER_SPLAT];
+    }
+
+    /**
+     * Adds a splat centered on cell {@code (x, y)} that covers the cells at most {@code radius} away on both axes.
+     * When the batch is full the splat is dropped.
+     *
+     * @return Whether the splat was added.
+     */
+    public boolean add(float x, float y, int radius, float density, float velocityX, float velocityY) {
+        if (size == capacity) {
+            dropped++;
+            return false;
+        }
+
+        int offset = size * FLOATS_PER_SPLAT;
+        data[offset] = x;
+        data[offset + 1] = y;
+        data[offset + 2] = radius;
+        data[offset + 3] = density;
+        data[offset + 4] = velocityX;
+        data[offset + 5] = velocityY;
+        size++;
+        return true;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * The largest radius in the batch, which sets the size of the splat dispatch.
+     */
+    public int getMaxRadius() {
+        int maxRadius = 0;
+        for (int i = 0; i < size; i++)
+            maxRadius = Math.max(maxRadius, (int) data[i * FLOATS_PER_SPLAT + 2]);
+        return maxRadius;
+    }
+
+    /**
+     * The number of splats dropped because the batch was full, since it was created.
+     */
+    public int getDroppedCount() {
+        return dropped;
+    }
+
+    /**
+     * Copies the splats into {@code buffer} from its position and flips it.
+     */
+    public void pack(FloatBuffer buffer) {
+        buffer.put(data, 0, size * FLOATS_PER_SPLAT);
+        buffer.flip();
+    }
+
+    public void clear() {
+        size = 0;
+    }
+}
@@ -0,0 +1,53 @@
+package system;
+
+/**
+ * The inner loops of the CPU solver's stencil passes. Every kernel works on one run of cells inside a single row of a
+ * row-major field, given as the flat index range {@code [from, to)}; {@code stride} is the distance between rows.
+ * <br>
+ * Use {@link #create()} to get the fastest implementation available in the running JVM.
+ */
+public interface StencilKernels {
+    /**
+     * {@code dst = (x0 + a * (sum of the 4 neighbours of src)) * invC}
+     */
+    void jacobi(float[] dst, float[] src, float[] x0, float a, float invC, int from, int to, int stride);
+
+    /**
+     * The same update as {@link #jacobi}, done in place on every second cell {@code from, from + 2, ...}.
+     */
+    void redBlack(float[] x, float[] x0, float a, float invC, int from, int to, int stride);
+
+    /**
+     * {@code r = b - (c * x - a * (sum of the 4 neighbours of x))}
+     */
+    void residual(float[] r, float[] x, float[] b, float a, float c, int from, int to, int stride);
+
+    /**
+     * {@code div = scale * (central difference of u along x + central difference of v along y)}
+     */
+    void divergence(float[] div, float[] u, float[] v, float scale, int from, int to, int stride);
+
+    /**
+     * {@code u -= scale * (central difference of p along x)} and {@code v -= scale * (central difference of p along y)}
+     */
+    void subtractGradient(float[] u, float[] v, float[] p, float scale, int from, int to, int stride);
+
+    String getName();
+
+    /**
+     * Returns {@link VectorKernels} if the {@code jdk.incubator.vector} module is present, or {@link ScalarKernels}
+     * otherwise.
+     */
+    static StencilKernels create() {
+        if (ModuleLayer.boot().findModule("jdk.incubator.vector").isPresent()) {
+            try {
+                // Loaded reflectively so that the scalar path never touches the incubator classes.
+                return (StencilKernels) Class.forName("system.VectorKernels").getDeclaredConstructor().newInstance();
+            } catch (ReflectiveOperationException | LinkageError e) {
+                System.err.println("Could not load vector kernels, falling back to scalar: " + e);
+            }
+        }
+
+        return new ScalarKernels();
+    }
+}
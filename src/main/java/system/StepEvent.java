@@ -0,0 +1,65 @@
+package system;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * A Flight Recorder event spanning one solver step, from consuming the sources to the last projection.
+ * <br>
+ * Record it with e.g. {@code -XX:StartFlightRecording=filename=fluid.jfr}. Its {@link PhaseEvent}s fall within its
+ * duration on the same thread.
+ */
+@Name("fluid.Step")
+@Label("Solver Step")
+@Category("Fluid Simulation")
+@Description("One step of the fluid solver")
+@StackTrace(false)
+public class StepEvent extends jdk.jfr.Event {
+    @Label("Step")
+    long step;
+
+    @Label("Grid Width")
+    @Description("Number of inner cells along x")
+    int gridWidth;
+
+    @Label("Grid Height")
+    @Description("Number of inner cells along y")
+    int gridHeight;
+
+    @Label("Time Step")
+    @Description("Time step in seconds")
+    float deltaTime;
+
+    @Label("Pressure Iterations")
+    int pressureIterations;
+
+    @Label("Diffusion Iterations")
+    int diffusionIterations;
+
+    @Label("Pressure Residual")
+    @Description("Largest final relative residual of the pressure solves, NaN if not measured")
+    float pressureResidual;
+
+    public StepEvent(long step, int gridWidth, int gridHeight, float deltaTime) {
+        this.step = step;
+        this.gridWidth = gridWidth;
+        this.gridHeight = gridHeight;
+        this.deltaTime = deltaTime;
+    }
+
+    /**
+     * Ends the event and commits it with the iterations of the step, if it is recorded.
+     */
+    public void end(SolveStats pressureStats, SolveStats diffusionStats) {
+        end();
+        if (!shouldCommit()) return;
+
+        pressureIterations = pressureStats.getIterations();
+        diffusionIterations = diffusionStats.getIterations();
+        pressureResidual = pressureStats.getResidual();
+        commit();
+    }
+}
@@ -9,10 +9,40 @@ import java.util.Set;
 import static org.lwjgl.opengl.GL43.*;
 
 public class Texture {
+    /**
+     * The size of the float components of a texture's texels.
+     */
+    public enum Precision {
+        /**
+         * 32 bit floats, e.g. {@code GL_R32F}.
+         */
+        FULL,
+        /**
+         * 16 bit floats, e.g. {@code GL_R16F}: half the memory and bandwidth, with about 3 significant digits and a
+         * largest value of 65504.
+         */
+        HALF;
+
+        /**
+         * The sized internal format of this precision for {@code format}, {@code GL_RED}, {@code GL_RG} or
+         * {@code GL_RGBA}.
+         */
+        public int internalFormat(int format) {
+            return switch (format) {
+                case GL_RED -> this == FULL ? GL_R32F : GL_R16F;
+                case GL_RG -> this == FULL ? GL_RG32F : GL_RG16F;
+                case GL_RGBA -> this == FULL ? GL_RGBA32F : GL_RGBA16F;
+                default -> throw new IllegalArgumentException("Unsupported format: " + format);
+            };
+        }
+    }
+
     private static final Set<Texture> TEXTURES_TO_CLEANUP = new HashSet<>();
+    private static final int UPLOAD_BUFFER_BYTES = 4 << 20;
+
+    private static PixelUploadRing uploadRing;
 
     private static MultiProgramManager clearProgramMgr;
-    private static ShaderProgram copyRGProgram;
     private final int textureId;
     private final int width;
     private final int height;
@@ -38,7 +68,10 @@ public class Texture {
         glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MIN_FILTER, GL_LINEAR);
         glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MAG_FILTER, GL_LINEAR);
 
-        putData(data);
+        // Immutable storage: its size and format can not change, so updates never have to reallocate or revalidate it.
+        glTexStorage2D(GL_TEXTURE_2D, 1, internalFormat, width, height);
+        if (data != null)
+            putData(data);
 
         if (autoCleanup) TEXTURES_TO_CLEANUP.add(this);
 
@@ -47,72 +80,112 @@ public class Texture {
 
     /**
      * Puts data into the texture.
-     * If data is null, an empty data is put.
+     * If data is null, the texture is cleared.
      * <br>
-     * The internal format and format is already set when the constructor is called.
+     * The storage and its internal format are fixed when the constructor is called; this only replaces the texels.
      * <br>
      * This method sets the texel data type to GL_UNSIGNED_BYTE.
      */
     public void putData(ByteBuffer data) {
-        glBindTexture(GL_TEXTURE_2D, textureId);
+        if (data == null) {
+            clearData();
+            return;
+        }
 
-        if (data == null)
-            glTexImage2D(GL_TEXTURE_2D, 0, internalFormat, width, height, 0, format, GL_UNSIGNED_BYTE, 0);
-        else
-            glTexImage2D(GL_TEXTURE_2D, 0, internalFormat, width, height, 0, format, GL_UNSIGNED_BYTE, data);
+        glBindTexture(GL_TEXTURE_2D, textureId);
+        glTexSubImage2D(GL_TEXTURE_2D, 0, 0, 0, width, height, format, GL_UNSIGNED_BYTE, data);
     }
 
 
     /**
      * Puts data into the texture.
-     * If data is null, an empty data is put.
+     * If data is null, the texture is cleared.
      * <br>
-     * The internal format and format is already set when the constructor is called.
+     * The storage and its internal format are fixed when the constructor is called; this only replaces the texels.
      * <br>
-     * This method sets the texel data type to GL_FLOAT.
+     * This method sets the texel data type to GL_FLOAT and streams the data like
+     * {@link #putSubData(int, int, int, int, FloatBuffer)}.
      */
     public void putData(FloatBuffer data) {
+        if (data == null) {
+            clearData();
+            return;
+        }
+
+        putSubData(0, 0, width, height, data);
+    }
+
+    /**
+     * Replaces the {@code w} by {@code h} texels starting at {@code (x, y)} with {@code data}, rows of {@code w} texels
+     * with x changing fastest. The position of {@code data} is not changed.
+     * <br>
+     * The data goes through the {@link PixelUploadRing} shared by all textures, so this returns once it is copied into
+     * a pixel unpack buffer, without waiting for the GPU. Rectangles larger than one buffer of the ring are uploaded in
+     * bands of rows.
+     */
+    public void putSubData(int x, int y, int w, int h, FloatBuffer data) {
+        if (x < 0 || y < 0 || w < 0 || h < 0 || x + w > width || y + h > height)
+            throw new IllegalArgumentException("Rectangle " + w + "x" + h + " at (" + x + ", " + y +
+                    ") is outside the " + width + "x" + height + " texture");
+
+        int rowFloats = w * componentCount();
+        if (data.remaining() < rowFloats * h)
+            throw new IllegalArgumentException("Expected " + rowFloats * h + " floats, got " + data.remaining());
+        if (rowFloats == 0 || h == 0) return;
+
+        if (uploadRing == null) uploadRing = new PixelUploadRing(UPLOAD_BUFFER_BYTES);
+        if (rowFloats * Float.BYTES > uploadRing.getSlotBytes())
+            throw new IllegalArgumentException("A row of " + w + " texels does not fit in the upload buffer");
+        int bandRows = uploadRing.getSlotBytes() / (rowFloats * Float.BYTES);
+
         glBindTexture(GL_TEXTURE_2D, textureId);
+        glPixelStorei(GL_UNPACK_ALIGNMENT, 4);
+        for (int row = 0; row < h; row += bandRows) {
+            int rows = Math.min(bandRows, h - row);
+            int start = data.position() + row * rowFloats;
+
+            uploadRing.stage(data.slice(start, rows * rowFloats));
+            glTexSubImage2D(GL_TEXTURE_2D, 0, x, y + row, w, rows, format, GL_FLOAT, 0);
+            uploadRing.finish();
+        }
+    }
 
-        if (data == null)
-            glTexImage2D(GL_TEXTURE_2D, 0, internalFormat, width, height, 0, format, GL_FLOAT, 0);
-        else
-            glTexImage2D(GL_TEXTURE_2D, 0, internalFormat, width, height, 0, format, GL_FLOAT, data);
+    /**
+     * Reads channel {@code format} (e.g. {@code GL_RED} or {@code GL_GREEN}) of every texel into {@code data} as
+     * floats. Waits for earlier shader writes to the texture.
+     */
+    public void getData(int format, FloatBuffer data) {
+        glMemoryBarrier(GL_TEXTURE_UPDATE_BARRIER_BIT);
+        glBindTexture(GL_TEXTURE_2D, textureId);
+        glGetTexImage(GL_TEXTURE_2D, 0, format, GL_FLOAT, data);
     }
 
     /**
      * Clears the texture data using a compute shader.
      */
     public void clearData() {
-        ShaderProgram program;
-        if (format == GL_RG) {
-            program = clearProgramMgr.getProgramRG();
-        } else if (format == GL_RED) {
-            program = clearProgramMgr.getProgramR();
-        } else if (format == GL_RGB) {
-            program = clearProgramMgr.getProgramRGBA();
-        } else {
-            throw new IllegalArgumentException("Unsupported format: " + format);
-        }
-
+        ShaderProgram program = clearProgramMgr.getProgram(this);
         program.use();
         bindToImageUnit(0, GL_WRITE_ONLY);
         glDispatchCompute(numGroupX, numGroupY, 1);
         glMemoryBarrier(GL_SHADER_IMAGE_ACCESS_BARRIER_BIT);
     }
 
+    /**
+     * Copies every texel of {@code texture}, which must have the same internal format and size, with a GPU-side
+     * image copy. Waits for earlier shader writes to {@code texture}.
+     */
     public void copyFrom(Texture texture) {
-        if (this.format != texture.format)
-            throw new IllegalArgumentException("Texture formats do not match: " + this.format + " != " + texture.format);
-
-        if(this.format == GL_RG) {
-            copyRGProgram.use();
-            texture.bindToUnit(0);
-            bindToImageUnit(0, GL_WRITE_ONLY);
-            glDispatchCompute(numGroupX, numGroupY, 1);
-            glMemoryBarrier(GL_SHADER_IMAGE_ACCESS_BARRIER_BIT);
-        } else
-            throw new IllegalArgumentException("Not supported copying format: " + this.format);
+        if (this.internalFormat != texture.internalFormat)
+            throw new IllegalArgumentException("Texture formats do not match: " + this.internalFormat + " != " +
+                    texture.internalFormat);
+        if (this.width != texture.width || this.height != texture.height)
+            throw new IllegalArgumentException("Texture sizes do not match: " + this.width + "x" + this.height +
+                    " != " + texture.width + "x" + texture.height);
+
+        glMemoryBarrier(GL_TEXTURE_UPDATE_BARRIER_BIT);
+        glCopyImageSubData(texture.textureId, GL_TEXTURE_2D, 0, 0, 0, 0,
+                textureId, GL_TEXTURE_2D, 0, 0, 0, 0, width, height, 1);
     }
 
     public void bindToUnit(int unit) {
@@ -136,17 +209,32 @@ public class Texture {
         return format;
     }
 
+    public int getInternalFormat() {
+        return internalFormat;
+    }
+
+    private int componentCount() {
+        return switch (format) {
+            case GL_RED, GL_GREEN, GL_BLUE, GL_ALPHA -> 1;
+            case GL_RG -> 2;
+            case GL_RGB -> 3;
+            case GL_RGBA -> 4;
+            default -> throw new IllegalArgumentException("Unsupported format: " + format);
+        };
+    }
+
     public static void cleanupAll() {
         System.out.println("Cleaning up " + TEXTURES_TO_CLEANUP.size() + " textures");
         for (Texture texture : TEXTURES_TO_CLEANUP)
             texture.cleanup();
 
         TEXTURES_TO_CLEANUP.clear();
+        // Its buffers are deleted with the other buffer objects.
+        uploadRing = null;
     }
 
     public static void initPrograms() {
         var flag = EnumSet.of(MultiProgramManager.Formats.R, MultiProgramManager.Formats.RG, MultiProgramManager.Formats.RGBA);
         clearProgramMgr = new MultiProgramManager("shaders/clear.glsl", flag);
-        copyRGProgram = ShaderProgram.createComputeProgramFromFile("shaders/copyRG.glsl");
     }
 }
\ No newline at end of file
@@ -0,0 +1,247 @@
+package system;
+
+/**
+ * Jacobi relaxation with temporal blocking: the grid is cut into tiles that fit in the cache together with their halo,
+ * and every tile runs several iterations before the next tile is touched. A plain sweep streams the whole grid through
+ * memory once per iteration, so on grids larger than the cache this trades memory traffic for some redundant work.
+ * <br>
+ * The tiles overlap. To advance a tile by {@code k} iterations, it is copied into a private buffer with a halo of
+ * {@code k} cells on every side, and each iteration updates one cell less of the halo, so after {@code k} iterations
+ * the tile itself holds exactly what {@code k} global sweeps would have produced. Walls are mirrored inside the
+ * buffer after every iteration, like {@link CpuSolver#setBound} does between global sweeps, so the result is bit for
+ * bit the same as {@link CpuSolver.Relaxation#JACOBI}. Tiles only read the previous block's field and write another
+ * one, so they can run on any thread in any order.
+ * <br>
+ * The tile size is picked so that the three buffers of a tile (solution, next solution and right-hand side) fit in the
+ * cache budget, and tiles grow along the other axis when the grid is narrower than a square tile.
+ */
+public class TiledJacobi {
+    public static final int DEFAULT_CACHE_BYTES = 1 << 20;
+    /**
+     * Half of the default iteration count of {@link CpuSolver}, so a solve is two blocks without a final copy.
+     */
+    public static final int DEFAULT_ITERATIONS_PER_TILE = 10;
+    private static final int BUFFERS_PER_TILE = 3;
+    private static final int MIN_TILE_SIZE = 8;
+
+    private final int nX;
+    private final int nY;
+    private final int stride;
+    private final ThreadLocal<TileBuffers> buffers = ThreadLocal.withInitial(TileBuffers::new);
+
+    private int cacheBytes = DEFAULT_CACHE_BYTES;
+    private int iterationsPerTile = DEFAULT_ITERATIONS_PER_TILE;
+    private int tileWidth;
+    private int tileHeight;
+    private int tilesX;
+    private int tilesY;
+
+    // The block being relaxed.
+    private float[] src;
+    private float[] dst;
+    private float[] x0;
+    private float a;
+    private float invC;
+    private int bound;
+    private int iterations;
+    private StencilKernels kernels;
+
+    public TiledJacobi(int nX, int nY) {
+        this.nX = nX;
+        this.nY = nY;
+        this.stride = nX + 2;
+        updateTiles();
+    }
+
+    /**
+     * Relaxes {@code c * x - a * (sum of the 4 neighbours of x) = x0} for {@code iterations} Jacobi iterations,
+     * ping-ponging between {@code x} and {@code scratch} once per block of {@link #getIterationsPerTile()} iterations.
+     * The result ends up in {@code x}, with its boundary set.
+     */
+    public void relax(float[] x, float[] x0, float[] scratch, float a, float invC, int bound, int iterations,
+                      StencilKernels kernels, RowBands bands) {
+        this.x0 = x0;
+        this.a = a;
+        this.invC = invC;
+        this.bound = bound;
+        this.kernels = kernels;
+
+        src = x;
+        dst = scratch;
+        for (int done = 0; done < iterations; done += this.iterations) {
+            this.iterations = Math.min(iterationsPerTile, iterations - done);
+
+            int tiles = tilesX * tilesY;
+            if (bands == null)
+                tileRange(0, tiles);
+            else
+                // A tile is thousands of cells, so each one may go to its own thread.
+                bands.forEach(0, tiles, 1, this::tileRange);
+            CpuSolver.setBound(bound, dst, nX, nY, stride);
+
+            float[] temp = src;
+            src = dst;
+            dst = temp;
+        }
+
+        // An odd number of blocks leaves the result in the scratch buffer.
+        if (src != x) System.arraycopy(src, 0, x, 0, x.length);
+
+        this.src = null;
+        this.dst = null;
+        this.x0 = null;
+    }
+
+    /**
+     * Sets how many bytes the buffers of one tile may take, typically the per-core L2 cache, and picks the tile size
+     * again.
+     */
+    public void setCacheBytes(int cacheBytes) {
+        if (cacheBytes < 1)
+            throw new IllegalArgumentException("Cache budget must be positive: " + cacheBytes);
+
+        this.cacheBytes = cacheBytes;
+        updateTiles();
+    }
+
+    public int getCacheBytes() {
+        return cacheBytes;
+    }
+
+    /**
+     * Sets how many iterations a tile runs before the next tile, which is also the width of its halo.
+     */
+    public void setIterationsPerTile(int iterationsPerTile) {
+        if (iterationsPerTile < 1)
+            throw new IllegalArgumentException("Iterations per tile must be at least 1: " + iterationsPerTile);
+
+        this.iterationsPerTile = iterationsPerTile;
+        updateTiles();
+    }
+
+    public int getIterationsPerTile() {
+        return iterationsPerTile;
+    }
+
+    public int getTileWidth() {
+        return tileWidth;
+    }
+
+    public int getTileHeight() {
+        return tileHeight;
+    }
+
+    @Override
+    public String toString() {
+        return "Tiles: " + tileWidth + "x" + tileHeight + " cells, " + iterationsPerTile + " iterations per tile, " +
+                (cacheBytes >> 10) + " KiB cache budget";
+    }
+
+    private void updateTiles() {
+        int padding = 2 * iterationsPerTile + 2;
+        int floats = cacheBytes / (BUFFERS_PER_TILE * Float.BYTES);
+        int side = Math.max(MIN_TILE_SIZE, (int) Math.sqrt(floats) - padding);
+
+        tileWidth = Math.min(nX, side);
+        tileHeight = Math.min(nY, Math.max(MIN_TILE_SIZE, floats / (tileWidth + padding) - padding));
+        tilesX = (nX + tileWidth - 1) / tileWidth;
+        tilesY = (nY + tileHeight - 1) / tileHeight;
+    }
+
+    private void tileRange(int from, int to) {
+        TileBuffers tile = buffers.get();
+        for (int t = from; t < to; t++) {
+            int i0 = 1 + (t % tilesX) * tileWidth;
+            int j0 = 1 + (t / tilesX) * tileHeight;
+            relaxTile(tile, i0, Math.min(nX + 1, i0 + tileWidth), j0, Math.min(nY + 1, j0 + tileHeight));
+        }
+    }
+
+    /**
+     * Advances the inner cells {@code [i0, i1) x [j0, j1)} by {@link #iterations} iterations from {@link #src} into
+     * {@link #dst}.
+     */
+    private void relaxTile(TileBuffers tile, int i0, int i1, int j0, int j1) {
+        int k = iterations;
+
+        // The tile and its halo, clipped to the field including its boundary cells.
+        int li0 = Math.max(0, i0 - k);
+        int li1 = Math.min(nX + 2, i1 + k);
+        int lj0 = Math.max(0, j0 - k);
+        int lj1 = Math.min(nY + 2, j1 + k);
+        int localStride = li1 - li0;
+        tile.ensureCapacity(localStride * (lj1 - lj0));
+
+        float[] current = tile.current;
+        float[] next = tile.next;
+        float[] rhs = tile.rhs;
+        for (int j = lj0; j < lj1; j++) {
+            int global = li0 + j * stride;
+            int local = (j - lj0) * localStride;
+            System.arraycopy(src, global, current, local, localStride);
+            System.arraycopy(x0, global, rhs, local, localStride);
+        }
+
+        for (int m = 1; m <= k; m++) {
+            // The cells that are still exact after m iterations, clipped to the inner cells.
+            int ri0 = Math.max(1, i0 - (k - m));
+            int ri1 = Math.min(nX + 1, i1 + (k - m));
+            int rj0 = Math.max(1, j0 - (k - m));
+            int rj1 = Math.min(nY + 1, j1 + (k - m));
+
+            for (int j = rj0; j < rj1; j++) {
+                int row = (j - lj0) * localStride - li0;
+                kernels.jacobi(next, current, rhs, a, invC, row + ri0, row + ri1, localStride);
+            }
+            mirrorWalls(next, ri0, ri1, rj0, rj1, li0, lj0, localStride);
+
+            float[] temp = current;
+            current = next;
+            next = temp;
+        }
+        tile.current = current;
+        tile.next = next;
+
+        for (int j = j0; j < j1; j++)
+            System.arraycopy(current, (j - lj0) * localStride + i0 - li0, dst, i0 + j * stride, i1 - i0);
+    }
+
+    /**
+     * Sets the wall cells next to the updated region {@code [ri0, ri1) x [rj0, rj1)} like {@link CpuSolver#setBound},
+     * for the walls the region touches. The corners are never read by the stencil, so they are left alone.
+     */
+    private void mirrorWalls(float[] arr, int ri0, int ri1, int rj0, int rj1, int li0, int lj0, int localStride) {
+        float signX = bound == 1 ? -1 : 1;
+        float signY = bound == 2 ? -1 : 1;
+
+        for (int j = rj0; j < rj1; j++) {
+            int row = (j - lj0) * localStride - li0;
+            if (ri0 == 1) arr[row] = signX * arr[row + 1];
+            if (ri1 == nX + 1) arr[row + nX + 1] = signX * arr[row + nX];
+        }
+        if (rj0 == 1) {
+            int row = (0 - lj0) * localStride - li0;
+            for (int i = ri0; i < ri1; i++)
+                arr[row + i] = signY * arr[row + localStride + i];
+        }
+        if (rj1 == nY + 1) {
+            int row = (nY + 1 - lj0) * localStride - li0;
+            for (int i = ri0; i < ri1; i++)
+                arr[row + i] = signY * arr[row - localStride + i];
+        }
+    }
+
+    private static class TileBuffers {
+        float[] current = new float[0];
+        float[] next = new float[0];
+        float[] rhs = new float[0];
+
+        void ensureCapacity(int size) {
+            if (current.length >= size) return;
+
+            current = new float[size];
+            next = new float[size];
+            rhs = new float[size];
+        }
+    }
+}
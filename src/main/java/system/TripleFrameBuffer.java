@@ -0,0 +1,52 @@
+package system;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Hands the latest complete {@link FieldFrame} from the thread that steps a {@link CpuSolver} to a thread that renders
+ * it, without locks and without either side ever waiting.
+ * <br>
+ * Of the three frames, the producer owns the back frame and the consumer the front frame. The third one is shared
+ * through a single {@link AtomicInteger} holding its index and a fresh bit. {@link #publish(CpuSolver)} fills the back
+ * frame and swaps it with the shared one, marking it fresh. {@link #acquire()} swaps the shared frame with the front
+ * frame only if it is fresh. Each side only ever touches the frame it owns, so no frame is read while it is written.
+ * <br>
+ * A consumer slower than the producer skips frames and always gets the latest one. A faster consumer gets the same
+ * frame again.
+ */
+public class TripleFrameBuffer {
+    private static final int INDEX_MASK = 0b11;
+    private static final int FRESH = 0b100;
+
+    private final FieldFrame[] frames = new FieldFrame[3];
+    private final AtomicInteger shared = new AtomicInteger(1);
+
+    // Owned by the producer and the consumer.
+    private int back = 0;
+    private int front = 2;
+
+    public TripleFrameBuffer(int nX, int nY) {
+        for (int i = 0; i < frames.length; i++)
+            frames[i] = new FieldFrame(nX, nY);
+    }
+
+    /**
+     * Copies the current fields of {@code solver} into the back frame and publishes it. Must only be called from the
+     * producer thread, between two steps.
+     */
+    public void publish(CpuSolver solver) {
+        frames[back].copyFrom(solver);
+        // The volatile write orders the copy before the consumer's swap.
+        back = shared.getAndSet(back | FRESH) & INDEX_MASK;
+    }
+
+    /**
+     * The most recently published frame. It stays valid and unchanged until the next call. Must only be called from
+     * the consumer thread. Before the first {@link #publish(CpuSolver)} the frame is empty.
+     */
+    public FieldFrame acquire() {
+        if ((shared.get() & FRESH) != 0)
+            front = shared.getAndSet(front) & INDEX_MASK;
+        return frames[front];
+    }
+}
@@ -0,0 +1,108 @@
+package system;
+
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * {@link StencilKernels} on {@link FloatVector} lanes of the preferred species (8 lanes on AVX2, 16 on AVX-512).
+ * The neighbours of a run of cells are just the same run shifted by 1 or {@code stride}, so every operand is a plain
+ * unaligned vector load. Cells left over at the end of a run are handled by {@link ScalarKernels}.
+ * <br>
+ * Requires {@code --add-modules jdk.incubator.vector}. Do not reference this class directly, use
+ * {@link StencilKernels#create()}.
+ */
+public class VectorKernels implements StencilKernels {
+    private static final VectorSpecies<Float> SPECIES = FloatVector.SPECIES_PREFERRED;
+    private static final int LANES = SPECIES.length();
+
+    /**
+     * Lanes 0, 2, 4, ... set. Since {@link #LANES} is even, every vector of a red-black run starts on the same color.
+     */
+    private static final VectorMask<Float> EVEN_LANES = VectorMask.fromLong(SPECIES, 0x5555_5555_5555_5555L);
+
+    private final ScalarKernels tail = new ScalarKernels();
+
+    @Override
+    public void jacobi(float[] dst, float[] src, float[] x0, float a, float invC, int from, int to, int stride) {
+        int idx = from;
+        for (; idx <= to - LANES; idx += LANES) {
+            FloatVector left = FloatVector.fromArray(SPECIES, src, idx - 1);
+            FloatVector right = FloatVector.fromArray(SPECIES, src, idx + 1);
+            FloatVector up = FloatVector.fromArray(SPECIES, src, idx - stride);
+            FloatVector down = FloatVector.fromArray(SPECIES, src, idx + stride);
+            FloatVector b = FloatVector.fromArray(SPECIES, x0, idx);
+
+            left.add(right).add(up).add(down).mul(a).add(b).mul(invC).intoArray(dst, idx);
+        }
+        tail.jacobi(dst, src, x0, a, invC, idx, to, stride);
+    }
+
+    @Override
+    public void redBlack(float[] x, float[] x0, float a, float invC, int from, int to, int stride) {
+        int idx = from;
+        for (; idx <= to - LANES; idx += LANES) {
+            FloatVector center = FloatVector.fromArray(SPECIES, x, idx);
+            FloatVector left = FloatVector.fromArray(SPECIES, x, idx - 1);
+            FloatVector right = FloatVector.fromArray(SPECIES, x, idx + 1);
+            FloatVector up = FloatVector.fromArray(SPECIES, x, idx - stride);
+            FloatVector down = FloatVector.fromArray(SPECIES, x, idx + stride);
+            FloatVector b = FloatVector.fromArray(SPECIES, x0, idx);
+
+            // Odd lanes hold the other color and are written back unchanged.
+            FloatVector updated = left.add(right).add(up).add(down).mul(a).add(b).mul(invC);
+            center.blend(updated, EVEN_LANES).intoArray(x, idx);
+        }
+        tail.redBlack(x, x0, a, invC, idx, to, stride);
+    }
+
+    @Override
+    public void residual(float[] r, float[] x, float[] b, float a, float c, int from, int to, int stride) {
+        int idx = from;
+        for (; idx <= to - LANES; idx += LANES) {
+            FloatVector center = FloatVector.fromArray(SPECIES, x, idx);
+            FloatVector left = FloatVector.fromArray(SPECIES, x, idx - 1);
+            FloatVector right = FloatVector.fromArray(SPECIES, x, idx + 1);
+            FloatVector up = FloatVector.fromArray(SPECIES, x, idx - stride);
+            FloatVector down = FloatVector.fromArray(SPECIES, x, idx + stride);
+            FloatVector neighbours = left.add(right).add(up).add(down);
+
+            FloatVector.fromArray(SPECIES, b, idx).sub(center.mul(c).sub(neighbours.mul(a))).intoArray(r, idx);
+        }
+        tail.residual(r, x, b, a, c, idx, to, stride);
+    }
+
+    @Override
+    public void divergence(float[] div, float[] u, float[] v, float scale, int from, int to, int stride) {
+        int idx = from;
+        for (; idx <= to - LANES; idx += LANES) {
+            FloatVector uRight = FloatVector.fromArray(SPECIES, u, idx + 1);
+            FloatVector uLeft = FloatVector.fromArray(SPECIES, u, idx - 1);
+            FloatVector vDown = FloatVector.fromArray(SPECIES, v, idx + stride);
+            FloatVector vUp = FloatVector.fromArray(SPECIES, v, idx - stride);
+
+            uRight.sub(uLeft).add(vDown).sub(vUp).mul(scale).intoArray(div, idx);
+        }
+        tail.divergence(div, u, v, scale, idx, to, stride);
+    }
+
+    @Override
+    public void subtractGradient(float[] u, float[] v, float[] p, float scale, int from, int to, int stride) {
+        int idx = from;
+        for (; idx <= to - LANES; idx += LANES) {
+            FloatVector pLeft = FloatVector.fromArray(SPECIES, p, idx - 1);
+            FloatVector pRight = FloatVector.fromArray(SPECIES, p, idx + 1);
+            FloatVector pUp = FloatVector.fromArray(SPECIES, p, idx - stride);
+            FloatVector pDown = FloatVector.fromArray(SPECIES, p, idx + stride);
+
+            FloatVector.fromArray(SPECIES, u, idx).sub(pRight.sub(pLeft).mul(scale)).intoArray(u, idx);
+            FloatVector.fromArray(SPECIES, v, idx).sub(pDown.sub(pUp).mul(scale)).intoArray(v, idx);
+        }
+        tail.subtractGradient(u, v, p, scale, idx, to, stride);
+    }
+
+    @Override
+    public String getName() {
+        return "vector (" + LANES + " lanes)";
+    }
+}
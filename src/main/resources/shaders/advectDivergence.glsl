@@ -0,0 +1,64 @@
+#version 430 core
+
+layout (local_size_x = 16, local_size_y = 16) in;
+
+layout (binding = 0) uniform sampler2D velocitySamp;
+layout (REPLACE_ME, binding = 0) uniform writeonly image2D velocityImg;
+layout (REPLACE_ME_1, binding = 1) uniform writeonly image2D divergenceImg;
+
+uniform float deltaTime0;
+uniform float h; // -0.5 / N
+
+// The work group's texels and a one texel halo.
+const uint TILE_SIZE_X = gl_WorkGroupSize.x + 2u;
+const uint TILE_SIZE_Y = gl_WorkGroupSize.y + 2u;
+shared vec2 tile[TILE_SIZE_Y][TILE_SIZE_X];
+
+vec2 advected(ivec2 pos) {
+    vec2 velocity = texelFetch(velocitySamp, pos, 0).xy;
+    vec2 backtraced = vec2(pos) + 0.5 - velocity * deltaTime0;
+    return texture(velocitySamp, backtraced / vec2(textureSize(velocitySamp, 0))).xy;
+}
+
+// The advected velocity with the bounds of setBound.glsl applied.
+vec2 bounded(ivec2 pos, ivec2 size) {
+    bvec4 edges = bvec4(pos.x == 0, pos.x == size.x - 1, pos.y == 0, pos.y == size.y - 1);
+    if ((edges.x || edges.y) && (edges.z || edges.w)) {
+        // A corner averages its two edge neighbours, which mirror the same interior texel with opposite signs.
+        return vec2(0.0);
+    } else if (edges.x || edges.y) {
+        vec2 velocity = advected(pos + ivec2(edges.x ? 1 : -1, 0));
+        return vec2(-velocity.x, velocity.y);
+    } else if (edges.z || edges.w) {
+        vec2 velocity = advected(pos + ivec2(0, edges.z ? 1 : -1));
+        return vec2(velocity.x, -velocity.y);
+    }
+    return advected(pos);
+}
+
+// advect.glsl for the velocity, setBound.glsl and divergence.glsl in one pass. Every work group advects its texels and
+// the halo around them into shared memory, so the divergence needs no second pass over the advected velocity.
+void main() {
+    ivec2 size = textureSize(velocitySamp, 0);
+    ivec2 tileOrigin = ivec2(gl_WorkGroupID.xy * gl_WorkGroupSize.xy) - 1;
+
+    uint groupSize = gl_WorkGroupSize.x * gl_WorkGroupSize.y;
+    for (uint i = gl_LocalInvocationIndex; i < TILE_SIZE_X * TILE_SIZE_Y; i += groupSize) {
+        ivec2 tilePos = ivec2(i % TILE_SIZE_X, i / TILE_SIZE_X);
+        ivec2 pos = tileOrigin + tilePos;
+        bool inside = all(greaterThanEqual(pos, ivec2(0))) && all(lessThan(pos, size));
+        tile[tilePos.y][tilePos.x] = inside ? bounded(pos, size) : vec2(0.0);
+    }
+    barrier();
+
+    ivec2 pos = ivec2(gl_GlobalInvocationID.xy);
+    ivec2 tilePos = ivec2(gl_LocalInvocationID.xy) + 1;
+
+    float vL = tile[tilePos.y][tilePos.x - 1].x;
+    float vR = tile[tilePos.y][tilePos.x + 1].x;
+    float vB = tile[tilePos.y - 1][tilePos.x].y;
+    float vT = tile[tilePos.y + 1][tilePos.x].y;
+
+    imageStore(velocityImg, pos, vec4(tile[tilePos.y][tilePos.x], 0.0, 0.0));
+    imageStore(divergenceImg, pos, vec4(h * (vR - vL + vT - vB), 0.0, 0.0, 0.0));
+}
@@ -0,0 +1,15 @@
+#version 430 core
+
+layout (local_size_x = 16, local_size_y = 16) in;
+
+layout (REPLACE_ME, binding = 0) uniform writeonly image2D densityImg;
+layout (REPLACE_ME_1, binding = 1) uniform writeonly image2D velocityImg;
+layout (REPLACE_ME_2, binding = 2) uniform writeonly image2D pressureImg;
+
+// clear.glsl for the density and velocity sources and the pressure in one pass.
+void main() {
+    ivec2 storePos = ivec2(gl_GlobalInvocationID.xy);
+    imageStore(densityImg, storePos, vec4(0.0));
+    imageStore(velocityImg, storePos, vec4(0.0));
+    imageStore(pressureImg, storePos, vec4(0.0));
+}
@@ -4,7 +4,13 @@ in vec2 texCoord;
 out vec4 fragColor;
 
 layout(binding = 0) uniform sampler2D texSampler;
+// The state before the last step, blended towards the current one by alpha.
+layout(binding = 1) uniform sampler2D previousSampler;
+
+uniform float alpha;
 
 void main() {
-    fragColor = texture(texSampler, texCoord) * 10.0;
-}
\ No newline at end of file
+    vec4 previous = texture(previousSampler, texCoord);
+    vec4 current = texture(texSampler, texCoord);
+    fragColor = mix(previous, current, alpha) * 10.0;
+}
@@ -0,0 +1,62 @@
+#version 430 core
+
+layout (local_size_x = 16, local_size_y = 16) in;
+
+layout (REPLACE_ME, binding = 0) uniform image2D img;
+layout (REPLACE_ME_1, binding = 1) uniform image2D sourceImg;
+layout (REPLACE_ME, binding = 2) uniform writeonly image2D resultImg;
+layout (binding = 0) uniform sampler2D samp;
+
+uniform float a;
+uniform float b;
+// On the first iteration: the right-hand side is img + deltaTime * sourceImg, written to sourceImg for the
+// iterations after it, which sample it through samp.
+uniform bool addSource;
+uniform float deltaTime;
+// Whether the boundary texels mirror their interior neighbour like setBound.glsl, with the normal velocity negated.
+uniform bool setBound;
+// Whether the new values are written to resultImg instead of img. The neighbours are then all from the previous
+// iteration, which makes this a plain Jacobi iteration.
+uniform bool pingPong;
+
+// jacobi.glsl with addSource.glsl folded into the first iteration and setBound.glsl into every iteration.
+void main() {
+    ivec2 storePos = ivec2(gl_GlobalInvocationID.xy);
+    ivec2 size = imageSize(img);
+
+    vec4 sampValue;
+    if (addSource) {
+        sampValue = imageLoad(img, storePos) + deltaTime * imageLoad(sourceImg, storePos);
+        imageStore(sourceImg, storePos, sampValue);
+    } else {
+        sampValue = texelFetch(samp, storePos, 0);
+    }
+
+    bvec4 edges = bvec4(storePos.x == 0, storePos.x == size.x - 1, storePos.y == 0, storePos.y == size.y - 1);
+    if (setBound && any(edges)) {
+        vec4 storeValue;
+        if ((edges.x || edges.y) && (edges.z || edges.w)) {
+            // A corner averages its two edge neighbours, which mirror the same interior texel with opposite signs.
+            storeValue = vec4(0.0);
+        } else if (edges.x || edges.y) {
+            storeValue = imageLoad(img, storePos + ivec2(edges.x ? 1 : -1, 0));
+            storeValue.x *= -1.0;
+        } else {
+            storeValue = imageLoad(img, storePos + ivec2(0, edges.z ? 1 : -1));
+            storeValue.y *= -1.0;
+        }
+        if (pingPong) imageStore(resultImg, storePos, storeValue);
+        else imageStore(img, storePos, storeValue);
+        return;
+    }
+
+    vec4 left   = imageLoad(img, storePos + ivec2(-1, 0));
+    vec4 right  = imageLoad(img, storePos + ivec2(1, 0));
+    vec4 down   = imageLoad(img, storePos + ivec2(0, -1));
+    vec4 up     = imageLoad(img, storePos + ivec2(0, 1));
+
+    vec4 newValue = (sampValue + a * (left + right + up + down)) * b;
+
+    if (pingPong) imageStore(resultImg, storePos, newValue);
+    else imageStore(img, storePos, newValue);
+}
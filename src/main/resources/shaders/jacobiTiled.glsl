@@ -0,0 +1,99 @@
+#version 430 core
+
+layout (local_size_x = 16, local_size_y = 16) in;
+
+// The most iterations one dispatch can run. Engine.MAX_JACOBI_ITERATIONS_PER_DISPATCH must match it.
+const int MAX_ITERATIONS = 8;
+// The work group's texels and a halo of one texel per iteration, plus one for the bounds.
+const int MAX_TILE_SIZE = int(gl_WorkGroupSize.x) + 2 * (MAX_ITERATIONS + 1);
+
+// Both images share one format: the solution and its scratch texture always have the same precision.
+layout (REPLACE_ME, binding = 0) uniform readonly image2D img;
+layout (REPLACE_ME, binding = 1) uniform writeonly image2D resultImg;
+layout (binding = 0) uniform sampler2D samp;
+
+uniform float a;
+uniform float b;
+uniform int iterations;
+// Whether the boundary texels mirror their interior neighbour after every iteration like setBound.glsl, with the
+// normal velocity negated.
+uniform bool setBound;
+
+// Only the first 2 channels are used, so R and RG images work alike. The values stay 32 bit between the iterations of
+// a dispatch, so a 16 bit image is rounded once per dispatch instead of once per iteration as with jacobi.glsl.
+shared vec2 values[2][MAX_TILE_SIZE][MAX_TILE_SIZE];
+shared vec2 rhs[MAX_TILE_SIZE][MAX_TILE_SIZE];
+
+bool isInside(ivec2 pos, ivec2 size) {
+    return all(greaterThanEqual(pos, ivec2(0))) && all(lessThan(pos, size));
+}
+
+// Runs several jacobi.glsl iterations per dispatch. Every work group loads its texels, a halo around them and the
+// right-hand side into shared memory, iterates there and writes only its own texels back, to another image. Each
+// iteration is valid on one texel less on every side of the tile, so the halo is as wide as the number of
+// iterations. A boundary texel copies its interior neighbour, which makes it depend on one texel more, so the halo
+// is one texel wider when the bounds are set.
+void main() {
+    ivec2 size = imageSize(img);
+    int halo = iterations + (setBound ? 1 : 0);
+    int tileSize = int(gl_WorkGroupSize.x) + 2 * halo;
+    ivec2 tileOrigin = ivec2(gl_WorkGroupID.xy * gl_WorkGroupSize.xy) - halo;
+    uint groupSize = gl_WorkGroupSize.x * gl_WorkGroupSize.y;
+
+    for (uint i = gl_LocalInvocationIndex; i < uint(tileSize * tileSize); i += groupSize) {
+        ivec2 tilePos = ivec2(int(i) % tileSize, int(i) / tileSize);
+        ivec2 pos = tileOrigin + tilePos;
+        // Outside the image the values are 0, as imageLoad returns there.
+        bool inside = isInside(pos, size);
+        values[0][tilePos.y][tilePos.x] = inside ? imageLoad(img, pos).xy : vec2(0.0);
+        rhs[tilePos.y][tilePos.x] = inside ? texelFetch(samp, pos, 0).xy : vec2(0.0);
+    }
+    barrier();
+
+    int current = 0;
+    for (int iteration = 1; iteration <= iterations; iteration++) {
+        int next = 1 - current;
+        int validSize = tileSize - 2 * iteration;
+
+        for (uint i = gl_LocalInvocationIndex; i < uint(validSize * validSize); i += groupSize) {
+            ivec2 tilePos = ivec2(int(i) % validSize, int(i) / validSize) + iteration;
+            vec2 newValue = vec2(0.0);
+            if (isInside(tileOrigin + tilePos, size)) {
+                vec2 left   = values[current][tilePos.y][tilePos.x - 1];
+                vec2 right  = values[current][tilePos.y][tilePos.x + 1];
+                vec2 down   = values[current][tilePos.y - 1][tilePos.x];
+                vec2 up     = values[current][tilePos.y + 1][tilePos.x];
+                newValue = (rhs[tilePos.y][tilePos.x] + a * (left + right + up + down)) * b;
+            }
+            values[next][tilePos.y][tilePos.x] = newValue;
+        }
+        barrier();
+
+        if (setBound) {
+            for (uint i = gl_LocalInvocationIndex; i < uint(validSize * validSize); i += groupSize) {
+                ivec2 tilePos = ivec2(int(i) % validSize, int(i) / validSize) + iteration;
+                ivec2 pos = tileOrigin + tilePos;
+                if (!isInside(pos, size)) continue;
+
+                bvec4 edges = bvec4(pos.x == 0, pos.x == size.x - 1, pos.y == 0, pos.y == size.y - 1);
+                if ((edges.x || edges.y) && (edges.z || edges.w)) {
+                    // A corner averages its two edge neighbours, which mirror the same interior texel with opposite
+                    // signs.
+                    values[next][tilePos.y][tilePos.x] = vec2(0.0);
+                } else if (edges.x || edges.y) {
+                    vec2 value = values[next][tilePos.y][tilePos.x + (edges.x ? 1 : -1)];
+                    values[next][tilePos.y][tilePos.x] = vec2(-value.x, value.y);
+                } else if (edges.z || edges.w) {
+                    vec2 value = values[next][tilePos.y + (edges.z ? 1 : -1)][tilePos.x];
+                    values[next][tilePos.y][tilePos.x] = vec2(value.x, -value.y);
+                }
+            }
+            barrier();
+        }
+
+        current = next;
+    }
+
+    ivec2 tilePos = ivec2(gl_LocalInvocationID.xy) + halo;
+    imageStore(resultImg, ivec2(gl_GlobalInvocationID.xy), vec4(values[current][tilePos.y][tilePos.x], 0.0, 0.0));
+}
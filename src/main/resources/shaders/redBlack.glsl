@@ -0,0 +1,77 @@
+#version 430 core
+
+layout (local_size_x = 16, local_size_y = 16) in;
+
+layout (REPLACE_ME, binding = 0) uniform image2D img;
+layout (REPLACE_ME_1, binding = 1) uniform image2D sourceImg;
+layout (binding = 0) uniform sampler2D samp;
+
+uniform float a;
+uniform float b;
+// The over-relaxation factor. 1 is plain Gauss-Seidel.
+uniform float omega;
+// The texels updated by this dispatch: 0 for the ones with an even x + y, 1 for the odd ones.
+uniform int color;
+// On the first half-iteration: the right-hand side is img + deltaTime * sourceImg, written to sourceImg for the
+// dispatches after it, which sample it through samp.
+uniform bool addSource;
+uniform float deltaTime;
+// Whether the boundary texels mirror their interior neighbour like setBound.glsl, with the normal velocity negated.
+uniform bool setBound;
+
+bool isInside(ivec2 pos, ivec2 size) {
+    return all(greaterThanEqual(pos, ivec2(0))) && all(lessThan(pos, size));
+}
+
+// One half of a red-black Gauss-Seidel iteration of the jacobi.glsl equation. Every invocation owns a pair of
+// horizontally adjacent texels and updates the one of this color. All 4 neighbours of a texel have the other color,
+// so no texel is read and written by the same dispatch, and the result does not depend on the scheduling.
+void main() {
+    ivec2 size = imageSize(img);
+    ivec2 pairPos = ivec2(2 * gl_GlobalInvocationID.x, gl_GlobalInvocationID.y);
+    int offset = (pairPos.y + color) & 1;
+    ivec2 storePos = pairPos + ivec2(offset, 0);
+
+    if (addSource) {
+        // The other texel of the pair is not updated by this dispatch, so its state can be read as it is.
+        ivec2 otherPos = pairPos + ivec2(1 - offset, 0);
+        if (isInside(otherPos, size))
+            imageStore(sourceImg, otherPos, imageLoad(img, otherPos) + deltaTime * imageLoad(sourceImg, otherPos));
+    }
+    if (!isInside(storePos, size)) return;
+
+    vec4 value = imageLoad(img, storePos);
+    vec4 sampValue;
+    if (addSource) {
+        sampValue = value + deltaTime * imageLoad(sourceImg, storePos);
+        imageStore(sourceImg, storePos, sampValue);
+    } else {
+        sampValue = texelFetch(samp, storePos, 0);
+    }
+
+    bvec4 edges = bvec4(storePos.x == 0, storePos.x == size.x - 1, storePos.y == 0, storePos.y == size.y - 1);
+    if (setBound && any(edges)) {
+        vec4 storeValue;
+        if ((edges.x || edges.y) && (edges.z || edges.w)) {
+            // A corner averages its two edge neighbours, which mirror the same interior texel with opposite signs.
+            storeValue = vec4(0.0);
+        } else if (edges.x || edges.y) {
+            storeValue = imageLoad(img, storePos + ivec2(edges.x ? 1 : -1, 0));
+            storeValue.x *= -1.0;
+        } else {
+            storeValue = imageLoad(img, storePos + ivec2(0, edges.z ? 1 : -1));
+            storeValue.y *= -1.0;
+        }
+        imageStore(img, storePos, storeValue);
+        return;
+    }
+
+    vec4 left   = imageLoad(img, storePos + ivec2(-1, 0));
+    vec4 right  = imageLoad(img, storePos + ivec2(1, 0));
+    vec4 down   = imageLoad(img, storePos + ivec2(0, -1));
+    vec4 up     = imageLoad(img, storePos + ivec2(0, 1));
+
+    vec4 newValue = (sampValue + a * (left + right + up + down)) * b;
+
+    imageStore(img, storePos, mix(value, newValue, omega));
+}
@@ -0,0 +1,48 @@
+#version 430 core
+
+layout (local_size_x = 16, local_size_y = 16) in;
+
+// The solution's format. The right-hand side is sampled, so its format may differ.
+layout (REPLACE_ME, binding = 0) uniform readonly image2D img;
+layout (binding = 0) uniform sampler2D samp;
+
+// One (residual^2, rhs^2) sum per work group.
+layout (std430, binding = 0) writeonly buffer Partials {
+    vec2 partials[];
+};
+
+uniform float a;
+uniform float b;
+
+shared vec2 sums[gl_WorkGroupSize.x * gl_WorkGroupSize.y];
+
+// Measures how far the jacobi.glsl equation is from converged. The residual of a cell is
+// rhs + a * (sum of the 4 neighbours) - value / b. Only the first 2 channels are used, so R and RG images work alike.
+void main() {
+    ivec2 pos = ivec2(gl_GlobalInvocationID.xy);
+    ivec2 size = imageSize(img);
+
+    vec2 value = vec2(0.0);
+    if (all(greaterThan(pos, ivec2(0))) && all(lessThan(pos, size - 1))) {
+        vec2 center = imageLoad(img, pos).xy;
+        vec2 left   = imageLoad(img, pos + ivec2(-1, 0)).xy;
+        vec2 right  = imageLoad(img, pos + ivec2(1, 0)).xy;
+        vec2 down   = imageLoad(img, pos + ivec2(0, -1)).xy;
+        vec2 up     = imageLoad(img, pos + ivec2(0, 1)).xy;
+        vec2 rhs = texelFetch(samp, pos, 0).xy;
+
+        vec2 residual = rhs + a * (left + right + up + down) - center / b;
+        value = vec2(dot(residual, residual), dot(rhs, rhs));
+    }
+
+    // Tree reduction in shared memory
+    uint local = gl_LocalInvocationIndex;
+    sums[local] = value;
+    barrier();
+    for (uint stride = gl_WorkGroupSize.x * gl_WorkGroupSize.y / 2; stride > 0; stride >>= 1) {
+        if (local < stride) sums[local] += sums[local + stride];
+        barrier();
+    }
+
+    if (local == 0) partials[gl_WorkGroupID.x + gl_WorkGroupID.y * gl_NumWorkGroups.x] = sums[0];
+}
@@ -2,7 +2,7 @@
 
 layout (local_size_x = 16) in;
 
-layout (rg32f, binding = 0) uniform image2D img;
+layout (REPLACE_ME, binding = 0) uniform image2D img;
 
 void main() {
     uint id = gl_GlobalInvocationID.x;
@@ -0,0 +1,34 @@
+#version 430 core
+
+layout (local_size_x = 16, local_size_y = 16) in;
+
+layout (REPLACE_ME, binding = 0) uniform writeonly image2D densityImg;
+layout (REPLACE_ME_1, binding = 1) uniform writeonly image2D velocityImg;
+
+struct Splat {
+    vec2 position;
+    float radius;
+    float density;
+    vec2 velocity;
+    vec2 padding;
+};
+
+layout (std430, binding = 0) readonly buffer Splats {
+    Splat splats[];
+};
+
+// Writes the sources of one splat per z slice. The x and y invocations cover the square of the largest splat, so
+// smaller splats skip the invocations outside their own square.
+void main() {
+    Splat splat = splats[gl_GlobalInvocationID.z];
+    int radius = int(splat.radius);
+
+    ivec2 offset = ivec2(gl_GlobalInvocationID.xy) - radius;
+    if (any(greaterThan(offset, ivec2(radius)))) return;
+
+    ivec2 pos = ivec2(splat.position) + offset;
+    if (any(lessThan(pos, ivec2(0))) || any(greaterThanEqual(pos, imageSize(densityImg)))) return;
+
+    imageStore(densityImg, pos, vec4(splat.density, 0.0, 0.0, 0.0));
+    imageStore(velocityImg, pos, vec4(splat.velocity, 0.0, 0.0));
+}
@@ -3,7 +3,7 @@
 layout (local_size_x = 16, local_size_y = 16) in;
 
 layout (binding = 0) uniform sampler2D pressureSampler;
-layout (rg32f, binding = 0) uniform image2D velocityImg;
+layout (REPLACE_ME, binding = 0) uniform image2D velocityImg;
 
 uniform float h; // -0.5 * N
 
@@ -0,0 +1,43 @@
+#version 430 core
+
+layout (local_size_x = 16, local_size_y = 16) in;
+
+layout (binding = 0) uniform sampler2D pressureSampler;
+layout (binding = 1) uniform sampler2D velocitySampler;
+layout (REPLACE_ME, binding = 0) uniform writeonly image2D velocityImg;
+
+uniform float h; // -0.5 * N
+
+vec2 subtracted(ivec2 texelPos) {
+    float pL = texelFetchOffset(pressureSampler, texelPos, 0, ivec2(-1, 0)).x;
+    float pR = texelFetchOffset(pressureSampler, texelPos, 0, ivec2(1, 0)).x;
+    float pB = texelFetchOffset(pressureSampler, texelPos, 0, ivec2(0, -1)).x;
+    float pT = texelFetchOffset(pressureSampler, texelPos, 0, ivec2(0, 1)).x;
+
+    vec2 velocity = texelFetch(velocitySampler, texelPos, 0).xy;
+    return velocity + h * vec2(pR - pL, pT - pB);
+}
+
+// subtractPressure.glsl followed by setBound.glsl in one pass. The velocity is written to another texture than it is
+// read from, so a boundary texel can compute the value of its interior neighbour itself instead of waiting for it.
+void main() {
+    ivec2 texelPos = ivec2(gl_GlobalInvocationID.xy);
+    ivec2 size = textureSize(velocitySampler, 0);
+
+    bvec4 edges = bvec4(texelPos.x == 0, texelPos.x == size.x - 1, texelPos.y == 0, texelPos.y == size.y - 1);
+    vec2 velocity;
+    if ((edges.x || edges.y) && (edges.z || edges.w)) {
+        // A corner averages its two edge neighbours, which mirror the same interior texel with opposite signs.
+        velocity = vec2(0.0);
+    } else if (edges.x || edges.y) {
+        velocity = subtracted(texelPos + ivec2(edges.x ? 1 : -1, 0));
+        velocity.x *= -1.0;
+    } else if (edges.z || edges.w) {
+        velocity = subtracted(texelPos + ivec2(0, edges.z ? 1 : -1));
+        velocity.y *= -1.0;
+    } else {
+        velocity = subtracted(texelPos);
+    }
+
+    imageStore(velocityImg, texelPos, vec4(velocity, 0.0, 0.0));
+}
@@ -0,0 +1,183 @@
+package system;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Saves and restores {@link CpuSolver} state through {@link Checkpoint} files.
+ */
+class CheckpointTest {
+    private static final int N_X = 48;
+    private static final int N_Y = 32;
+    private static final float DELTA_TIME = 0.05f;
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void roundTrips() throws IOException {
+        Path path = dir.resolve("state.chk");
+        CpuSolver saved = run(new CpuSolver(N_X, N_Y, 1), 0, 10);
+        saved.saveCheckpoint(path);
+
+        CpuSolver loaded = new CpuSolver(N_X, N_Y, 1);
+        loaded.loadCheckpoint(path);
+        assertSameState(saved, loaded);
+        assertEquals(DELTA_TIME, loaded.getDeltaTime());
+        assertFalse(Files.exists(dir.resolve("state.chk.tmp")));
+    }
+
+    @Test
+    void resumesBitForBit() throws IOException {
+        Path path = dir.resolve("state.chk");
+        CpuSolver uninterrupted = run(new CpuSolver(N_X, N_Y, 1), 0, 20);
+
+        run(new CpuSolver(N_X, N_Y, 1), 0, 10).saveCheckpoint(path);
+        CpuSolver resumed = new CpuSolver(N_X, N_Y, 1);
+        resumed.loadCheckpoint(path);
+        run(resumed, 10, 20);
+
+        assertSameState(uninterrupted, resumed);
+    }
+
+    @Test
+    void overwritesTheFileItWasLoadedFrom() throws IOException {
+        Path path = dir.resolve("state.chk");
+        run(new CpuSolver(N_X, N_Y, 1), 0, 5).saveCheckpoint(path);
+
+        CpuSolver solver = new CpuSolver(N_X, N_Y, 1);
+        solver.loadCheckpoint(path);
+        run(solver, 5, 10).saveCheckpoint(path);
+
+        CpuSolver loaded = new CpuSolver(N_X, N_Y, 1);
+        loaded.loadCheckpoint(path);
+        assertSameState(solver, loaded);
+        assertFalse(Files.exists(dir.resolve("state.chk.tmp")));
+    }
+
+    @Test
+    void ignoresThePressurePlane() throws IOException {
+        Path path = dir.resolve("engine.chk");
+        try (Checkpoint checkpoint = Checkpoint.create(path, Checkpoint.createBuffer(N_X, N_Y), N_X, N_Y,
+                DELTA_TIME, 7, true)) {
+            checkpoint.write(Checkpoint.Field.DENSITY, filled(1));
+            checkpoint.write(Checkpoint.Field.VELOCITY_X, filled(2));
+            checkpoint.write(Checkpoint.Field.VELOCITY_Y, FloatBuffer.wrap(filled(3)));
+            checkpoint.write(Checkpoint.Field.PRESSURE, filled(4));
+            checkpoint.commit();
+        }
+
+        CpuSolver solver = new CpuSolver(N_X, N_Y, 1);
+        solver.loadCheckpoint(path);
+        assertArrayEquals(filled(1), solver.getDensities());
+        assertArrayEquals(filled(2), solver.getVelocitiesX());
+        assertArrayEquals(filled(3), solver.getVelocitiesY());
+        assertEquals(7, solver.getStepCount());
+    }
+
+    @Test
+    void writesPlanesLargerThanTheBuffer() throws IOException {
+        Path path = dir.resolve("chunked.chk");
+        CpuSolver saved = run(new CpuSolver(N_X, N_Y, 1), 0, 10);
+        // 100 bytes hold 25 floats, so every plane takes many writes and ends with a partial one.
+        ByteBuffer buffer = ByteBuffer.allocateDirect(100);
+        try (Checkpoint checkpoint = Checkpoint.create(path, buffer, N_X, N_Y, DELTA_TIME, saved.getStepCount(),
+                false)) {
+            checkpoint.write(Checkpoint.Field.DENSITY, saved.getDensities());
+            checkpoint.write(Checkpoint.Field.VELOCITY_X, FloatBuffer.wrap(saved.getVelocitiesX()));
+            checkpoint.write(Checkpoint.Field.VELOCITY_Y, saved.getVelocitiesY());
+            checkpoint.commit();
+        }
+
+        CpuSolver loaded = new CpuSolver(N_X, N_Y, 1);
+        loaded.loadCheckpoint(path);
+        assertSameState(saved, loaded);
+    }
+
+    @Test
+    void keepsTheFileWhenNotCommitted() throws IOException {
+        Path path = dir.resolve("state.chk");
+        CpuSolver saved = run(new CpuSolver(N_X, N_Y, 1), 0, 5);
+        saved.saveCheckpoint(path);
+
+        try (Checkpoint checkpoint = Checkpoint.create(path, Checkpoint.createBuffer(N_X, N_Y), N_X, N_Y,
+                DELTA_TIME, 99, false)) {
+            checkpoint.write(Checkpoint.Field.DENSITY, filled(1));
+        }
+
+        assertFalse(Files.exists(dir.resolve("state.chk.tmp")));
+        CpuSolver loaded = new CpuSolver(N_X, N_Y, 1);
+        loaded.loadCheckpoint(path);
+        assertSameState(saved, loaded);
+    }
+
+    @Test
+    void rejectsBadFiles() throws IOException {
+        Path path = dir.resolve("state.chk");
+        run(new CpuSolver(N_X, N_Y, 1), 0, 3).saveCheckpoint(path);
+        byte[] bytes = Files.readAllBytes(path);
+
+        Path truncated = dir.resolve("truncated.chk");
+        Files.write(truncated, Arrays.copyOf(bytes, bytes.length - 4));
+        assertThrows(IOException.class, () -> Checkpoint.open(truncated));
+
+        Path uncommitted = dir.resolve("uncommitted.chk");
+        byte[] noMagic = bytes.clone();
+        Arrays.fill(noMagic, 0, 4, (byte) 0);
+        Files.write(uncommitted, noMagic);
+        assertThrows(IOException.class, () -> Checkpoint.open(uncommitted));
+
+        Path garbage = dir.resolve("garbage.chk");
+        Files.write(garbage, new byte[]{1, 2, 3});
+        assertThrows(IOException.class, () -> Checkpoint.open(garbage));
+
+        assertThrows(IOException.class, () -> Checkpoint.open(dir.resolve("missing.chk")));
+    }
+
+    @Test
+    void rejectsAnotherGridWithoutTouchingTheFields() throws IOException {
+        Path path = dir.resolve("state.chk");
+        run(new CpuSolver(N_X, N_Y, 1), 0, 3).saveCheckpoint(path);
+
+        CpuSolver solver = run(new CpuSolver(N_Y, N_X, 1), 0, 3);
+        float[] densities = solver.getDensities().clone();
+        assertThrows(IllegalArgumentException.class, () -> solver.loadCheckpoint(path));
+        assertArrayEquals(densities, solver.getDensities());
+        assertEquals(3, solver.getStepCount());
+    }
+
+    /**
+     * Runs steps {@code [from, to)} with sources that depend only on the step number.
+     */
+    private static CpuSolver run(CpuSolver solver, int from, int to) {
+        for (int step = from; step < to; step++) {
+            int i = 1 + step % solver.nX;
+            solver.setDensitySource(i, solver.nY / 2, 10);
+            solver.setVelocitySource(i, solver.nY / 2, 0.5f, step % 2 == 0 ? 1 : -1);
+            solver.step(DELTA_TIME);
+        }
+        return solver;
+    }
+
+    private static void assertSameState(CpuSolver expected, CpuSolver actual) {
+        assertEquals(expected.getStepCount(), actual.getStepCount());
+        assertArrayEquals(expected.getDensities(), actual.getDensities());
+        assertArrayEquals(expected.getVelocitiesX(), actual.getVelocitiesX());
+        assertArrayEquals(expected.getVelocitiesY(), actual.getVelocitiesY());
+    }
+
+    private static float[] filled(float value) {
+        float[] field = new float[(N_X + 2) * (N_Y + 2)];
+        Arrays.fill(field, value);
+        return field;
+    }
+}
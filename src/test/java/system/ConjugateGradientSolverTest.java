@@ -0,0 +1,84 @@
+package system;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Checks that both {@link ConjugateGradientSolver.Preconditioner}s reach the tolerance within the default iteration
+ * cap, and that solves which do not are counted as capped.
+ */
+class ConjugateGradientSolverTest {
+    private static final int N = 128;
+    private static final float TOLERANCE = 1e-4f;
+
+    @Test
+    void jacobiSolvesPressure() {
+        assertConverges(ConjugateGradientSolver.Preconditioner.JACOBI, 1, 4);
+    }
+
+    @Test
+    void jacobiSolvesDiffusion() {
+        assertConverges(ConjugateGradientSolver.Preconditioner.JACOBI, 10, 1 + 4 * 10);
+    }
+
+    @Test
+    void incompleteCholeskySolvesPressure() {
+        assertConverges(ConjugateGradientSolver.Preconditioner.INCOMPLETE_CHOLESKY, 1, 4);
+    }
+
+    @Test
+    void incompleteCholeskySolvesDiffusion() {
+        assertConverges(ConjugateGradientSolver.Preconditioner.INCOMPLETE_CHOLESKY, 10, 1 + 4 * 10);
+    }
+
+    @Test
+    void countsCappedSolves() {
+        CpuSolver solver = new CpuSolver(N, N, 1);
+        float[] b = CpuSolverTest.randomField(solver, 2);
+        float[] x = new float[solver.size];
+        SolveStats stats = new SolveStats();
+
+        ConjugateGradientSolver cg = new ConjugateGradientSolver(N, N);
+        cg.setMaxIterations(5);
+        cg.solve(x, b, 1, 4, 0, null, stats);
+
+        assertEquals(5, stats.getIterations());
+        assertEquals(1, stats.getCappedSolves());
+        assertTrue(stats.getResidual() > TOLERANCE);
+    }
+
+    @Test
+    void scalesTheIterationCapWithTheGrid() {
+        assertEquals(ConjugateGradientSolver.DEFAULT_ITERATIONS_PER_CELL * 61,
+                new ConjugateGradientSolver(61, 37).getMaxIterations());
+    }
+
+    @Test
+    void rejectsBadSettings() {
+        ConjugateGradientSolver cg = new ConjugateGradientSolver(N, N);
+        assertThrows(IllegalArgumentException.class, () -> cg.setMaxIterations(0));
+        assertThrows(IllegalArgumentException.class, () -> cg.setTolerance(0));
+        assertThrows(IllegalArgumentException.class, () -> cg.setTolerance(Float.NaN));
+    }
+
+    private static void assertConverges(ConjugateGradientSolver.Preconditioner preconditioner, float a, float c) {
+        CpuSolver solver = new CpuSolver(N, N, 1);
+        float[] b = CpuSolverTest.randomField(solver, 1);
+        float[] x = new float[solver.size];
+        SolveStats stats = new SolveStats();
+
+        ConjugateGradientSolver cg = new ConjugateGradientSolver(N, N);
+        cg.setPreconditioner(preconditioner);
+        cg.setTolerance(TOLERANCE);
+        cg.solve(x, b, a, c, 0, null, stats);
+
+        assertEquals(0, stats.getCappedSolves());
+        assertTrue(stats.getIterations() < cg.getMaxIterations(), "Iterations " + stats.getIterations());
+        assertTrue(stats.getResidual() <= TOLERANCE, "Residual " + stats.getResidual());
+
+        // CG updates its residual recursively, so it may drift a little from the true one.
+        float residual = CpuSolverTest.residual(solver, x, b, a, c) / CpuSolverTest.norm(solver, b);
+        assertTrue(residual <= 2 * TOLERANCE, "True residual " + residual);
+    }
+}
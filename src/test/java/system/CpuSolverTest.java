@@ -0,0 +1,124 @@
+package system;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Checks the {@link CpuSolver.Relaxation} schemes against each other on the diffusion equation
+ * {@code (1 + 4a) * x - a * (sum of the 4 neighbours of x) = x0}.
+ */
+class CpuSolverTest {
+    private static final float A = 1f;
+    private static final float C = 1 + 4 * A;
+
+    @Test
+    void redBlackConvergesLikeGaussSeidel() {
+        float[] x0 = randomField(new CpuSolver(48), 1);
+
+        float[] gaussSeidel = relax(new CpuSolver(48), CpuSolver.Relaxation.GAUSS_SEIDEL, x0, 10);
+        float[] redBlack = relax(new CpuSolver(48), CpuSolver.Relaxation.RED_BLACK, x0, 10);
+        float gaussSeidelResidual = residual(new CpuSolver(48), gaussSeidel, x0);
+        float redBlackResidual = residual(new CpuSolver(48), redBlack, x0);
+        assertTrue(redBlackResidual < 1.5f * gaussSeidelResidual,
+                "Red-black residual " + redBlackResidual + " vs Gauss-Seidel " + gaussSeidelResidual);
+
+        // Both orders converge to the same solution.
+        gaussSeidel = relax(new CpuSolver(48), CpuSolver.Relaxation.GAUSS_SEIDEL, x0, 200);
+        redBlack = relax(new CpuSolver(48), CpuSolver.Relaxation.RED_BLACK, x0, 200);
+        assertArrayEquals(gaussSeidel, redBlack, 1e-5f);
+    }
+
+    @Test
+    void redBlackIsIndependentOfThreads() {
+        float[] x0 = randomField(new CpuSolver(61, 37, 1), 2);
+
+        float[] single = relax(new CpuSolver(61, 37, 1), CpuSolver.Relaxation.RED_BLACK, x0, 20);
+        float[] banded = relax(new CpuSolver(61, 37, 3), CpuSolver.Relaxation.RED_BLACK, x0, 20);
+        assertArrayEquals(single, banded);
+    }
+
+    @Test
+    void tiledJacobiMatchesJacobi() {
+        // A small cache budget cuts the grid into many tiles, and 7 iterations leave a partial last block.
+        for (int threads : new int[]{1, 3}) {
+            for (int bound = 0; bound <= 2; bound++) {
+                CpuSolver jacobi = new CpuSolver(61, 37, threads);
+                CpuSolver tiled = new CpuSolver(61, 37, threads);
+                tiled.getTiledJacobi().setCacheBytes(4 << 10);
+                tiled.getTiledJacobi().setIterationsPerTile(3);
+                assertTrue(tiled.getTiledJacobi().getTileWidth() < 61 && tiled.getTiledJacobi().getTileHeight() < 37,
+                        tiled.getTiledJacobi().toString());
+
+                float[] x0 = randomField(jacobi, 3);
+                float[] expected = randomField(jacobi, 4);
+                float[] actual = expected.clone();
+                relax(jacobi, CpuSolver.Relaxation.JACOBI, expected, x0, bound, 7);
+                relax(tiled, CpuSolver.Relaxation.TILED_JACOBI, actual, x0, bound, 7);
+                assertArrayEquals(expected, actual, threads + " threads, bound " + bound);
+            }
+        }
+    }
+
+    static float[] relax(CpuSolver solver, CpuSolver.Relaxation relaxation, float[] x0, int iterations) {
+        float[] x = new float[solver.size];
+        relax(solver, relaxation, x, x0, 0, iterations);
+        return x;
+    }
+
+    static void relax(CpuSolver solver, CpuSolver.Relaxation relaxation, float[] x, float[] x0, int bound,
+                      int iterations) {
+        solver.setRelaxation(relaxation);
+        solver.setIterationCount(iterations);
+        solver.relax(x, x0, A, C, bound);
+        // Stops the band threads.
+        solver.setParallelism(1);
+    }
+
+    /**
+     * The right-hand side with random interior cells and zero boundary cells.
+     */
+    static float[] randomField(CpuSolver solver, long seed) {
+        Random random = new Random(seed);
+        float[] field = new float[solver.size];
+        for (int j = 1; j <= solver.nY; j++)
+            for (int i = 1; i <= solver.nX; i++)
+                field[solver.index(i, j)] = random.nextFloat() * 2 - 1;
+        return field;
+    }
+
+    /**
+     * {@code |x0 - Ax|} over the inner cells.
+     */
+    static float residual(CpuSolver solver, float[] x, float[] x0) {
+        return residual(solver, x, x0, A, C);
+    }
+
+    /**
+     * {@code |b - Ax|} over the inner cells, for {@code c * x - a * (sum of the 4 neighbours of x) = b}.
+     */
+    static float residual(CpuSolver solver, float[] x, float[] b, float a, float c) {
+        float[] r = new float[solver.size];
+        double sum = 0;
+        for (int j = 1; j <= solver.nY; j++) {
+            int row = j * solver.stride;
+            new ScalarKernels().residual(r, x, b, a, c, row + 1, row + solver.nX + 1, solver.stride);
+            for (int idx = row + 1; idx <= row + solver.nX; idx++)
+                sum += r[idx] * r[idx];
+        }
+        return (float) Math.sqrt(sum);
+    }
+
+    /**
+     * {@code |b|} over the inner cells.
+     */
+    static float norm(CpuSolver solver, float[] b) {
+        double sum = 0;
+        for (int j = 1; j <= solver.nY; j++)
+            for (int i = 1; i <= solver.nX; i++)
+                sum += b[solver.index(i, j)] * b[solver.index(i, j)];
+        return (float) Math.sqrt(sum);
+    }
+}
@@ -0,0 +1,76 @@
+package system;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.lwjgl.opengl.GL43.*;
+
+/**
+ * Checks the shader sources {@link MultiProgramManager} generates, which needs no OpenGL context.
+ */
+class MultiProgramManagerTest {
+    private static final String[] SHADERS = {"addSource", "advect", "advectDivergence", "clear", "clearSources",
+            "divergence", "jacobi", "jacobiFused", "jacobiTiled", "redBlack", "residual", "setBound", "splat",
+            "subtractPressure", "subtractPressureFused"};
+
+    @Test
+    void substitutesEveryPlaceholder() {
+        for (String shader : SHADERS) {
+            String source = Shader.readString("shaders/" + shader + ".glsl");
+            int placeholders = placeholderCount(source);
+
+            for (int format : new int[]{GL_R32F, GL_RG32F, GL_RGBA32F, GL_R16F, GL_RG16F, GL_RGBA16F}) {
+                int[] formats = new int[placeholders];
+                Arrays.fill(formats, format);
+                String substituted = MultiProgramManager.substitute(source, formats);
+                assertFalse(substituted.contains("REPLACE_ME"), shader);
+                assertTrue(substituted.contains("layout (" + MultiProgramManager.imageFormat(format) + ", binding"),
+                        shader);
+            }
+        }
+    }
+
+    @Test
+    void fullPrecisionUsesOnly32BitFormats() {
+        for (String shader : SHADERS) {
+            String source = Shader.readString("shaders/" + shader + ".glsl");
+            int[] formats = new int[placeholderCount(source)];
+            Arrays.fill(formats, GL_R32F);
+            assertFalse(MultiProgramManager.substitute(source, formats).contains("16f"), shader);
+        }
+    }
+
+    @Test
+    void substitutesEachPlaceholderWithItsOwnFormat() {
+        String source =
+                "layout (REPLACE_ME) a; layout (REPLACE_ME_1) b; layout (REPLACE_ME_2) c; layout (REPLACE_ME) d;";
+        assertEquals("layout (r16f) a; layout (rg32f) b; layout (rgba16f) c; layout (r16f) d;",
+                MultiProgramManager.substitute(source, GL_R16F, GL_RG32F, GL_RGBA16F));
+    }
+
+    @Test
+    void rejectsPlaceholdersWithoutFormat() {
+        String source = "layout (REPLACE_ME) a; layout (REPLACE_ME_1) b;";
+        assertThrows(IllegalArgumentException.class, () -> MultiProgramManager.substitute(source, GL_R32F));
+        assertThrows(IllegalArgumentException.class, () -> MultiProgramManager.substitute(source));
+    }
+
+    @Test
+    void rejectsUnsizedFormats() {
+        assertEquals("rg16f", MultiProgramManager.imageFormat(GL_RG16F));
+        assertThrows(IllegalArgumentException.class, () -> MultiProgramManager.imageFormat(GL_RED));
+        assertThrows(IllegalArgumentException.class, () -> MultiProgramManager.imageFormat(GL_R8));
+    }
+
+    /**
+     * The number of placeholders, counted as {@link MultiProgramManager} does.
+     */
+    private static int placeholderCount(String source) {
+        int count = 1;
+        while (source.contains("REPLACE_ME_" + count))
+            count++;
+        return count;
+    }
+}
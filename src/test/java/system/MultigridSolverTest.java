@@ -0,0 +1,102 @@
+package system;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Checks that {@link MultigridSolver} reaches its tolerance on the diffusion and pressure equations of
+ * {@link CpuSolver}, also on grids whose sides are odd and differ.
+ */
+class MultigridSolverTest {
+    private static final float TOLERANCE = 1e-4f;
+
+    @Test
+    void solvesDiffusion() {
+        assertConverges(new CpuSolver(64, 64, 1), 10, 1 + 4 * 10);
+    }
+
+    @Test
+    void solvesPressure() {
+        // c == 4 * a has no unique solution, only one up to a constant.
+        assertConverges(new CpuSolver(64, 64, 1), 1, 4);
+    }
+
+    @Test
+    void solvesPressureOnRectangularGrid() {
+        assertConverges(new CpuSolver(61, 37, 1), 1, 4);
+    }
+
+    @Test
+    void solvesWithThreads() {
+        CpuSolver solver = new CpuSolver(61, 37, 1);
+        RowBands bands = new RowBands(3);
+        try {
+            float[] b = CpuSolverTest.randomField(solver, 3);
+            float[] x = new float[solver.size];
+            SolveStats stats = new SolveStats();
+
+            new MultigridSolver(solver.nX, solver.nY, Integer.MAX_VALUE)
+                    .solve(x, b, 1, 4, 0, StencilKernels.create(), bands, stats);
+            assertEquals(0, stats.getCappedSolves());
+            assertTrue(stats.getResidual() <= TOLERANCE, "Residual " + stats.getResidual());
+        } finally {
+            bands.shutdown();
+        }
+    }
+
+    @Test
+    void countsCappedSolves() {
+        CpuSolver solver = new CpuSolver(64, 64, 1);
+        float[] b = CpuSolverTest.randomField(solver, 4);
+        float[] x = new float[solver.size];
+        SolveStats stats = new SolveStats();
+
+        MultigridSolver multigrid = new MultigridSolver(solver.nX, solver.nY, Integer.MAX_VALUE);
+        multigrid.setMaxCycles(1);
+        multigrid.setTolerance(1e-7f);
+        multigrid.solve(x, b, 1, 4, 0, StencilKernels.create(), null, stats);
+
+        assertEquals(1, stats.getIterations());
+        assertEquals(1, stats.getCappedSolves());
+    }
+
+    @Test
+    void returnsZeroForAZeroRightHandSide() {
+        CpuSolver solver = new CpuSolver(61, 37, 1);
+        float[] b = new float[solver.size];
+        float[] x = CpuSolverTest.randomField(solver, 5);
+        SolveStats stats = new SolveStats();
+
+        new MultigridSolver(solver.nX, solver.nY, Integer.MAX_VALUE)
+                .solve(x, b, 10, 1 + 4 * 10, 1, StencilKernels.create(), null, stats);
+
+        assertArrayEquals(new float[solver.size], x);
+        assertEquals(0, stats.getIterations());
+        assertEquals(0, stats.getCappedSolves());
+    }
+
+    @Test
+    void rejectsNoLevels() {
+        assertThrows(IllegalArgumentException.class, () -> new MultigridSolver(64, 64, 0));
+    }
+
+    private static void assertConverges(CpuSolver solver, float a, float c) {
+        float[] b = CpuSolverTest.randomField(solver, 1);
+        float[] x = new float[solver.size];
+        SolveStats stats = new SolveStats();
+
+        MultigridSolver multigrid = new MultigridSolver(solver.nX, solver.nY, Integer.MAX_VALUE);
+        multigrid.setTolerance(TOLERANCE);
+        multigrid.solve(x, b, a, c, 0, StencilKernels.create(), null, stats);
+
+        assertEquals(1, stats.getSolves());
+        assertEquals(0, stats.getCappedSolves());
+        assertTrue(stats.getResidual() <= TOLERANCE, "Residual " + stats.getResidual());
+
+        // The solver's own measure, redone from scratch. For pressure b has had its mean removed.
+        CpuSolver.setBound(0, x, solver.nX, solver.nY, solver.stride);
+        float residual = CpuSolverTest.residual(solver, x, b, a, c) / CpuSolverTest.norm(solver, b);
+        assertEquals(stats.getResidual(), residual, 1e-5f);
+    }
+}
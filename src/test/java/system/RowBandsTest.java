@@ -0,0 +1,40 @@
+package system;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Checks how {@link RowBands} cuts a range into bands.
+ */
+class RowBandsTest {
+    @Test
+    void splitsIntoBandsOfTheGrain() {
+        RowBands bands = new RowBands(4);
+        try {
+            boolean[] done = new boolean[16];
+            AtomicInteger widest = new AtomicInteger();
+            bands.forEach(0, done.length, 1, (from, to) -> {
+                widest.accumulateAndGet(to - from, Math::max);
+                for (int i = from; i < to; i++) done[i] = true;
+            });
+
+            assertEquals(1, widest.get());
+            for (boolean d : done) assertTrue(d);
+        } finally {
+            bands.shutdown();
+        }
+    }
+
+    @Test
+    void rejectsAnEmptyGrain() {
+        RowBands bands = new RowBands(2);
+        try {
+            assertThrows(IllegalArgumentException.class, () -> bands.forEach(0, 8, 0, (from, to) -> { }));
+        } finally {
+            bands.shutdown();
+        }
+    }
+}
@@ -0,0 +1,110 @@
+package system;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.junit.jupiter.api.Assumptions.assumeFalse;
+
+/**
+ * Checks that the {@link StencilKernels#create()} kernels compute exactly what {@link ScalarKernels} do. The vector
+ * kernels do the same operations in the same order, so the results must be bit for bit the same, including the
+ * scalar tail of rows that are not a multiple of the vector length.
+ */
+class StencilKernelsTest {
+    // Not a multiple of any vector length, so every row ends in a scalar tail.
+    private static final int N_X = 67;
+    private static final int N_Y = 5;
+    private static final int STRIDE = N_X + 2;
+    private static final int SIZE = STRIDE * (N_Y + 2);
+
+    private final StencilKernels scalar = new ScalarKernels();
+    private StencilKernels kernels;
+    private float[] u;
+    private float[] v;
+    private float[] p;
+
+    @BeforeEach
+    void setUp() {
+        kernels = StencilKernels.create();
+        assumeFalse(kernels instanceof ScalarKernels, "The Vector API is not available");
+
+        Random random = new Random(42);
+        u = randomField(random);
+        v = randomField(random);
+        p = randomField(random);
+    }
+
+    @Test
+    void jacobi() {
+        float[] expected = new float[SIZE];
+        float[] actual = new float[SIZE];
+        forEachRow((from, to) -> {
+            scalar.jacobi(expected, u, v, 0.3f, 0.45f, from, to, STRIDE);
+            kernels.jacobi(actual, u, v, 0.3f, 0.45f, from, to, STRIDE);
+        });
+        assertArrayEquals(expected, actual);
+    }
+
+    @Test
+    void redBlack() {
+        float[] expected = u.clone();
+        float[] actual = u.clone();
+        // Both colours, so that the rows start at odd and even offsets.
+        for (int color = 0; color < 2; color++) {
+            for (int j = 1; j <= N_Y; j++) {
+                int from = j * STRIDE + 1 + (j + color) % 2;
+                int to = j * STRIDE + N_X + 1;
+                scalar.redBlack(expected, v, 0.3f, 0.45f, from, to, STRIDE);
+                kernels.redBlack(actual, v, 0.3f, 0.45f, from, to, STRIDE);
+            }
+        }
+        assertArrayEquals(expected, actual);
+    }
+
+    @Test
+    void residual() {
+        float[] expected = new float[SIZE];
+        float[] actual = new float[SIZE];
+        forEachRow((from, to) -> {
+            scalar.residual(expected, u, v, 0.3f, 2.2f, from, to, STRIDE);
+            kernels.residual(actual, u, v, 0.3f, 2.2f, from, to, STRIDE);
+        });
+        assertArrayEquals(expected, actual);
+    }
+
+    @Test
+    void divergence() {
+        float[] expected = new float[SIZE];
+        float[] actual = new float[SIZE];
+        forEachRow((from, to) -> {
+            scalar.divergence(expected, u, v, -0.5f / N_X, from, to, STRIDE);
+            kernels.divergence(actual, u, v, -0.5f / N_X, from, to, STRIDE);
+        });
+        assertArrayEquals(expected, actual);
+    }
+
+    @Test
+    void subtractGradient() {
+        float[] expectedU = u.clone();
+        float[] expectedV = v.clone();
+        forEachRow((from, to) -> scalar.subtractGradient(expectedU, expectedV, p, 0.5f * N_X, from, to, STRIDE));
+        forEachRow((from, to) -> kernels.subtractGradient(u, v, p, 0.5f * N_X, from, to, STRIDE));
+        assertArrayEquals(expectedU, u);
+        assertArrayEquals(expectedV, v);
+    }
+
+    private static void forEachRow(RowBands.Task task) {
+        for (int j = 1; j <= N_Y; j++)
+            task.run(j * STRIDE + 1, j * STRIDE + N_X + 1);
+    }
+
+    private static float[] randomField(Random random) {
+        float[] field = new float[SIZE];
+        for (int i = 0; i < SIZE; i++)
+            field[i] = random.nextFloat() * 2 - 1;
+        return field;
+    }
+}
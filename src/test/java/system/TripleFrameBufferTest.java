@@ -0,0 +1,86 @@
+package system;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Hands frames between two threads as fast as they can go. The producer fills every field with the number of the
+ * frame, so a frame that was read while it was written would not be uniform, and an older frame handed out after a
+ * newer one would go backwards.
+ */
+class TripleFrameBufferTest {
+    private static final int FRAMES = 20_000;
+
+    @Test
+    void startsEmpty() {
+        FieldFrame frame = new TripleFrameBuffer(8, 8).acquire();
+        assertEquals(0, uniformValue(frame));
+    }
+
+    @Test
+    void keepsTheFrameUntilTheNextPublish() {
+        CpuSolver solver = new CpuSolver(8, 8, 1);
+        TripleFrameBuffer buffer = new TripleFrameBuffer(8, 8);
+
+        fill(solver, 1);
+        buffer.publish(solver);
+        FieldFrame frame = buffer.acquire();
+        assertSame(frame, buffer.acquire());
+
+        fill(solver, 2);
+        buffer.publish(solver);
+        assertEquals(1, uniformValue(frame));
+        assertEquals(2, uniformValue(buffer.acquire()));
+    }
+
+    @Test
+    @Timeout(30)
+    void handsOffWithoutTearing() throws InterruptedException {
+        CpuSolver solver = new CpuSolver(32, 24, 1);
+        TripleFrameBuffer buffer = new TripleFrameBuffer(32, 24);
+
+        Thread producer = new Thread(() -> {
+            for (int k = 1; k <= FRAMES; k++) {
+                fill(solver, k);
+                buffer.publish(solver);
+            }
+        }, "Producer");
+        producer.start();
+
+        int last = 0;
+        int distinct = 0;
+        while (last < FRAMES) {
+            int value = uniformValue(buffer.acquire());
+            assertTrue(value >= last, "Frame " + value + " after frame " + last);
+            if (value > last) distinct++;
+            last = value;
+        }
+        producer.join();
+
+        assertTrue(distinct > 1, "Only " + distinct + " frames were handed off");
+    }
+
+    private static void fill(CpuSolver solver, int value) {
+        Arrays.fill(solver.getDensities(), value);
+        Arrays.fill(solver.getVelocitiesX(), value);
+        Arrays.fill(solver.getVelocitiesY(), value);
+    }
+
+    /**
+     * The value every cell of every field of {@code frame} holds. Fails if they differ.
+     */
+    private static int uniformValue(FieldFrame frame) {
+        float value = frame.densities[0];
+        for (float[] field : new float[][]{frame.densities, frame.velocitiesX, frame.velocitiesY}) {
+            for (int i = 0; i < field.length; i++) {
+                if (field[i] != value)
+                    fail("Torn frame: cell " + i + " holds " + field[i] + " instead of " + value);
+            }
+        }
+        return (int) value;
+    }
+}